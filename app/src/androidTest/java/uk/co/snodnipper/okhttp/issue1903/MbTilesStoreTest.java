@@ -0,0 +1,62 @@
+package uk.co.snodnipper.okhttp.issue1903;
+
+import android.test.AndroidTestCase;
+
+import java.io.File;
+import java.util.NoSuchElementException;
+
+public class MbTilesStoreTest extends AndroidTestCase {
+
+    private static final long KEY = TileKey.pack(10, 500, 300);
+    private static final long OTHER_KEY = TileKey.pack(10, 501, 300);
+
+    private File mFile;
+    private MbTilesStore mStore;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mFile = new File(getContext().getCacheDir(), "test.mbtiles");
+        mFile.delete();
+        mStore = new MbTilesStore(getContext(), mFile, "test", MbTilesStore.DEFAULT_REFRESH_AFTER_MILLIS, 100);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mStore.close();
+        mFile.delete();
+        super.tearDown();
+    }
+
+    public void testReplacingWithSmallerTileAfterDelete_keepsTheLimit() throws Exception {
+        assertTrue(mStore.put(KEY, new byte[60]));
+        assertTrue(mStore.put(OTHER_KEY, new byte[20]));
+        // the total is recounted on next use
+        assertEquals(1, mStore.delete(keys(OTHER_KEY)));
+
+        assertTrue(mStore.put(KEY, new byte[10]));
+        assertEquals(10, mStore.getBytes());
+        assertFalse(mStore.put(OTHER_KEY, new byte[95]));
+        assertTrue(mStore.put(OTHER_KEY, new byte[90]));
+        assertTrue(mStore.isFull());
+    }
+
+    private static LongIterator keys(final long... keys) {
+        return new LongIterator() {
+            private int mNext;
+
+            @Override
+            public boolean hasNext() {
+                return mNext < keys.length;
+            }
+
+            @Override
+            public long next() {
+                if (mNext == keys.length) {
+                    throw new NoSuchElementException();
+                }
+                return keys[mNext++];
+            }
+        };
+    }
+}
@@ -0,0 +1,465 @@
+package uk.co.snodnipper.okhttp.issue1903;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import okhttp3.HttpUrl;
+import timber.log.Timber;
+
+/**
+ * Sets how many tiles are fetched from each host at once from how the host is coping, and retries
+ * transient failures later.  The limit grows by about one per round of successful fetches and is
+ * halved when the host pushes back with a 429 or 503 or times out; when latency climbs well above
+ * the best the host has managed, requests are queueing at the server and the limit is eased down.
+ * A {@code Retry-After} holds every request to the host until it has passed.
+ * <p>
+ * Transient failures are retried with jittered exponential backoff, a few times at most, and only a
+ * bounded number of retries wait at once; past that they fail straight away.  Nothing is retried
+ * while offline.
+ * <p>
+ * Only requests are limited.  A delegate that is also a {@link CacheFirst} is asked for a cached tile
+ * on the calling thread first, so a cached tile is served at once however busy or blocked its host.
+ * Tiles enqueued with {@link #enqueueNoStore} share the hosts' limits with the rest.
+ */
+public class AdaptiveDownloader implements AsyncDownloader, AsyncDownloader.NoStore {
+
+    public static final int DEFAULT_INITIAL_LIMIT = 4;
+    /** Keep the dispatcher's per-host limit at least this high or it caps the adaptive one. */
+    public static final int DEFAULT_MAX_LIMIT = 16;
+    public static final int DEFAULT_MAX_ATTEMPTS = 4;
+    public static final int DEFAULT_MAX_WAITING_RETRIES = 128;
+
+    private static final long BASE_BACKOFF_MILLIS = 500;
+    private static final long MAX_BACKOFF_MILLIS = 30000;
+    /** Latency beyond this multiple of a host's best, and beyond {@code MIN_QUEUEING_MILLIS} more. */
+    private static final double LATENCY_TOLERANCE = 2;
+    private static final double MIN_QUEUEING_MILLIS = 50;
+    private static final double LATENCY_BACKOFF = 0.9;
+    private static final double OVERLOAD_BACKOFF = 0.5;
+    private static final double LATENCY_WEIGHT = 0.2;
+    /** How fast a host's best latency forgets, so one lucky fetch does not set it for good. */
+    private static final double BEST_LATENCY_DRIFT = 0.01;
+
+    private static final int QUEUED = 0;
+    private static final int RUNNING = 1;
+    private static final int WAITING = 2;
+    private static final int DONE = 3;
+
+    /**
+     * A downloader that keeps a cache, split into its lookup and its request so that only the request
+     * waits for the host.
+     */
+    public interface CacheFirst {
+        /**
+         * @return the tile if it can be served without a request, or null
+         */
+        byte[] getServableCachedData(String url);
+
+        /**
+         * Requests the tile, {@link #getServableCachedData} having found nothing.
+         *
+         * @param store whether the response is written to the cache
+         */
+        Cancellable enqueueNetwork(String url, Callback callback, boolean store);
+    }
+
+    private final AsyncDownloader mDelegate;
+    private final CacheFirst mCacheFirst;
+    private final NoStore mNoStore;
+    private final NetworkState mNetworkState;
+    private final int mInitialLimit;
+    private final int mMaxLimit;
+    private final int mMaxAttempts;
+    private final int mMaxWaitingRetries;
+    private final Map<String, Host> mHosts = new HashMap<>();
+    private final ScheduledThreadPoolExecutor mTimer;
+    private final Random mRandom = new Random();
+    private final AtomicInteger mWaitingRetries = new AtomicInteger();
+    private final AtomicLong mRetryCount = new AtomicLong();
+    private final AtomicLong mDroppedRetryCount = new AtomicLong();
+
+    public AdaptiveDownloader(AsyncDownloader delegate, NetworkState networkState) {
+        this(delegate, networkState, DEFAULT_INITIAL_LIMIT, DEFAULT_MAX_LIMIT, DEFAULT_MAX_ATTEMPTS,
+                DEFAULT_MAX_WAITING_RETRIES);
+    }
+
+    /**
+     * @param initialLimit      tiles fetched at once from a host not heard from yet
+     * @param maxAttempts       fetches of a tile, including the first, before its failure is reported
+     * @param maxWaitingRetries retries that may wait for their backoff at once
+     */
+    public AdaptiveDownloader(AsyncDownloader delegate, NetworkState networkState, int initialLimit, int maxLimit,
+                              int maxAttempts, int maxWaitingRetries) {
+        mDelegate = delegate;
+        mCacheFirst = delegate instanceof CacheFirst ? (CacheFirst) delegate : null;
+        mNoStore = delegate instanceof NoStore ? (NoStore) delegate : null;
+        mNetworkState = networkState;
+        mInitialLimit = initialLimit;
+        mMaxLimit = maxLimit;
+        mMaxAttempts = maxAttempts;
+        mMaxWaitingRetries = maxWaitingRetries;
+        mTimer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "tile-retry");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        mTimer.setRemoveOnCancelPolicy(true);
+    }
+
+    @Override
+    public byte[] getData(String url) throws IOException {
+        return PendingTile.await(this, url);
+    }
+
+    @Override
+    public byte[] getCachedData(String url) throws IOException {
+        return mDelegate.getCachedData(url);
+    }
+
+    @Override
+    public Cancellable enqueue(String url, Callback callback) {
+        return enqueue(url, callback, true);
+    }
+
+    @Override
+    public Cancellable enqueueNoStore(String url, Callback callback) {
+        return enqueue(url, callback, false);
+    }
+
+    private Cancellable enqueue(String url, Callback callback, boolean store) {
+        if (mCacheFirst != null) {
+            byte[] cached = mCacheFirst.getServableCachedData(url);
+            if (cached != null) {
+                callback.onTile(url, cached);
+                return PendingTile.DONE_ALREADY;
+            }
+        }
+        Task task = new Task(host(url), new PendingTile(url, callback), store);
+        task.mTile.setUpstream(task);
+        submit(task);
+        return task.mTile;
+    }
+
+    /**
+     * @return the number of tiles currently allowed in flight to {@code host}
+     */
+    public int getLimit(String host) {
+        Host state;
+        synchronized (mHosts) {
+            state = mHosts.get(host);
+        }
+        if (state == null) {
+            return mInitialLimit;
+        }
+        synchronized (state) {
+            return state.limit();
+        }
+    }
+
+    public long getRetryCount() {
+        return mRetryCount.get();
+    }
+
+    /**
+     * @return the number of retries given up on because too many were already waiting
+     */
+    public long getDroppedRetryCount() {
+        return mDroppedRetryCount.get();
+    }
+
+    private Host host(String url) {
+        HttpUrl httpUrl = HttpUrl.parse(url);
+        String name = httpUrl == null ? "" : httpUrl.host();
+        synchronized (mHosts) {
+            Host host = mHosts.get(name);
+            if (host == null) {
+                host = new Host(mInitialLimit, mMaxLimit);
+                mHosts.put(name, host);
+            }
+            return host;
+        }
+    }
+
+    private void submit(Task task) {
+        Host host = task.mHost;
+        synchronized (host) {
+            if (task.mState == DONE) {
+                return;
+            }
+            task.mState = QUEUED;
+            host.mQueue.add(task);
+        }
+        drain(host);
+    }
+
+    /**
+     * Starts queued tasks while the host has room for them.
+     */
+    private void drain(final Host host) {
+        while (true) {
+            Task task;
+            synchronized (host) {
+                long now = System.currentTimeMillis();
+                if (now < host.mBlockedUntil) {
+                    if (!host.mUnblockScheduled && !host.mQueue.isEmpty()) {
+                        host.mUnblockScheduled = true;
+                        mTimer.schedule(new Runnable() {
+                            @Override
+                            public void run() {
+                                synchronized (host) {
+                                    host.mUnblockScheduled = false;
+                                }
+                                drain(host);
+                            }
+                        }, host.mBlockedUntil - now, TimeUnit.MILLISECONDS);
+                    }
+                    return;
+                }
+                if (host.mInFlight >= host.limit() || host.mQueue.isEmpty()) {
+                    return;
+                }
+                task = host.mQueue.poll();
+                task.mState = RUNNING;
+                task.mEnqueuing = true;
+                task.mStartNanos = System.nanoTime();
+                task.mAttempts++;
+                host.mInFlight++;
+            }
+            start(task);
+        }
+    }
+
+    private void start(Task task) {
+        Cancellable handle;
+        try {
+            String url = task.mTile.getUrl();
+            if (mCacheFirst != null) {
+                handle = mCacheFirst.enqueueNetwork(url, task, task.mStore);
+            } else if (!task.mStore && mNoStore != null) {
+                handle = mNoStore.enqueueNoStore(url, task);
+            } else {
+                handle = mDelegate.enqueue(url, task);
+            }
+        } catch (RuntimeException e) {
+            task.onFailure(task.mTile.getUrl(), new IOException(e));
+            return;
+        }
+        synchronized (task.mHost) {
+            task.mEnqueuing = false;
+            task.mHandle = handle;
+        }
+        if (task.mTile.isCancelled()) {
+            handle.cancel();
+        }
+    }
+
+    private long backoffMillis(int attempts, long retryAfterMillis) {
+        long ceiling = Math.min(MAX_BACKOFF_MILLIS, BASE_BACKOFF_MILLIS << Math.min(attempts - 1, 16));
+        // at least half the ceiling so retries are spread out but never immediate
+        long delay = ceiling / 2 + (long) (mRandom.nextDouble() * (ceiling / 2));
+        return Math.max(delay, retryAfterMillis);
+    }
+
+    private static boolean isRetryable(IOException e) {
+        if (e instanceof TileHttpException) {
+            return ((TileHttpException) e).isTransient();
+        }
+        return e instanceof SocketTimeoutException || e instanceof ConnectException;
+    }
+
+    private static boolean isOverload(IOException e) {
+        if (e instanceof TileHttpException) {
+            return ((TileHttpException) e).isOverload();
+        }
+        return e instanceof SocketTimeoutException;
+    }
+
+    /**
+     * Per host limit and queue, guarded by the instance.  Times are passed in so the limit can be
+     * exercised with exact latencies.
+     */
+    static final class Host {
+        final ArrayDeque<Task> mQueue = new ArrayDeque<>();
+        private final int mMaxLimit;
+        double mLimit;
+        int mInFlight;
+        long mBlockedUntil;
+        boolean mUnblockScheduled;
+        double mBestLatency = -1;
+        double mLatency = -1;
+        long mLastDecreaseNanos;
+        private boolean mDecreased;
+
+        Host(int initialLimit, int maxLimit) {
+            mLimit = initialLimit;
+            mMaxLimit = maxLimit;
+        }
+
+        int limit() {
+            return Math.max(1, (int) mLimit);
+        }
+
+        void onSuccess(double latencyMillis, long nowNanos) {
+            mLatency = mLatency < 0 ? latencyMillis : mLatency + LATENCY_WEIGHT * (latencyMillis - mLatency);
+            if (mBestLatency < 0 || latencyMillis < mBestLatency) {
+                mBestLatency = latencyMillis;
+            } else {
+                mBestLatency += BEST_LATENCY_DRIFT * (mLatency - mBestLatency);
+            }
+            if (mLatency > LATENCY_TOLERANCE * mBestLatency && mLatency - mBestLatency > MIN_QUEUEING_MILLIS) {
+                decrease(LATENCY_BACKOFF, nowNanos);
+            } else {
+                // about one more per round of fetches at the current limit
+                mLimit = Math.min(mMaxLimit, mLimit + 1 / mLimit);
+            }
+        }
+
+        void onOverload(long retryAfterMillis, long nowMillis, long nowNanos) {
+            decrease(OVERLOAD_BACKOFF, nowNanos);
+            if (retryAfterMillis > 0) {
+                mBlockedUntil = Math.max(mBlockedUntil, nowMillis + retryAfterMillis);
+            }
+        }
+
+        /**
+         * Decreases at most once per round trip, so a burst of failures from one round counts once.
+         */
+        private void decrease(double factor, long nowNanos) {
+            long window = TimeUnit.MILLISECONDS.toNanos((long) Math.max(mLatency, MIN_QUEUEING_MILLIS));
+            if (mDecreased && nowNanos - mLastDecreaseNanos < window) {
+                return;
+            }
+            mDecreased = true;
+            mLastDecreaseNanos = nowNanos;
+            mLimit = Math.max(1, mLimit * factor);
+        }
+    }
+
+    /**
+     * One tile through its attempts.  Its state is guarded by its host.
+     */
+    private final class Task implements Cancellable, Callback {
+        final Host mHost;
+        final PendingTile mTile;
+        final boolean mStore;
+        int mState = QUEUED;
+        int mAttempts;
+        boolean mEnqueuing;
+        long mStartNanos;
+        Cancellable mHandle;
+        Future<?> mRetry;
+
+        Task(Host host, PendingTile tile, boolean store) {
+            mHost = host;
+            mTile = tile;
+            mStore = store;
+        }
+
+        @Override
+        public void cancel() {
+            Cancellable handle = null;
+            synchronized (mHost) {
+                switch (mState) {
+                    case QUEUED:
+                        mHost.mQueue.remove(this);
+                        break;
+                    case RUNNING:
+                        // a cancelled fetch never calls back, so its slot is freed here
+                        handle = mHandle;
+                        mHost.mInFlight--;
+                        break;
+                    case WAITING:
+                        mRetry.cancel(false);
+                        mWaitingRetries.decrementAndGet();
+                        break;
+                    default:
+                        return;
+                }
+                mState = DONE;
+            }
+            if (handle != null) {
+                handle.cancel();
+            }
+            drain(mHost);
+        }
+
+        @Override
+        public void onTile(String url, byte[] data) {
+            synchronized (mHost) {
+                if (mState != RUNNING) {
+                    return;
+                }
+                mState = DONE;
+                mHost.mInFlight--;
+                // a tile delivered before enqueue returned came from a cache and says nothing of the host
+                if (!mEnqueuing && data != null) {
+                    long now = System.nanoTime();
+                    mHost.onSuccess((now - mStartNanos) / 1e6, now);
+                }
+            }
+            drain(mHost);
+            mTile.deliver(data);
+        }
+
+        @Override
+        public void onFailure(String url, IOException e) {
+            boolean retry = isRetryable(e) && mNetworkState.isOnline();
+            long retryAfter = e instanceof TileHttpException ? ((TileHttpException) e).getRetryAfterMillis() : -1;
+            synchronized (mHost) {
+                if (mState != RUNNING) {
+                    return;
+                }
+                mHost.mInFlight--;
+                if (isOverload(e)) {
+                    mHost.onOverload(retryAfter, System.currentTimeMillis(), System.nanoTime());
+                }
+                retry &= mAttempts < mMaxAttempts;
+                if (retry && mWaitingRetries.incrementAndGet() > mMaxWaitingRetries) {
+                    mWaitingRetries.decrementAndGet();
+                    mDroppedRetryCount.incrementAndGet();
+                    retry = false;
+                }
+                if (retry) {
+                    mState = WAITING;
+                    mRetry = mTimer.schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            synchronized (mHost) {
+                                if (mState != WAITING) {
+                                    return;
+                                }
+                                mWaitingRetries.decrementAndGet();
+                                mState = QUEUED;
+                                mHost.mQueue.add(Task.this);
+                            }
+                            mRetryCount.incrementAndGet();
+                            drain(mHost);
+                        }
+                    }, backoffMillis(mAttempts, retryAfter), TimeUnit.MILLISECONDS);
+                } else {
+                    mState = DONE;
+                }
+            }
+            drain(mHost);
+            if (!retry) {
+                mTile.fail(e);
+            } else {
+                Timber.d("retrying " + url + " after " + e.getMessage());
+            }
+        }
+    }
+}
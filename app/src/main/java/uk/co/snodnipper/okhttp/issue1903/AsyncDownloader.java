@@ -0,0 +1,48 @@
+package uk.co.snodnipper.okhttp.issue1903;
+
+import java.io.IOException;
+
+/**
+ * A {@link Downloader} that can also deliver tiles to a callback, so a caller need not park a thread
+ * on every tile in flight.  The number of tiles in flight is then bounded by OkHttp's dispatcher and
+ * its connections rather than by the caller's threads.
+ */
+public interface AsyncDownloader extends Downloader {
+
+    interface Callback {
+        /**
+         * @param data the tile, or null if it could not be fetched
+         */
+        void onTile(String url, byte[] data);
+
+        void onFailure(String url, IOException e);
+    }
+
+    interface Cancellable {
+        /**
+         * Gives up on the tile.  Once this returns the callback will not be called.  Does nothing if
+         * the tile was already delivered.
+         */
+        void cancel();
+    }
+
+    /**
+     * A downloader that can fetch a tile without writing it to the HTTP cache, for tiles that are kept
+     * elsewhere once fetched, such as in an offline store.  Downloaders that wrap one pass the choice
+     * on.
+     */
+    interface NoStore {
+        /**
+         * As {@link AsyncDownloader#enqueue} but the fetched tile is not written to the HTTP cache.
+         */
+        Cancellable enqueueNoStore(String url, Callback callback);
+    }
+
+    /**
+     * Starts fetching a tile.  The callback is called exactly once, unless the tile is cancelled
+     * first, on whichever thread finishes the fetch; a tile held in memory may be delivered before
+     * this returns.  Callbacks should be quick and must not block.
+     * @return a handle to cancel the fetch with
+     */
+    Cancellable enqueue(String url, Callback callback);
+}
@@ -0,0 +1,182 @@
+package uk.co.snodnipper.okhttp.issue1903;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+import okio.BufferedSource;
+import okio.Okio;
+
+/**
+ * Tells whether a tile is fresh in OkHttp's disk cache by reading only the entry's metadata file,
+ * never its body and without opening the cache.  Freshness follows the rules OkHttp applies to a
+ * plain request: {@code max-age}, else {@code Expires}, else a tenth of the time since
+ * {@code Last-Modified}, against the entry's age from {@code Date}, {@code Age} and the times OkHttp
+ * recorded when it was fetched.
+ * <p>
+ * Reads race with the cache editing the entry; an entry being written may be reported as missing or
+ * stale, which only costs a fetch.  Thread safe.
+ */
+public class CacheIndex implements TilePrefetcher.FreshnessProbe {
+
+    private static final String SENT_MILLIS = "OkHttp-Sent-Millis";
+    private static final String RECEIVED_MILLIS = "OkHttp-Received-Millis";
+
+    private static final ThreadLocal<SimpleDateFormat> HTTP_DATE = new ThreadLocal<SimpleDateFormat>() {
+        @Override
+        protected SimpleDateFormat initialValue() {
+            SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+            format.setLenient(false);
+            format.setTimeZone(TimeZone.getTimeZone("GMT"));
+            return format;
+        }
+    };
+
+    private final File mDirectory;
+
+    /**
+     * @param directory the directory of OkHttp's {@link okhttp3.Cache}
+     */
+    public CacheIndex(File directory) {
+        mDirectory = directory;
+    }
+
+    @Override
+    public TilePrefetcher.Freshness getFreshness(long key, String url) {
+        return getFreshness(url, System.currentTimeMillis());
+    }
+
+    /**
+     * @param nowMillis the time freshness is judged at
+     */
+    public TilePrefetcher.Freshness getFreshness(String url, long nowMillis) {
+        String entry = HttpDownloader.md5Hex(url);
+        // an entry without its body was never committed
+        if (!new File(mDirectory, entry + ".1").isFile()) {
+            return TilePrefetcher.Freshness.MISSING;
+        }
+        try {
+            BufferedSource source = Okio.buffer(Okio.source(new File(mDirectory, entry + ".0")));
+            try {
+                return read(source, url, nowMillis);
+            } finally {
+                source.close();
+            }
+        } catch (FileNotFoundException e) {
+            return TilePrefetcher.Freshness.MISSING;
+        } catch (IOException | NumberFormatException e) {
+            // unreadable metadata; OkHttp would discard the entry too
+            return TilePrefetcher.Freshness.MISSING;
+        }
+    }
+
+    /**
+     * Reads the metadata written by OkHttp's {@code Cache.Entry}: the URL, request method, varying
+     * request headers, status line and response headers, one per line, each list after its length.
+     */
+    private static TilePrefetcher.Freshness read(BufferedSource source, String url, long nowMillis)
+            throws IOException {
+        if (!url.equals(source.readUtf8LineStrict()) || !"GET".equals(source.readUtf8LineStrict())) {
+            return TilePrefetcher.Freshness.MISSING;
+        }
+        skipLines(source, Integer.parseInt(source.readUtf8LineStrict()));
+        String statusLine = source.readUtf8LineStrict();
+        if (!statusLine.startsWith("HTTP/1.1 200") && !statusLine.startsWith("HTTP/1.0 200")) {
+            return TilePrefetcher.Freshness.STALE;
+        }
+
+        long maxAgeSeconds = -1;
+        long ageSeconds = -1;
+        long date = -1;
+        long expires = -1;
+        long lastModified = -1;
+        long sent = -1;
+        long received = -1;
+        boolean noCache = false;
+        int headers = Integer.parseInt(source.readUtf8LineStrict());
+        for (int i = 0; i < headers; i++) {
+            String line = source.readUtf8LineStrict();
+            int colon = line.indexOf(':');
+            if (colon <= 0) {
+                continue;
+            }
+            String name = line.substring(0, colon).trim();
+            String value = line.substring(colon + 1).trim();
+            if ("Cache-Control".equalsIgnoreCase(name) || "Pragma".equalsIgnoreCase(name)) {
+                for (String directive : value.split(",")) {
+                    directive = directive.trim().toLowerCase(Locale.US);
+                    if (directive.equals("no-cache") || directive.equals("no-store")) {
+                        noCache = true;
+                    } else if (directive.startsWith("max-age=")) {
+                        maxAgeSeconds = seconds(directive.substring("max-age=".length()));
+                    }
+                }
+            } else if ("Age".equalsIgnoreCase(name)) {
+                ageSeconds = seconds(value);
+            } else if ("Date".equalsIgnoreCase(name)) {
+                date = parseDate(value);
+            } else if ("Expires".equalsIgnoreCase(name)) {
+                expires = parseDate(value);
+            } else if ("Last-Modified".equalsIgnoreCase(name)) {
+                lastModified = parseDate(value);
+            } else if (SENT_MILLIS.equalsIgnoreCase(name)) {
+                sent = Long.parseLong(value);
+            } else if (RECEIVED_MILLIS.equalsIgnoreCase(name)) {
+                received = Long.parseLong(value);
+            }
+        }
+        if (noCache || sent < 0 || received < 0) {
+            return TilePrefetcher.Freshness.STALE;
+        }
+
+        long lifetime;
+        if (maxAgeSeconds != -1) {
+            lifetime = TimeUnit.SECONDS.toMillis(maxAgeSeconds);
+        } else if (expires != -1) {
+            lifetime = Math.max(0, expires - (date != -1 ? date : received));
+        } else if (lastModified != -1 && url.indexOf('?') < 0) {
+            lifetime = Math.max(0, ((date != -1 ? date : sent) - lastModified) / 10);
+        } else {
+            lifetime = 0;
+        }
+
+        long receivedAge = date != -1 ? Math.max(0, received - date) : 0;
+        if (ageSeconds != -1) {
+            receivedAge = Math.max(receivedAge, TimeUnit.SECONDS.toMillis(ageSeconds));
+        }
+        long age = receivedAge + (received - sent) + (nowMillis - received);
+        return age < lifetime ? TilePrefetcher.Freshness.FRESH : TilePrefetcher.Freshness.STALE;
+    }
+
+    private static void skipLines(BufferedSource source, int count) throws IOException {
+        for (int i = 0; i < count; i++) {
+            source.readUtf8LineStrict();
+        }
+    }
+
+    private static long seconds(String value) {
+        try {
+            return Math.max(0, Long.parseLong(value.trim()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return the HTTP date as epoch milliseconds, or -1 if it is not one
+     */
+    static long parseDate(String value) {
+        try {
+            Date date = HTTP_DATE.get().parse(value);
+            return date.getTime();
+        } catch (ParseException e) {
+            return -1;
+        }
+    }
+}
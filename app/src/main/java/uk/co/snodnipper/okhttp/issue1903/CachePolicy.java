@@ -0,0 +1,88 @@
+package uk.co.snodnipper.okhttp.issue1903;
+
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.CacheControl;
+
+/**
+ * Chooses how hard a tile request leans on the HTTP cache for the network it is about to use.  On a
+ * fast unmetered network stale tiles are revalidated; on a metered or slow one any cached tile short
+ * of very old is served as is; offline only the cache is used.
+ */
+public class CachePolicy {
+
+    private final CacheControl mUnmetered;
+    private final CacheControl mConstrained;
+
+    public CachePolicy() {
+        this(new CacheControl.Builder()
+                        .maxStale(7, TimeUnit.DAYS)
+                        .maxAge(3, TimeUnit.DAYS)
+                        .build(),
+                new CacheControl.Builder()
+                        .maxStale(90, TimeUnit.DAYS)
+                        .maxAge(3, TimeUnit.DAYS)
+                        .build());
+    }
+
+    /**
+     * @param unmetered   used on fast or moderate unmetered networks
+     * @param constrained used on metered or slow networks
+     */
+    public CachePolicy(CacheControl unmetered, CacheControl constrained) {
+        mUnmetered = unmetered;
+        mConstrained = constrained;
+    }
+
+    /**
+     * @return true if stale tiles served from the cache should be refreshed in the background, which
+     *         is only worth the data on a fast or moderate unmetered network
+     */
+    public boolean revalidatesInBackground(NetworkState network) {
+        return choose(network) == mUnmetered;
+    }
+
+    /**
+     * @return a cache-only lookup accepting the same staleness as {@link #choose}, so a tile too old
+     *         for the network is a miss and falls through to a request
+     */
+    public CacheControl chooseCacheOnly(NetworkState network) {
+        CacheControl chosen = choose(network);
+        if (chosen.onlyIfCached()) {
+            return chosen;
+        }
+        return copy(chosen).onlyIfCached().build();
+    }
+
+    /**
+     * @return {@link #choose} but asking that the response not be written to the cache, for tiles that
+     *         are stored elsewhere
+     */
+    public CacheControl chooseNoStore(NetworkState network) {
+        return copy(choose(network)).noStore().build();
+    }
+
+    private static CacheControl.Builder copy(CacheControl chosen) {
+        CacheControl.Builder builder = new CacheControl.Builder();
+        if (chosen.onlyIfCached()) {
+            builder.onlyIfCached();
+        }
+        if (chosen.maxAgeSeconds() != -1) {
+            builder.maxAge(chosen.maxAgeSeconds(), TimeUnit.SECONDS);
+        }
+        if (chosen.maxStaleSeconds() != -1) {
+            builder.maxStale(chosen.maxStaleSeconds(), TimeUnit.SECONDS);
+        }
+        return builder;
+    }
+
+    public CacheControl choose(NetworkState network) {
+        if (!network.isOnline()) {
+            return CacheControl.FORCE_CACHE;
+        }
+        if (network.isMetered() || network.getBandwidth() == NetworkState.Bandwidth.SLOW) {
+            return mConstrained;
+        }
+        return mUnmetered;
+    }
+}
@@ -0,0 +1,152 @@
+package uk.co.snodnipper.okhttp.issue1903;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import okhttp3.CacheControl;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import timber.log.Timber;
+
+/**
+ * Refreshes stale cache entries in the background.  Each refresh is a request with
+ * {@code max-age=0}, which OkHttp turns into a conditional GET from the cached ETag or Last-Modified,
+ * so an unchanged tile costs a 304 and the cache entry is updated either way.
+ * <p>
+ * Refreshes are best effort and bounded three ways so panning across a stale region cannot flood the
+ * network: a URL already queued is not queued again, refreshes are started at a limited rate, and the
+ * queue has a fixed size.  Anything over these limits is dropped; the tile is simply still stale the
+ * next time it is drawn.
+ */
+public class CacheRevalidator {
+
+    public static final int DEFAULT_THREADS = 2;
+    public static final int DEFAULT_MAX_QUEUED = 64;
+    public static final double DEFAULT_PER_SECOND = 4;
+    public static final int DEFAULT_BURST = 16;
+
+    private static final CacheControl REVALIDATE = new CacheControl.Builder()
+            .maxAge(0, TimeUnit.SECONDS)
+            .build();
+
+    private final OkHttpClient mClient;
+    private final ThreadPoolExecutor mExecutor;
+    private final Set<String> mQueued = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final double mPerNanosecond;
+    private final int mBurst;
+    private final AtomicLong mRevalidatedCount = new AtomicLong();
+    private final AtomicLong mDroppedCount = new AtomicLong();
+
+    // token bucket, guarded by this
+    private double mTokens;
+    private long mLastRefillNanos = System.nanoTime();
+
+    public CacheRevalidator(OkHttpClient client) {
+        this(client, DEFAULT_THREADS, DEFAULT_MAX_QUEUED, DEFAULT_PER_SECOND, DEFAULT_BURST);
+    }
+
+    /**
+     * @param perSecond sustained number of refreshes started per second
+     * @param burst     number of refreshes that may start at once after a quiet period
+     */
+    public CacheRevalidator(OkHttpClient client, int threads, int maxQueued, double perSecond, int burst) {
+        mClient = client;
+        mPerNanosecond = perSecond / TimeUnit.SECONDS.toNanos(1);
+        mBurst = burst;
+        mTokens = burst;
+        mExecutor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(maxQueued), new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "tile-revalidate-" + mCount.incrementAndGet());
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Queues a refresh of {@code url}'s cache entry.
+     * @return false if the refresh was dropped by one of the limits
+     */
+    public boolean revalidate(final String url) {
+        if (!mQueued.add(url)) {
+            return false;
+        }
+        if (!tryAcquire()) {
+            mQueued.remove(url);
+            mDroppedCount.incrementAndGet();
+            return false;
+        }
+        try {
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        refresh(url);
+                    } finally {
+                        mQueued.remove(url);
+                    }
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            mQueued.remove(url);
+            mDroppedCount.incrementAndGet();
+            return false;
+        }
+    }
+
+    private void refresh(String url) {
+        Request request = new Request.Builder()
+                .cacheControl(REVALIDATE)
+                .url(url)
+                .build();
+        Response response = null;
+        try {
+            response = mClient.newCall(request).execute();
+            // the cache entry is only committed once the body has been read to the end
+            TileBodyReader.discard(response.body());
+            mRevalidatedCount.incrementAndGet();
+        } catch (IOException e) {
+            Timber.d("cannot revalidate " + url + ": " + e);
+        } finally {
+            if (response != null) {
+                response.body().close();
+            }
+        }
+    }
+
+    private synchronized boolean tryAcquire() {
+        long now = System.nanoTime();
+        mTokens = Math.min(mBurst, mTokens + (now - mLastRefillNanos) * mPerNanosecond);
+        mLastRefillNanos = now;
+        if (mTokens < 1) {
+            return false;
+        }
+        mTokens--;
+        return true;
+    }
+
+    public long getRevalidatedCount() {
+        return mRevalidatedCount.get();
+    }
+
+    public long getDroppedCount() {
+        return mDroppedCount.get();
+    }
+}
@@ -0,0 +1,180 @@
+package uk.co.snodnipper.okhttp.issue1903;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import okhttp3.Cache;
+import timber.log.Timber;
+
+/**
+ * Keeps the streaming tile cache within its budget, evicting deep zooms before shallow ones.  OkHttp
+ * evicts in plain LRU order, so casual panning at street level pushes out the few low zoom tiles every
+ * view starts from; this trimmer runs before OkHttp's own limit is reached and ranks entries by
+ * recency plus a bonus for low zooms instead.
+ * <p>
+ * Only the HTTP cache is trimmed.  Downloaded regions live in the {@link MbTilesStore}, which is never
+ * evicted, so streaming cannot cost an offline region its tiles.
+ */
+public class CacheTrimmer {
+
+    /** Share of the budget the cache is trimmed down to, so a trim is not needed after every tile. */
+    private static final double LOW_WATER = 0.9;
+    /** Recency a zoom 0 tile is credited with, as a share of the cache; deeper zooms get less. */
+    public static final double DEFAULT_ZOOM_BIAS = 0.5;
+    /** Zoom at or beyond which a tile gets no bonus. */
+    public static final int DEFAULT_DEEPEST_ZOOM = 20;
+    /** Tiles written between checks of the cache size. */
+    private static final int CHECK_INTERVAL = 64;
+
+    private final Cache mCache;
+    private final long mBudget;
+    private final double mZoomBias;
+    private final int mDeepestZoom;
+    private final ExecutorService mExecutor;
+    private final AtomicInteger mWritesSinceCheck = new AtomicInteger();
+    private final AtomicBoolean mTrimming = new AtomicBoolean();
+
+    public CacheTrimmer(Cache cache, long budget) {
+        this(cache, budget, DEFAULT_ZOOM_BIAS, DEFAULT_DEEPEST_ZOOM);
+    }
+
+    /**
+     * @param budget      bytes the cache is kept within; keep OkHttp's own limit above it
+     * @param zoomBias    recency credited to a zoom 0 tile, as a share of the cache, falling linearly to
+     *                    nothing at {@code deepestZoom}; 0 gives plain LRU
+     */
+    public CacheTrimmer(Cache cache, long budget, double zoomBias, int deepestZoom) {
+        mCache = cache;
+        mBudget = budget;
+        mZoomBias = zoomBias;
+        mDeepestZoom = deepestZoom;
+        mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "tile-cache-trim");
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+    }
+
+    public long getBudget() {
+        return mBudget;
+    }
+
+    /**
+     * Call after a tile is written to the cache.  Every so often checks the cache size and, if it is
+     * over budget, trims it on a background thread.
+     */
+    public void onWrite() {
+        if (mWritesSinceCheck.incrementAndGet() < CHECK_INTERVAL) {
+            return;
+        }
+        mWritesSinceCheck.set(0);
+        if (!mTrimming.compareAndSet(false, true)) {
+            return;
+        }
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (mCache.size() > mBudget) {
+                        trim();
+                    }
+                } catch (IOException e) {
+                    Timber.e(e, "cannot trim cache");
+                } finally {
+                    mTrimming.set(false);
+                }
+            }
+        });
+    }
+
+    /**
+     * Evicts the lowest ranked entries until the cache is below {@code LOW_WATER} of its budget.  Reads
+     * the metadata of every entry, so call off the main thread.
+     * @return the number of entries evicted
+     */
+    public int trim() throws IOException {
+        long size = mCache.size();
+        long target = (long) (mBudget * LOW_WATER);
+        if (size <= target) {
+            return 0;
+        }
+
+        // OkHttp lists its entries least recently used first
+        List<String> urls = new ArrayList<>();
+        Iterator<String> iterator = mCache.urls();
+        while (iterator.hasNext()) {
+            urls.add(iterator.next());
+        }
+        int count = urls.size();
+        Integer[] order = new Integer[count];
+        final double[] scores = new double[count];
+        for (int i = 0; i < count; i++) {
+            order[i] = i;
+            scores[i] = score(i, count, zoomOf(urls.get(i)));
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Double.compare(scores[a], scores[b]);
+            }
+        });
+
+        Set<String> evict = new HashSet<>();
+        for (int i = 0; i < count && size > target; i++) {
+            String url = urls.get(order[i]);
+            evict.add(url);
+            size -= entrySize(url);
+        }
+
+        int evicted = 0;
+        iterator = mCache.urls();
+        while (iterator.hasNext()) {
+            if (evict.contains(iterator.next())) {
+                iterator.remove();
+                evicted++;
+            }
+        }
+        Timber.d("trimmed " + evicted + " of " + count + " cached tiles, now " + mCache.size() + " bytes");
+        return evicted;
+    }
+
+    /**
+     * @param rank  position in least recently used first order
+     * @param zoom  the tile's zoom, or -1 if the entry is not a tile
+     * @return the entry's rank for eviction, lowest first
+     */
+    double score(int rank, int count, int zoom) {
+        double recency = count <= 1 ? 0 : rank / (double) (count - 1);
+        if (zoom < 0 || zoom >= mDeepestZoom) {
+            return recency;
+        }
+        return recency + mZoomBias * (mDeepestZoom - zoom) / mDeepestZoom;
+    }
+
+    private static int zoomOf(String url) {
+        long key = TileKey.fromUrl(url);
+        return key == TileKey.INVALID ? -1 : TileKey.zoom(key);
+    }
+
+    private long entrySize(String url) {
+        String entry = HttpDownloader.md5Hex(url);
+        File directory = mCache.directory();
+        return new File(directory, entry + ".0").length() + new File(directory, entry + ".1").length();
+    }
+}
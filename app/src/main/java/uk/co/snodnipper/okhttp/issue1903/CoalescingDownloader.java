@@ -0,0 +1,161 @@
+package uk.co.snodnipper.okhttp.issue1903;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collapses concurrent requests for the same tile into one fetch.  The first request for a tile
+ * starts the fetch and every request that arrives while it is in flight shares its result.
+ * <p>
+ * Cancelling one request only detaches it from the fetch; the fetch itself is cancelled once every
+ * request sharing it has been.
+ * <p>
+ * A fetch is made without writing the HTTP cache only when the request that starts it was enqueued
+ * with {@link #enqueueNoStore}.  A map request that joins such a fetch still gets the tile, which is
+ * also written to the offline store the map reads first, so the two never fetch it twice.
+ */
+public class CoalescingDownloader implements AsyncDownloader, AsyncDownloader.NoStore {
+
+    private final AsyncDownloader mDelegate;
+    private final Map<Long, Flight> mFlights = new HashMap<>();
+    private final AtomicLong mCoalescedCount = new AtomicLong();
+
+    public CoalescingDownloader(AsyncDownloader delegate) {
+        mDelegate = delegate;
+    }
+
+    @Override
+    public byte[] getData(String url) throws IOException {
+        return PendingTile.await(this, url);
+    }
+
+    @Override
+    public Cancellable enqueue(String url, Callback callback) {
+        return enqueue(url, callback, true);
+    }
+
+    @Override
+    public Cancellable enqueueNoStore(String url, Callback callback) {
+        return enqueue(url, callback, false);
+    }
+
+    private Cancellable enqueue(String url, Callback callback, boolean store) {
+        final long key = TileKey.fromUrl(url);
+        if (key == TileKey.INVALID) {
+            return fetch(url, callback, store);
+        }
+
+        final Flight flight;
+        boolean leader = false;
+        final PendingTile tile;
+        synchronized (mFlights) {
+            Flight existing = mFlights.get(key);
+            if (existing == null) {
+                flight = new Flight();
+                mFlights.put(key, flight);
+                leader = true;
+            } else {
+                flight = existing;
+                mCoalescedCount.incrementAndGet();
+            }
+            tile = new PendingTile(url, callback);
+            flight.mTiles.add(tile);
+        }
+        tile.setUpstream(new Cancellable() {
+            @Override
+            public void cancel() {
+                detach(key, flight, tile);
+            }
+        });
+        if (leader) {
+            flight.setUpstream(fetch(url, new Callback() {
+                @Override
+                public void onTile(String url, byte[] data) {
+                    for (PendingTile waiting : land(key, flight)) {
+                        waiting.deliver(data);
+                    }
+                }
+
+                @Override
+                public void onFailure(String url, IOException e) {
+                    for (PendingTile waiting : land(key, flight)) {
+                        waiting.fail(e);
+                    }
+                }
+            }, store));
+        }
+        return tile;
+    }
+
+    private Cancellable fetch(String url, Callback callback, boolean store) {
+        return !store && mDelegate instanceof NoStore
+                ? ((NoStore) mDelegate).enqueueNoStore(url, callback)
+                : mDelegate.enqueue(url, callback);
+    }
+
+    /**
+     * Cache lookups are cheap and never coalesced.
+     */
+    @Override
+    public byte[] getCachedData(String url) throws IOException {
+        return mDelegate.getCachedData(url);
+    }
+
+    /**
+     * @return the tiles waiting for {@code flight}, which is no longer joinable
+     */
+    private List<PendingTile> land(long key, Flight flight) {
+        synchronized (mFlights) {
+            if (mFlights.get(key) == flight) {
+                mFlights.remove(key);
+            }
+            return new ArrayList<>(flight.mTiles);
+        }
+    }
+
+    private void detach(long key, Flight flight, PendingTile tile) {
+        boolean abandoned;
+        synchronized (mFlights) {
+            flight.mTiles.remove(tile);
+            abandoned = flight.mTiles.isEmpty();
+            if (abandoned && mFlights.get(key) == flight) {
+                mFlights.remove(key);
+            }
+        }
+        if (abandoned) {
+            flight.cancel();
+        }
+    }
+
+    /**
+     * @return the number of requests that were served by another request's fetch
+     */
+    public long getCoalescedCount() {
+        return mCoalescedCount.get();
+    }
+
+    private static final class Flight {
+        // guarded by mFlights
+        final List<PendingTile> mTiles = new ArrayList<>(1);
+        private Cancellable mUpstream;
+        private boolean mCancelled;
+
+        synchronized void setUpstream(Cancellable upstream) {
+            mUpstream = upstream;
+            if (mCancelled) {
+                upstream.cancel();
+            }
+        }
+
+        synchronized void cancel() {
+            mCancelled = true;
+            if (mUpstream != null) {
+                mUpstream.cancel();
+            }
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package uk.co.snodnipper.okhttp.issue1903;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.telephony.TelephonyManager;
+
+import timber.log.Timber;
+
+/**
+ * Tracks connectivity from the system's broadcasts so the state can be read for every tile without
+ * asking {@link ConnectivityManager}, an IPC, each time.
+ */
+public class ConnectivityMonitor extends BroadcastReceiver implements NetworkState {
+
+    private final ConnectivityManager mConnectivityManager;
+
+    private volatile boolean mOnline;
+    private volatile boolean mMetered;
+    private volatile Bandwidth mBandwidth = Bandwidth.UNKNOWN;
+
+    /**
+     * Registers with the application context, so the monitor lives as long as the process.
+     */
+    public ConnectivityMonitor(Context context) {
+        Context application = context.getApplicationContext();
+        mConnectivityManager = (ConnectivityManager) application.getSystemService(Context.CONNECTIVITY_SERVICE);
+        update();
+        application.registerReceiver(this, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+    }
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        update();
+    }
+
+    private void update() {
+        NetworkInfo info = mConnectivityManager.getActiveNetworkInfo();
+        mOnline = info != null && info.isConnectedOrConnecting();
+        mMetered = mConnectivityManager.isActiveNetworkMetered();
+        mBandwidth = info == null ? Bandwidth.UNKNOWN : bandwidthOf(info);
+        Timber.d("network: online " + mOnline + ", metered " + mMetered + ", bandwidth " + mBandwidth);
+    }
+
+    @Override
+    public boolean isOnline() {
+        return mOnline;
+    }
+
+    @Override
+    public boolean isMetered() {
+        return mMetered;
+    }
+
+    @Override
+    public Bandwidth getBandwidth() {
+        return mBandwidth;
+    }
+
+    private static Bandwidth bandwidthOf(NetworkInfo info) {
+        switch (info.getType()) {
+            case ConnectivityManager.TYPE_WIFI:
+            case ConnectivityManager.TYPE_ETHERNET:
+            case ConnectivityManager.TYPE_WIMAX:
+                return Bandwidth.FAST;
+            case ConnectivityManager.TYPE_MOBILE:
+                break;
+            default:
+                return Bandwidth.UNKNOWN;
+        }
+        switch (info.getSubtype()) {
+            case TelephonyManager.NETWORK_TYPE_GPRS:
+            case TelephonyManager.NETWORK_TYPE_EDGE:
+            case TelephonyManager.NETWORK_TYPE_CDMA:
+            case TelephonyManager.NETWORK_TYPE_1xRTT:
+            case TelephonyManager.NETWORK_TYPE_IDEN:
+                return Bandwidth.SLOW;
+            case TelephonyManager.NETWORK_TYPE_UMTS:
+            case TelephonyManager.NETWORK_TYPE_EVDO_0:
+            case TelephonyManager.NETWORK_TYPE_EVDO_A:
+            case TelephonyManager.NETWORK_TYPE_EVDO_B:
+            case TelephonyManager.NETWORK_TYPE_EHRPD:
+            case TelephonyManager.NETWORK_TYPE_HSDPA:
+            case TelephonyManager.NETWORK_TYPE_HSUPA:
+            case TelephonyManager.NETWORK_TYPE_HSPA:
+                return Bandwidth.MODERATE;
+            case TelephonyManager.NETWORK_TYPE_HSPAP:
+            case TelephonyManager.NETWORK_TYPE_LTE:
+                return Bandwidth.FAST;
+            default:
+                return Bandwidth.UNKNOWN;
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package uk.co.snodnipper.okhttp.issue1903;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The definition of a region download: the polygon rings, buffer and zoom range.  A job always
+ * enumerates its tiles in the same order, so a tile's position in {@link #tiles()} identifies it in
+ * the job's {@link DownloadJournal}.  The job also keeps its tile count at each zoom as enumerated
+ * when it was created, so a job saved by a build that enumerates differently is recognised rather
+ * than resumed against the wrong journal entries.
+ */
+public final class DownloadJob {
+
+    private static final int VERSION = 2;
+
+    private final long mId;
+    private final List<double[]> mRings;
+    private final int mBufferTiles;
+    private final int mMinZoom;
+    private final int mMaxZoom;
+    private final long[] mTilesPerZoom;
+    private final int mAttempts;
+
+    public DownloadJob(long id, List<double[]> rings, int bufferTiles, int minZoom, int maxZoom) {
+        this(id, rings, bufferTiles, minZoom, maxZoom, null, 0);
+    }
+
+    /**
+     * @param tilesPerZoom tile counts as enumerated when the job was created, or null to count now
+     */
+    private DownloadJob(long id, List<double[]> rings, int bufferTiles, int minZoom, int maxZoom,
+                        long[] tilesPerZoom, int attempts) {
+        mId = id;
+        mRings = Collections.unmodifiableList(new ArrayList<>(rings));
+        mBufferTiles = bufferTiles;
+        mMinZoom = minZoom;
+        mMaxZoom = maxZoom;
+        mTilesPerZoom = tilesPerZoom != null ? tilesPerZoom : countTiles();
+        mAttempts = attempts;
+    }
+
+    public long getId() {
+        return mId;
+    }
+
+    public int getMinZoom() {
+        return mMinZoom;
+    }
+
+    public int getMaxZoom() {
+        return mMaxZoom;
+    }
+
+    /**
+     * @return the number of times the job has been started, including resumptions
+     */
+    public int getAttempts() {
+        return mAttempts;
+    }
+
+    /**
+     * @return this job with one more attempt recorded
+     */
+    public DownloadJob nextAttempt() {
+        return new DownloadJob(mId, mRings, mBufferTiles, mMinZoom, mMaxZoom, mTilesPerZoom, mAttempts + 1);
+    }
+
+    /**
+     * @return false if the tiles are no longer enumerated as they were when the job was created, so
+     *     its journal's ordinals no longer name the same tiles
+     */
+    public boolean matchesEnumeration() {
+        return Arrays.equals(mTilesPerZoom, countTiles());
+    }
+
+    private long[] countTiles() {
+        List<TileCoverage> coverage = Collections.singletonList(getCoverage());
+        long[] tilesPerZoom = new long[mMaxZoom - mMinZoom + 1];
+        for (int zoom = mMinZoom; zoom <= mMaxZoom; zoom++) {
+            tilesPerZoom[zoom - mMinZoom] = RegionEstimator.count(coverage, zoom);
+        }
+        return tilesPerZoom;
+    }
+
+    public TileCoverage getCoverage() {
+        return new PolygonCoverage(mRings, mBufferTiles);
+    }
+
+    /**
+     * @return a new iterator over the job's tiles, in journal order
+     */
+    public TileIterator tiles() {
+        return new TileIterator(getCoverage(), mMinZoom, mMaxZoom);
+    }
+
+    void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(VERSION);
+        out.writeLong(mId);
+        out.writeInt(mBufferTiles);
+        out.writeInt(mMinZoom);
+        out.writeInt(mMaxZoom);
+        out.writeInt(mAttempts);
+        for (long tiles : mTilesPerZoom) {
+            out.writeLong(tiles);
+        }
+        out.writeInt(mRings.size());
+        for (double[] ring : mRings) {
+            out.writeInt(ring.length);
+            for (double value : ring) {
+                out.writeDouble(value);
+            }
+        }
+    }
+
+    static DownloadJob readFrom(DataInputStream in) throws IOException {
+        int version = in.readInt();
+        if (version != VERSION) {
+            throw new IOException("unsupported job version " + version);
+        }
+        long id = in.readLong();
+        int bufferTiles = in.readInt();
+        int minZoom = in.readInt();
+        int maxZoom = in.readInt();
+        int attempts = in.readInt();
+        long[] tilesPerZoom = new long[maxZoom - minZoom + 1];
+        for (int i = 0; i < tilesPerZoom.length; i++) {
+            tilesPerZoom[i] = in.readLong();
+        }
+        int ringCount = in.readInt();
+        List<double[]> rings = new ArrayList<>(ringCount);
+        for (int r = 0; r < ringCount; r++) {
+            double[] ring = new double[in.readInt()];
+            for (int i = 0; i < ring.length; i++) {
+                ring[i] = in.readDouble();
+            }
+            rings.add(ring);
+        }
+        return new DownloadJob(id, rings, bufferTiles, minZoom, maxZoom, tilesPerZoom, attempts);
+    }
+}
@@ -0,0 +1,93 @@
+package uk.co.snodnipper.okhttp.issue1903;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import timber.log.Timber;
+
+/**
+ * Keeps unfinished {@link DownloadJob}s and their {@link DownloadJournal}s in a directory so they can
+ * be resumed after the process dies.
+ */
+public class DownloadJobStore {
+
+    private static final String JOB_SUFFIX = ".job";
+    private static final String JOURNAL_SUFFIX = ".journal";
+
+    private final File mDirectory;
+
+    public DownloadJobStore(File directory) {
+        mDirectory = directory;
+    }
+
+    public void save(DownloadJob job) throws IOException {
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            throw new IOException("cannot create " + mDirectory);
+        }
+        File temp = new File(mDirectory, job.getId() + JOB_SUFFIX + ".tmp");
+        FileOutputStream fileOut = new FileOutputStream(temp);
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut));
+            job.writeTo(out);
+            out.flush();
+            fileOut.getFD().sync();
+        } finally {
+            fileOut.close();
+        }
+        if (!temp.renameTo(jobFile(job))) {
+            throw new IOException("cannot save " + jobFile(job));
+        }
+    }
+
+    public DownloadJournal openJournal(DownloadJob job) throws IOException {
+        return new DownloadJournal(new File(mDirectory, job.getId() + JOURNAL_SUFFIX));
+    }
+
+    /**
+     * @return saved jobs, oldest first.  Jobs that cannot be read, as those saved in an older format,
+     *     are deleted
+     */
+    public List<DownloadJob> list() throws IOException {
+        List<DownloadJob> jobs = new ArrayList<>();
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return jobs;
+        }
+        Arrays.sort(files);
+        for (File file : files) {
+            if (!file.getName().endsWith(JOB_SUFFIX)) {
+                continue;
+            }
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                jobs.add(DownloadJob.readFrom(in));
+            } catch (IOException e) {
+                Timber.e(e, "discarding unreadable job " + file);
+                String id = file.getName().substring(0, file.getName().length() - JOB_SUFFIX.length());
+                file.delete();
+                new File(mDirectory, id + JOURNAL_SUFFIX).delete();
+            } finally {
+                in.close();
+            }
+        }
+        return jobs;
+    }
+
+    public void delete(DownloadJob job) {
+        jobFile(job).delete();
+        new File(mDirectory, job.getId() + JOURNAL_SUFFIX).delete();
+    }
+
+    private File jobFile(DownloadJob job) {
+        return new File(mDirectory, job.getId() + JOB_SUFFIX);
+    }
+}
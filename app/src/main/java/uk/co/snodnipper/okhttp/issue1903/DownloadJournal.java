@@ -0,0 +1,214 @@
+package uk.co.snodnipper.okhttp.issue1903;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Records which tiles of a {@link DownloadJob} are done as a bitmap over the job's enumeration order.
+ * <p>
+ * Completions are appended to the file in batches, each batch written with one {@code write} and one
+ * {@code fsync}, so the cost of durability is paid per batch rather than per tile.  When the appended
+ * batches outgrow the bitmap the file is rewritten as a single bitmap snapshot.  A batch torn by a
+ * crash is ignored on reload; its tiles are simply downloaded again.
+ * <p>
+ * Thread safe.
+ */
+public class DownloadJournal implements Closeable {
+
+    public static final int DEFAULT_BATCH_SIZE = 512;
+    public static final long DEFAULT_BATCH_MILLIS = 2000;
+
+    private static final byte RECORD_BITMAP = 'B';
+    private static final byte RECORD_BATCH = 'O';
+
+    private final File mFile;
+    private final int mBatchSize;
+    private final long mBatchMillis;
+
+    private long[] mDone = new long[16];
+    private long mDoneCount;
+
+    private int[] mPending;
+    private int mPendingCount;
+    private long mLastFlushMillis = System.currentTimeMillis();
+    private long mJournalBytes;
+    private FileOutputStream mOut;
+
+    public DownloadJournal(File file) throws IOException {
+        this(file, DEFAULT_BATCH_SIZE, DEFAULT_BATCH_MILLIS);
+    }
+
+    public DownloadJournal(File file, int batchSize, long batchMillis) throws IOException {
+        mFile = file;
+        mBatchSize = batchSize;
+        mBatchMillis = batchMillis;
+        mPending = new int[batchSize];
+        boolean intact = load();
+        mOut = new FileOutputStream(mFile, true);
+        if (!intact) {
+            // appending after a torn record would misalign every later batch
+            compact();
+        }
+    }
+
+    public synchronized boolean isDone(long ordinal) {
+        int word = (int) (ordinal >>> 6);
+        return word < mDone.length && (mDone[word] & (1L << ordinal)) != 0;
+    }
+
+    public synchronized long getDoneCount() {
+        return mDoneCount;
+    }
+
+    /**
+     * Marks a tile done.  It is durable once its batch is flushed, by size, age or {@link #flush()}.
+     */
+    public synchronized void markDone(long ordinal) throws IOException {
+        if (ordinal < 0 || ordinal > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("ordinal out of range: " + ordinal);
+        }
+        if (!set(ordinal)) {
+            return;
+        }
+        mPending[mPendingCount++] = (int) ordinal;
+        if (mPendingCount == mBatchSize || System.currentTimeMillis() - mLastFlushMillis >= mBatchMillis) {
+            flush();
+        }
+    }
+
+    public synchronized void flush() throws IOException {
+        mLastFlushMillis = System.currentTimeMillis();
+        if (mPendingCount == 0) {
+            return;
+        }
+        if (mJournalBytes > 4L * mDone.length * 8) {
+            // batches now cost more to replay than the bitmap itself
+            mPendingCount = 0;
+            compact();
+            return;
+        }
+        int size = 1 + 4 + 4 * mPendingCount;
+        byte[] record = new byte[size];
+        record[0] = RECORD_BATCH;
+        putInt(record, 1, mPendingCount);
+        for (int i = 0; i < mPendingCount; i++) {
+            putInt(record, 5 + 4 * i, mPending[i]);
+        }
+        mOut.write(record);
+        mOut.getFD().sync();
+        mJournalBytes += size;
+        mPendingCount = 0;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            mOut.close();
+        }
+    }
+
+    private void compact() throws IOException {
+        File temp = new File(mFile.getPath() + ".tmp");
+        FileOutputStream fileOut = new FileOutputStream(temp);
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut));
+            out.writeByte(RECORD_BITMAP);
+            out.writeInt(mDone.length);
+            for (long word : mDone) {
+                out.writeLong(word);
+            }
+            out.flush();
+            fileOut.getFD().sync();
+        } finally {
+            fileOut.close();
+        }
+        mOut.close();
+        if (!temp.renameTo(mFile)) {
+            throw new IOException("cannot replace " + mFile);
+        }
+        mJournalBytes = 0;
+        mOut = new FileOutputStream(mFile, true);
+    }
+
+    /**
+     * @return false if the file ends in a partial or unknown record
+     */
+    private boolean load() throws IOException {
+        DataInputStream in;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+        } catch (FileNotFoundException e) {
+            return true;
+        }
+        try {
+            while (true) {
+                int type = in.read();
+                if (type == -1) {
+                    return true;
+                }
+                if (type == RECORD_BITMAP) {
+                    long[] words = new long[in.readInt()];
+                    for (int i = 0; i < words.length; i++) {
+                        words[i] = in.readLong();
+                    }
+                    for (int i = 0; i < words.length; i++) {
+                        for (long bits = words[i]; bits != 0; bits &= bits - 1) {
+                            set(64L * i + Long.numberOfTrailingZeros(bits));
+                        }
+                    }
+                } else if (type == RECORD_BATCH) {
+                    int count = in.readInt();
+                    int[] ordinals = new int[count];
+                    for (int i = 0; i < count; i++) {
+                        ordinals[i] = in.readInt();
+                    }
+                    // only apply a batch once it has been read completely
+                    for (int ordinal : ordinals) {
+                        set(ordinal);
+                    }
+                    mJournalBytes += 1 + 4 + 4 * count;
+                } else {
+                    return false;
+                }
+            }
+        } catch (EOFException torn) {
+            // the last batch was being written when the process died
+            return false;
+        } finally {
+            in.close();
+        }
+    }
+
+    private boolean set(long ordinal) {
+        int word = (int) (ordinal >>> 6);
+        if (word >= mDone.length) {
+            mDone = Arrays.copyOf(mDone, Math.max(word + 1, mDone.length * 2));
+        }
+        long bit = 1L << ordinal;
+        if ((mDone[word] & bit) != 0) {
+            return false;
+        }
+        mDone[word] |= bit;
+        mDoneCount++;
+        return true;
+    }
+
+    private static void putInt(byte[] bytes, int offset, int value) {
+        bytes[offset] = (byte) (value >>> 24);
+        bytes[offset + 1] = (byte) (value >>> 16);
+        bytes[offset + 2] = (byte) (value >>> 8);
+        bytes[offset + 3] = (byte) value;
+    }
+}
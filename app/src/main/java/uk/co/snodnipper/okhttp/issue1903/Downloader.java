@@ -5,4 +5,11 @@ import java.io.IOException;
 public interface Downloader {
 
     byte[] getData(String url) throws IOException;
+
+    /**
+     * As {@link #getData(String)} but never goes to the network, so it is quick enough to call while
+     * the map is waiting for a tile.
+     * @return the tile if it is held locally, otherwise null
+     */
+    byte[] getCachedData(String url) throws IOException;
 }
@@ -0,0 +1,46 @@
+package uk.co.snodnipper.okhttp.issue1903;
+
+/**
+ * Covers every tile of a latitude / longitude bounding box.
+ */
+public class EnvelopeCoverage implements TileCoverage {
+
+    /** The box in world units, projected once so each zoom only scales it. */
+    private final double mMinX;
+    private final double mMinY;
+    private final double mMaxX;
+    private final double mMaxY;
+
+    public EnvelopeCoverage(double minLon, double minLat, double maxLon, double maxLat) {
+        mMinX = TileMath.lonToWorldX(minLon);
+        mMaxX = TileMath.lonToWorldX(maxLon);
+        // y grows southwards
+        mMinY = TileMath.latToWorldY(maxLat);
+        mMaxY = TileMath.latToWorldY(minLat);
+    }
+
+    @Override
+    public int minRow(int zoom) {
+        return TileMath.worldToTile(mMinY, zoom);
+    }
+
+    @Override
+    public int maxRow(int zoom) {
+        return TileMath.worldToTile(mMaxY, zoom);
+    }
+
+    @Override
+    public void getSpans(int zoom, int y, TileSpans spans) {
+        spans.clear();
+        if (y >= minRow(zoom) && y <= maxRow(zoom)) {
+            spans.add(TileMath.worldToTile(mMinX, zoom), TileMath.worldToTile(mMaxX, zoom));
+        }
+    }
+
+    @Override
+    public long count(int zoom, int fromRow, int toRow) {
+        long rows = Math.min(toRow, maxRow(zoom)) - Math.max(fromRow, minRow(zoom)) + 1;
+        long columns = TileMath.worldToTile(mMaxX, zoom) - TileMath.worldToTile(mMinX, zoom) + 1;
+        return rows <= 0 || columns <= 0 ? 0 : rows * columns;
+    }
+}
@@ -0,0 +1,152 @@
+package uk.co.snodnipper.okhttp.issue1903;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+
+/**
+ * Reports how each host of a {@link TileSource} performs and retries a failed tile once on another
+ * host.  Failures are only counted while online; a cache miss when offline says nothing about a host.
+ * A tile enqueued with {@link #enqueueNoStore} is fetched from each host the same way, if the delegate
+ * can.
+ */
+public class FailoverDownloader implements AsyncDownloader, AsyncDownloader.NoStore {
+
+    private final AsyncDownloader mDelegate;
+    private final TileSource mSource;
+    private final NetworkState mNetworkState;
+
+    public FailoverDownloader(AsyncDownloader delegate, TileSource source, NetworkState networkState) {
+        mDelegate = delegate;
+        mSource = source;
+        mNetworkState = networkState;
+    }
+
+    @Override
+    public byte[] getData(String url) throws IOException {
+        byte[] data = null;
+        IOException failure = null;
+        try {
+            data = fetch(url);
+        } catch (IOException e) {
+            if (e instanceof InterruptedIOException && !(e instanceof SocketTimeoutException)) {
+                // cancelled, not failed
+                throw e;
+            }
+            failure = e;
+        }
+        if (data != null || !mNetworkState.isOnline() || Thread.currentThread().isInterrupted()) {
+            return rethrowIfFailed(data, failure);
+        }
+        String alternate = mSource.alternate(url);
+        return alternate == null ? rethrowIfFailed(null, failure) : fetch(alternate);
+    }
+
+    private static byte[] rethrowIfFailed(byte[] data, IOException failure) throws IOException {
+        if (failure != null) {
+            throw failure;
+        }
+        return data;
+    }
+
+    private byte[] fetch(String url) throws IOException {
+        long start = System.currentTimeMillis();
+        byte[] data;
+        try {
+            data = mDelegate.getData(url);
+        } catch (InterruptedIOException e) {
+            if (e instanceof SocketTimeoutException) {
+                mSource.reportFailure(url);
+            }
+            throw e;
+        } catch (IOException e) {
+            if (mNetworkState.isOnline()) {
+                mSource.reportFailure(url);
+            }
+            throw e;
+        }
+        if (data != null) {
+            mSource.reportSuccess(url, System.currentTimeMillis() - start);
+        } else if (mNetworkState.isOnline() && !Thread.currentThread().isInterrupted()) {
+            mSource.reportFailure(url);
+        }
+        return data;
+    }
+
+    @Override
+    public Cancellable enqueue(String url, Callback callback) {
+        PendingTile tile = new PendingTile(url, callback);
+        enqueue(tile, url, true, true);
+        return tile;
+    }
+
+    @Override
+    public Cancellable enqueueNoStore(String url, Callback callback) {
+        PendingTile tile = new PendingTile(url, callback);
+        enqueue(tile, url, true, false);
+        return tile;
+    }
+
+    /**
+     * @param failover whether to try another host if this one fails
+     * @param store    whether the tile is written to the delegate's cache
+     */
+    private void enqueue(final PendingTile tile, final String url, final boolean failover, final boolean store) {
+        final long start = System.currentTimeMillis();
+        Callback callback = new Callback() {
+            @Override
+            public void onTile(String url, byte[] data) {
+                if (data != null) {
+                    mSource.reportSuccess(url, System.currentTimeMillis() - start);
+                    tile.deliver(data);
+                } else if (mNetworkState.isOnline() && !tile.isCancelled()) {
+                    mSource.reportFailure(url);
+                    retry(tile, url, failover, store, null);
+                } else {
+                    tile.deliver(null);
+                }
+            }
+
+            @Override
+            public void onFailure(String url, IOException e) {
+                boolean timedOut = e instanceof SocketTimeoutException;
+                if (e instanceof InterruptedIOException && !timedOut) {
+                    // cancelled, not failed
+                    tile.fail(e);
+                    return;
+                }
+                boolean online = mNetworkState.isOnline();
+                if (online) {
+                    mSource.reportFailure(url);
+                }
+                if (online && !tile.isCancelled()) {
+                    retry(tile, url, failover, store, e);
+                } else {
+                    tile.fail(e);
+                }
+            }
+        };
+        tile.setUpstream(!store && mDelegate instanceof NoStore
+                ? ((NoStore) mDelegate).enqueueNoStore(url, callback)
+                : mDelegate.enqueue(url, callback));
+    }
+
+    /**
+     * @param failure why {@code url} failed, or null if it returned no tile
+     */
+    private void retry(PendingTile tile, String url, boolean failover, boolean store, IOException failure) {
+        String alternate = failover ? mSource.alternate(url) : null;
+        if (alternate != null) {
+            enqueue(tile, alternate, false, store);
+        } else if (failure != null) {
+            tile.fail(failure);
+        } else {
+            tile.deliver(null);
+        }
+    }
+
+    @Override
+    public byte[] getCachedData(String url) throws IOException {
+        return mDelegate.getCachedData(url);
+    }
+}
@@ -0,0 +1,678 @@
+package uk.co.snodnipper.okhttp.issue1903;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import okhttp3.Cache;
+import okhttp3.CacheControl;
+import okhttp3.Call;
+import okhttp3.ConnectionPool;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import timber.log.Timber;
+
+/**
+ * Fetches tiles over HTTP through OkHttp's disk cache.  Free of Android so the request path can be
+ * exercised on the JVM; {@link DownloaderImpl} supplies the device's cache directory and connectivity.
+ */
+public class HttpDownloader implements AsyncDownloader, AsyncDownloader.NoStore, AdaptiveDownloader.CacheFirst,
+        RegionEstimator.CacheProbe, TilePrefetcher.FreshnessProbe {
+    /** Idle connections kept alive so bulk downloads reuse sockets rather than reconnect per tile. */
+    private static final int MAX_IDLE_CONNECTIONS = TilePrefetcher.DEFAULT_MAX_IN_FLIGHT;
+    private static final long KEEP_ALIVE_MINUTES = 5;
+    /** Abandoned fetches allowed to keep draining into the cache at once; further ones are cancelled. */
+    public static final int DEFAULT_MAX_ORPHANED_DRAINS = 8;
+    /**
+     * OkHttp's own LRU limit is this share above the budget the {@link CacheTrimmer} keeps to, so it
+     * only acts if trimming falls behind.
+     */
+    private static final int LRU_HEADROOM_DIVISOR = 4;
+
+    protected final OkHttpClient mClient;
+
+    private final NetworkState mNetworkState;
+    private final CachePolicy mCachePolicy = new CachePolicy();
+
+    private final Cache mCache;
+    private final File mCacheDirectory;
+    private final CacheIndex mCacheIndex;
+    private final CacheTrimmer mTrimmer;
+
+    /**
+     * Runs detached fetches.  Unbounded, but every thread is either serving a waiting caller or one of
+     * the {@code mOrphanPermits} orphans, so the thread count is bounded by those two.
+     */
+    private final ExecutorService mFetchExecutor;
+    private final Semaphore mOrphanPermits;
+    /** Queued fetches abandoned but still draining, by URL, so a new request for the tile joins them. */
+    private final ConcurrentMap<String, AsyncFetch> mOrphans = new ConcurrentHashMap<>();
+    private volatile boolean mDetachedFetch = true;
+    private final CacheRevalidator mRevalidator;
+    private volatile boolean mStaleWhileRevalidate = true;
+    private final TileMetrics mMetrics;
+
+    /**
+     * @param cacheDirectory where OkHttp keeps its cache; only this downloader should use it
+     * @param cacheSize      bytes of streamed tiles kept, deep zooms evicted first
+     * @param networkState   decides, per tile, how much to rely on the cache
+     * @param metrics        records the outcome of every tile
+     */
+    public HttpDownloader(File cacheDirectory, long cacheSize, NetworkState networkState, TileMetrics metrics,
+                          int maxOrphanedDrains) {
+        mNetworkState = networkState;
+        mMetrics = metrics;
+        mOrphanPermits = new Semaphore(maxOrphanedDrains);
+        mFetchExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "tile-fetch-" + mCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        mCacheDirectory = cacheDirectory;
+        mCache = new Cache(mCacheDirectory, cacheSize + cacheSize / LRU_HEADROOM_DIVISOR);
+        mCacheIndex = new CacheIndex(mCacheDirectory);
+        mTrimmer = new CacheTrimmer(mCache, cacheSize);
+
+        mClient = new OkHttpClient.Builder()
+                .cache(mCache)
+                .connectionPool(new ConnectionPool(MAX_IDLE_CONNECTIONS, KEEP_ALIVE_MINUTES, TimeUnit.MINUTES))
+                .addNetworkInterceptor(metrics.connectionInterceptor())
+                .build();
+        metrics.attach(mCache);
+        // the AdaptiveDownloader in front decides how many go to each host
+        mClient.dispatcher().setMaxRequestsPerHost(AdaptiveDownloader.DEFAULT_MAX_LIMIT);
+        mRevalidator = new CacheRevalidator(mClient);
+    }
+
+    public boolean isOnline() {
+        return mNetworkState.isOnline();
+    }
+
+    public TileMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * @return how many more abandoned fetches may drain into the cache right now
+     */
+    int getAvailableOrphanPermits() {
+        return mOrphanPermits.availablePermits();
+    }
+
+    /**
+     * Closes {@code closeable}, ignoring any checked exceptions. Does nothing
+     * if {@code closeable} is null.
+     */
+    public static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (RuntimeException rethrown) {
+                throw rethrown;
+            } catch (Exception ignored) {
+            }
+        }
+    }
+
+    /**
+     * When enabled (the default) each tile is fetched on a separate thread and the caller only waits
+     * for the result.  A caller that is interrupted, as the Esri layer does when it cancels a tile,
+     * abandons the wait but the fetch keeps draining the body so the cache entry is still committed.
+     * See https://github.com/square/okhttp/issues/1903
+     */
+    public void setDetachedFetch(boolean detachedFetch) {
+        mDetachedFetch = detachedFetch;
+    }
+
+    /**
+     * When enabled (the default) a cached tile is returned straight away however stale it is, and stale
+     * tiles are refreshed by a rate limited background {@link CacheRevalidator}, so drawing a stale area
+     * costs the same as a fresh one.  When disabled a stale tile is revalidated before it is returned.
+     */
+    public void setStaleWhileRevalidate(boolean staleWhileRevalidate) {
+        mStaleWhileRevalidate = staleWhileRevalidate;
+    }
+
+    public byte[] getData(String url) throws IOException {
+        if (mStaleWhileRevalidate && mNetworkState.isOnline()) {
+            byte[] cached = readCached(url, true);
+            if (cached != null) {
+                return cached;
+            }
+        }
+
+        Request request = newRequest(url, true);
+        if (!mDetachedFetch) {
+            return execute(mClient.newCall(request), url);
+        }
+
+        DetachedFetch fetch = new DetachedFetch(mClient.newCall(request), url);
+        long start = System.nanoTime();
+        mFetchExecutor.execute(fetch);
+        try {
+            return fetch.get();
+        } catch (InterruptedException e) {
+            // an orphaned fetch is also counted under its own outcome when it completes
+            mMetrics.record(TileMetrics.Outcome.CANCELLED, System.nanoTime() - start, 0);
+            fetch.abandon();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("abandoned " + url);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * As {@link #getData} but the fetch is queued on OkHttp's dispatcher and no thread waits for it;
+     * only the cache lookup runs on the calling thread.  Cancelling a tile whose fetch may have started
+     * lets it keep draining into the cache, within the same limit on orphans as a detached fetch,
+     * rather than cancelling the call.  A request for a tile whose abandoned fetch is still draining
+     * waits for that fetch instead of starting another.
+     */
+    @Override
+    public Cancellable enqueue(String url, Callback callback) {
+        return enqueue(url, callback, true);
+    }
+
+    /**
+     * As {@link #enqueue} but a fetched response is not written to the cache.  Cached tiles are still
+     * served, and abandoned fetches shared.
+     */
+    @Override
+    public Cancellable enqueueNoStore(String url, Callback callback) {
+        return enqueue(url, callback, false);
+    }
+
+    private Cancellable enqueue(String url, Callback callback, boolean store) {
+        byte[] cached = getServableCachedData(url);
+        if (cached != null) {
+            callback.onTile(url, cached);
+            return PendingTile.DONE_ALREADY;
+        }
+        return enqueueNetwork(url, callback, store);
+    }
+
+    /**
+     * The lookup {@link #enqueue} starts with: with stale-while-revalidate, a cached tile within the
+     * {@link CachePolicy}'s staleness, refreshed in the background if stale.  Otherwise the cache is
+     * consulted by the request itself, so this finds nothing.
+     */
+    @Override
+    public byte[] getServableCachedData(String url) {
+        if (!mStaleWhileRevalidate || !mNetworkState.isOnline()) {
+            return null;
+        }
+        try {
+            return readCached(url, true);
+        } catch (IOException e) {
+            Timber.e(e, "cannot read cached " + url);
+            return null;
+        }
+    }
+
+    @Override
+    public Cancellable enqueueNetwork(String url, Callback callback, boolean store) {
+        PendingTile tile = new PendingTile(url, callback);
+        enqueueNetwork(tile, store);
+        return tile;
+    }
+
+    private void enqueueNetwork(final PendingTile tile, boolean store) {
+        final String url = tile.getUrl();
+        AsyncFetch orphan = mOrphans.get(url);
+        if (orphan != null && orphan.adopt(tile)) {
+            return;
+        }
+        final AsyncFetch fetch = new AsyncFetch(url, mClient.newCall(newRequest(url, store)));
+        tile.setUpstream(fetch);
+        fetch.mCall.enqueue(new okhttp3.Callback() {
+            @Override
+            public void onFailure(Call call, IOException e) {
+                List<PendingTile> adopted = fetch.finish();
+                if (!call.isCanceled()) {
+                    // a cancelled call was counted when it was cancelled
+                    mMetrics.record(TileMetrics.Outcome.FAILURE, System.nanoTime() - fetch.mStart, 0);
+                }
+                tile.fail(e);
+                for (PendingTile waiting : adopted) {
+                    waiting.fail(e);
+                }
+            }
+
+            @Override
+            public void onResponse(Call call, Response resp) {
+                byte[] result = null;
+                IOException failure = null;
+                TileMetrics.Outcome outcome = TileMetrics.Outcome.FAILURE;
+                List<PendingTile> adopted;
+                try {
+                    if (isError(resp)) {
+                        if (resp.code() == 429 || resp.code() >= 500) {
+                            failure = TileHttpException.from(resp, System.currentTimeMillis());
+                        }
+                    } else if (resp.body().contentType() != null) {
+                        result = TileBodyReader.read(resp.body());
+                        outcome = outcomeOf(resp);
+                        if (outcome == TileMetrics.Outcome.NETWORK) {
+                            downloaded(url, call.request());
+                        }
+                    }
+                } catch (IOException e) {
+                    failure = e;
+                    if (call.isCanceled()) {
+                        outcome = null;
+                    }
+                } finally {
+                    closeQuietly(resp.body());
+                    adopted = fetch.finish();
+                }
+                if (outcome != null) {
+                    mMetrics.record(outcome, System.nanoTime() - fetch.mStart, result == null ? 0 : result.length);
+                }
+                if (failure != null) {
+                    tile.fail(failure);
+                } else {
+                    tile.deliver(result);
+                }
+                for (PendingTile waiting : adopted) {
+                    if (failure != null) {
+                        waiting.fail(failure);
+                    } else {
+                        waiting.deliver(result);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Reads the HTTP cache only, however stale the entry.  No fetch is detached: there is no body to
+     * drain from the network.
+     */
+    @Override
+    public byte[] getCachedData(String url) throws IOException {
+        return readCached(url, false);
+    }
+
+    /**
+     * @param revalidate whether the tile is about to be served in place of a request: the entry must
+     *                   then be within the {@link CachePolicy}'s staleness for the network, and is
+     *                   refreshed in the background if it is stale.  Otherwise any age is accepted
+     * @return the cached tile, fresh or stale, or null on a cache miss
+     */
+    private byte[] readCached(String url, boolean revalidate) throws IOException {
+        long start = System.nanoTime();
+        Request request = new Request.Builder()
+                .cacheControl(revalidate ? mCachePolicy.chooseCacheOnly(mNetworkState) : CacheControl.FORCE_CACHE)
+                .url(url)
+                .build();
+        Response resp = mClient.newCall(request).execute();
+        try {
+            // a miss is answered with an empty 504
+            if (resp.cacheResponse() == null || resp.body().contentType() == null) {
+                return null;
+            }
+            byte[] result = TileBodyReader.read(resp.body());
+            if (revalidate && isStale(resp) && mCachePolicy.revalidatesInBackground(mNetworkState)) {
+                mRevalidator.revalidate(url);
+            }
+            mMetrics.record(TileMetrics.Outcome.DISK_HIT, System.nanoTime() - start, result.length);
+            return result;
+        } finally {
+            resp.body().close();
+        }
+    }
+
+    /**
+     * Called once a tile's body has been read from the network, which commits it to the cache unless
+     * {@code request} asked for it not to be stored.
+     */
+    private void downloaded(String url, Request request) {
+        if (!request.cacheControl().noStore()) {
+            mTrimmer.onWrite();
+        }
+        mMetrics.recordFetch(TileKey.fromUrl(url), true);
+    }
+
+    /**
+     * OkHttp marks a cached response served past its freshness lifetime with a 110 warning.
+     */
+    private static boolean isStale(Response response) {
+        for (String warning : response.headers("Warning")) {
+            if (warning.startsWith("110")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Request newRequest(String url, boolean store) {
+        CacheControl cacheControl = store
+                ? mCachePolicy.choose(mNetworkState) : mCachePolicy.chooseNoStore(mNetworkState);
+
+        if (mMetrics.sampleLog()) {
+            if (!cacheControl.onlyIfCached()) {
+                Timber.d("! ONLINE - fetch " + url + " from " + this.toString());
+            } else {
+                Timber.d("! CACHE - fetch " + url + " from " + this.toString());
+            }
+        }
+
+        return new Request.Builder()
+                .cacheControl(cacheControl)
+                .url(url)
+                .build();
+    }
+
+    private byte[] execute(Call call, String url) {
+        long start = System.nanoTime();
+        byte[] result = null;
+        Response resp = null;
+        TileMetrics.Outcome outcome = TileMetrics.Outcome.FAILURE;
+
+        try {
+            resp = call.execute();
+
+            // ORIGINAL resp = mClient.newCall(request).execute();
+            if (resp.body() == null) {
+                throw new IllegalStateException("Null body!");
+            }
+
+            if (isError(resp)) {
+                Timber.d("status " + resp.code() + " for " + url);
+            } else if (resp.body().contentType() != null) {
+                result = TileBodyReader.read(resp.body());
+                resp.body().close();
+                outcome = outcomeOf(resp);
+                if (outcome == TileMetrics.Outcome.NETWORK) {
+                    downloaded(url, call.request());
+                }
+            } else {
+                String message = resp.message();
+                Timber.d("message: " + message);
+            }
+        } catch (Exception e) {
+            if (call.isCanceled()) {
+                call.cancel();
+                // counted by the caller that abandoned it
+                outcome = null;
+            } else if (Thread.currentThread().isInterrupted()) {
+                outcome = TileMetrics.Outcome.CANCELLED;
+                mMetrics.recordFetch(TileKey.fromUrl(url), false);
+            }
+
+            if (resp != null && resp.body() != null) {
+                resp.body().close();
+            }
+        } finally {
+            if (resp != null && resp.body() != null) {
+                resp.body().close();
+            }
+        }
+
+        if (outcome != null) {
+            mMetrics.record(outcome, System.nanoTime() - start, result == null ? 0 : result.length);
+        }
+        if (mMetrics.sampleLog()) {
+            if (result != null) {
+                Timber.d("! WE HAVE DATA " + url + "\n" + mMetrics.dump());
+            } else {
+                Timber.d("! GOSH - NO DATA " + url + ".  Key: " + md5Hex(url));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return true if the server answered with an error; its body is an error page, not a tile
+     */
+    private static boolean isError(Response response) {
+        return response.networkResponse() != null && !response.isSuccessful();
+    }
+
+    private static TileMetrics.Outcome outcomeOf(Response response) {
+        if (response.networkResponse() == null) {
+            return TileMetrics.Outcome.DISK_HIT;
+        }
+        if (response.cacheResponse() != null) {
+            return TileMetrics.Outcome.CONDITIONAL_HIT;
+        }
+        return TileMetrics.Outcome.NETWORK;
+    }
+
+    /**
+     * A fetch that outlives its caller.  Once abandoned it either keeps running as an orphan, so the
+     * body is drained into the cache, or is cancelled when too many orphans are already draining.
+     */
+    private final class DetachedFetch extends FutureTask<byte[]> {
+        private final Call mCall;
+        private final String mUrl;
+        private final AtomicBoolean mOrphaned = new AtomicBoolean();
+
+        DetachedFetch(final Call call, final String url) {
+            super(new Callable<byte[]>() {
+                @Override
+                public byte[] call() {
+                    return execute(call, url);
+                }
+            });
+            mCall = call;
+            mUrl = url;
+        }
+
+        void abandon() {
+            if (isDone()) {
+                return;
+            }
+            if (mOrphanPermits.tryAcquire()) {
+                mOrphaned.set(true);
+                if (isDone() && mOrphaned.compareAndSet(true, false)) {
+                    // finished while we were acquiring; done() may have missed the permit
+                    mOrphanPermits.release();
+                }
+            } else {
+                mCall.cancel();
+                mMetrics.recordFetch(TileKey.fromUrl(mUrl), false);
+            }
+        }
+
+        @Override
+        protected void done() {
+            if (mOrphaned.compareAndSet(true, false)) {
+                mOrphanPermits.release();
+            }
+        }
+    }
+
+    /**
+     * A queued fetch.  Like a {@link DetachedFetch}, once cancelled it either keeps running as an orphan
+     * or, when too many orphans are already draining or it has not started yet, has its call
+     * cancelled.
+     */
+    private final class AsyncFetch implements Cancellable {
+        final String mUrl;
+        final Call mCall;
+        final long mStart = System.nanoTime();
+        private final AtomicBoolean mCancelled = new AtomicBoolean();
+        private final AtomicBoolean mFinished = new AtomicBoolean();
+        private final AtomicBoolean mOrphaned = new AtomicBoolean();
+        // guarded by this
+        private final List<PendingTile> mAdopted = new ArrayList<>(1);
+
+        AsyncFetch(String url, Call call) {
+            mUrl = url;
+            mCall = call;
+        }
+
+        /**
+         * Has an abandoned fetch deliver to {@code tile} too.
+         * @return false if the fetch has already finished
+         */
+        synchronized boolean adopt(final PendingTile tile) {
+            if (mFinished.get()) {
+                return false;
+            }
+            mAdopted.add(tile);
+            tile.setUpstream(new Cancellable() {
+                @Override
+                public void cancel() {
+                    // the orphan drains anyway; it just has one fewer tile to deliver
+                    synchronized (AsyncFetch.this) {
+                        mAdopted.remove(tile);
+                    }
+                }
+            });
+            return true;
+        }
+
+        @Override
+        public void cancel() {
+            if (mFinished.get() || !mCancelled.compareAndSet(false, true)) {
+                return;
+            }
+            // an orphan is also counted under its own outcome when it completes
+            mMetrics.record(TileMetrics.Outcome.CANCELLED, System.nanoTime() - mStart, 0);
+            // a call still waiting for the dispatcher has nothing to drain
+            boolean queued = mClient.dispatcher().queuedCalls().contains(mCall);
+            if (!queued && mOrphanPermits.tryAcquire()) {
+                mOrphaned.set(true);
+                if (mFinished.get() && mOrphaned.compareAndSet(true, false)) {
+                    // finished while we were acquiring; finish() may have missed the permit
+                    mOrphanPermits.release();
+                }
+                synchronized (this) {
+                    if (!mFinished.get()) {
+                        mOrphans.put(mUrl, this);
+                    }
+                }
+            } else {
+                mCall.cancel();
+                if (!queued) {
+                    mMetrics.recordFetch(TileKey.fromUrl(mUrl), false);
+                }
+            }
+        }
+
+        /**
+         * @return the tiles that joined the fetch after it was abandoned
+         */
+        List<PendingTile> finish() {
+            List<PendingTile> adopted;
+            synchronized (this) {
+                mFinished.set(true);
+                mOrphans.remove(mUrl, this);
+                adopted = new ArrayList<>(mAdopted);
+            }
+            if (mOrphaned.compareAndSet(true, false)) {
+                mOrphanPermits.release();
+            }
+            return adopted;
+        }
+    }
+
+    /**
+     * Checks the cache directory for the entry's body file without opening the cache entry, so it is
+     * cheap enough to sample many tiles.  OkHttp names entries by the MD5 of the URL; the body of a
+     * committed entry is {@code <key>.1}.
+     */
+    @Override
+    public long getCachedSize(String url) {
+        File body = new File(mCacheDirectory, md5Hex(url) + ".1");
+        return body.isFile() ? body.length() : -1;
+    }
+
+    /**
+     * Judged from the entry's metadata alone, so a prefetch into this cache skips fresh tiles without
+     * reading them.
+     */
+    @Override
+    public TilePrefetcher.Freshness getFreshness(long key, String url) {
+        return mCacheIndex.getFreshness(key, url);
+    }
+
+    /**
+     * Returns a 32 character string containing an MD5 hash of {@code s}: the name OkHttp gives the
+     * entry's files.  Tile URLs are ASCII, so the digest and buffers are reused per thread and the
+     * only allocation is the result.
+     */
+    public static String md5Hex(String s) {
+        Md5 md5 = MD5.get();
+        int length = s.length();
+        if (md5.mInput.length < length) {
+            md5.mInput = new byte[Math.max(length, 2 * md5.mInput.length)];
+        }
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if (c >= 0x80) {
+                return md5.hex(md5.mDigest.digest(s.getBytes(UTF_8)));
+            }
+            md5.mInput[i] = (byte) c;
+        }
+        md5.mDigest.update(md5.mInput, 0, length);
+        return md5.hex(md5.mDigest.digest());
+    }
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private static final ThreadLocal<Md5> MD5 = new ThreadLocal<Md5>() {
+        @Override
+        protected Md5 initialValue() {
+            return new Md5();
+        }
+    };
+
+    private static final class Md5 {
+        final MessageDigest mDigest;
+        final char[] mHex = new char[32];
+        byte[] mInput = new byte[128];
+
+        Md5() {
+            try {
+                mDigest = MessageDigest.getInstance("MD5");
+            } catch (NoSuchAlgorithmException e) {
+                throw new AssertionError(e);
+            }
+        }
+
+        String hex(byte[] digest) {
+            for (int i = 0; i < digest.length; i++) {
+                mHex[2 * i] = HEX_DIGITS[(digest[i] >> 4) & 0xf];
+                mHex[2 * i + 1] = HEX_DIGITS[digest[i] & 0xf];
+            }
+            return new String(mHex);
+        }
+    }
+}
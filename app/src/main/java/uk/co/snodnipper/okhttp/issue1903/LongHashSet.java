@@ -0,0 +1,138 @@
+package uk.co.snodnipper.okhttp.issue1903;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/**
+ * An insertion-ordered set of primitive {@code long}s.  Membership is an open-addressed hash table of
+ * longs and order is kept in a parallel array, so a tile costs 24 bytes or less rather than a boxed
+ * key, a map entry and a URL string.  Elements cannot be removed.  Not thread safe.
+ */
+public class LongHashSet {
+
+    private static final float LOAD_FACTOR = 0.5f;
+    /** Marks a free slot; a real zero is tracked by {@code mContainsZero}. */
+    private static final long FREE = 0L;
+
+    private long[] mTable;
+    private long[] mOrder;
+    private int mSize;
+    private int mMask;
+    private boolean mContainsZero;
+
+    public LongHashSet() {
+        this(16);
+    }
+
+    public LongHashSet(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(4, (int) (expectedSize / LOAD_FACTOR)) - 1) << 1;
+        mTable = new long[capacity];
+        mMask = capacity - 1;
+        mOrder = new long[Math.max(4, expectedSize)];
+    }
+
+    /**
+     * @return true if {@code value} was not already present
+     */
+    public boolean add(long value) {
+        if (value == FREE) {
+            if (mContainsZero) {
+                return false;
+            }
+            mContainsZero = true;
+        } else {
+            int slot = slot(value);
+            while (mTable[slot] != FREE) {
+                if (mTable[slot] == value) {
+                    return false;
+                }
+                slot = (slot + 1) & mMask;
+            }
+            mTable[slot] = value;
+        }
+
+        if (mSize == mOrder.length) {
+            mOrder = Arrays.copyOf(mOrder, mSize * 2);
+        }
+        mOrder[mSize++] = value;
+        if (mSize > mTable.length * LOAD_FACTOR) {
+            rehash(mTable.length * 2);
+        }
+        return true;
+    }
+
+    public boolean contains(long value) {
+        if (value == FREE) {
+            return mContainsZero;
+        }
+        int slot = slot(value);
+        while (mTable[slot] != FREE) {
+            if (mTable[slot] == value) {
+                return true;
+            }
+            slot = (slot + 1) & mMask;
+        }
+        return false;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    /**
+     * @return the element added {@code index}th
+     */
+    public long get(int index) {
+        if (index < 0 || index >= mSize) {
+            throw new IndexOutOfBoundsException("index " + index + ", size " + mSize);
+        }
+        return mOrder[index];
+    }
+
+    /**
+     * @return an iterator in insertion order.  Adding while iterating is allowed; the iterator sees
+     *     elements added before it reaches them.
+     */
+    public LongIterator iterator() {
+        return new LongIterator() {
+            private int mIndex;
+
+            @Override
+            public boolean hasNext() {
+                return mIndex < mSize;
+            }
+
+            @Override
+            public long next() {
+                if (mIndex >= mSize) {
+                    throw new NoSuchElementException();
+                }
+                return mOrder[mIndex++];
+            }
+        };
+    }
+
+    private int slot(long value) {
+        long hash = value * 0x9E3779B97F4A7C15L;
+        return (int) (hash ^ (hash >>> 32)) & mMask;
+    }
+
+    private void rehash(int capacity) {
+        long[] old = mTable;
+        mTable = new long[capacity];
+        mMask = capacity - 1;
+        for (long value : old) {
+            if (value != FREE) {
+                int slot = slot(value);
+                while (mTable[slot] != FREE) {
+                    slot = (slot + 1) & mMask;
+                }
+                mTable[slot] = value;
+            }
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package uk.co.snodnipper.okhttp.issue1903;
+
+/**
+ * An iterator over primitive {@code long}s, used for {@link TileKey}s so enumerating a region does
+ * not box every tile.
+ */
+public interface LongIterator {
+
+    boolean hasNext();
+
+    /**
+     * @throws java.util.NoSuchElementException if there are no more elements
+     */
+    long next();
+}
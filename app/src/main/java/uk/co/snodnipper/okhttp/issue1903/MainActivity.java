@@ -19,9 +19,12 @@ package uk.co.snodnipper.okhttp.issue1903;
 import android.app.Activity;
 import android.os.Bundle;
 import android.view.View;
+import android.widget.Button;
 import android.widget.Toast;
 import com.esri.android.map.MapView;
+import com.esri.android.map.event.OnPanListener;
 import com.esri.android.map.event.OnStatusChangedListener;
+import com.esri.android.map.event.OnZoomListener;
 import com.esri.core.geometry.GeometryEngine;
 import com.esri.core.geometry.Point;
 import com.esri.core.geometry.Polygon;
@@ -29,15 +32,46 @@ import com.esri.core.geometry.SpatialReference;
 import timber.log.Timber;
 
 import java.io.IOException;
-import java.util.Set;
+import java.util.List;
 
 
 public class MainActivity extends Activity {
 
+    private static final int DOWNLOAD_MIN_ZOOM = 1;
+    private static final int DOWNLOAD_MAX_ZOOM = 18;
+    /** Largest region a single download may fetch; deeper zoom levels are dropped to fit. */
+    private static final long MAX_DOWNLOAD_TILES = 250000;
+
     private MapView mMapView;
     private Bundle mSavedInstanceState;
-    private Downloader mDownloader;
-    private Thread mThread = null;
+    private MapboxLayer mMapboxLayer;
+    private TilePrefetcher mTilePrefetcher;
+    private RegionEstimator mRegionEstimator;
+    private TileMetrics mTileMetrics;
+    private Button mDownloadButton;
+
+    private final TilePrefetcher.Listener mPrefetchListener = new TilePrefetcher.Listener() {
+        @Override
+        public void onProgress(final TilePrefetcher.Progress progress) {
+            runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    mDownloadButton.setText(progress.toString());
+                }
+            });
+        }
+
+        @Override
+        public void onFinished(final TilePrefetcher.Progress progress) {
+            runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    mDownloadButton.setText("Download");
+                    Toast.makeText(MainActivity.this, "Finished: " + progress, Toast.LENGTH_SHORT).show();
+                }
+            });
+        }
+    };
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -48,8 +82,13 @@ public class MainActivity extends Activity {
         // the map can be accessed from the layout
         mMapView = (MapView)findViewById(R.id.map);
 
-        mDownloader = ((TestApplication) getApplication()).getDownloadLoader();
-        MapboxLayer mMapboxLayer = new MapboxLayer("OpenStreetMap", mDownloader);
+        mDownloadButton = (Button) findViewById(R.id.button);
+
+        TestApplication application = (TestApplication) getApplication();
+        mTilePrefetcher = application.getTilePrefetcher();
+        mRegionEstimator = application.getRegionEstimator();
+        mTileMetrics = application.getTileMetrics();
+        mMapboxLayer = new MapboxLayer(application.getTileSource(), application.getTileScheduler());
         mMapView.addLayer(mMapboxLayer);
 
         // Set the Esri logo to be visible, and enable map to wrap around date line.
@@ -71,9 +110,57 @@ public class MainActivity extends Activity {
                 }
             }
         });
+
+        // keep the tile scheduler's viewport in step with the map
+        mMapView.setOnPanListener(new OnPanListener() {
+
+            private static final long serialVersionUID = 1L;
+
+            public void prePointerMove(float fromx, float fromy, float tox, float toy) {
+            }
+
+            public void postPointerMove(float fromx, float fromy, float tox, float toy) {
+                updateViewport();
+            }
+
+            public void prePointerUp(float fromx, float fromy, float tox, float toy) {
+            }
+
+            public void postPointerUp(float fromx, float fromy, float tox, float toy) {
+                updateViewport();
+            }
+        });
+        mMapView.setOnZoomListener(new OnZoomListener() {
+
+            private static final long serialVersionUID = 1L;
+
+            public void preAction(float pivotX, float pivotY, double factor) {
+            }
+
+            public void postAction(float pivotX, float pivotY, double factor) {
+                updateViewport();
+            }
+        });
         mSavedInstanceState = savedInstanceState;
     }
 
+    @Override
+    protected void onStart() {
+        super.onStart();
+        mTilePrefetcher.addListener(mPrefetchListener);
+        TilePrefetcher.Progress progress = mTilePrefetcher.getProgress();
+        if (progress != null) {
+            mDownloadButton.setText(progress.toString());
+        }
+    }
+
+    @Override
+    protected void onStop() {
+        mTilePrefetcher.removeListener(mPrefetchListener);
+        Timber.d(mTileMetrics.dump());
+        super.onStop();
+    }
+
     @Override
     protected void onSaveInstanceState(Bundle outState) {
         Point center = getWgs84Point();
@@ -89,36 +176,51 @@ public class MainActivity extends Activity {
     }
 
     public void onDownloadRequest(View view) {
-        if (mThread != null) {
-            Toast.makeText(this, "Thread already running", Toast.LENGTH_SHORT).show();
+        if (mTilePrefetcher.isRunning()) {
+            Toast.makeText(this, "Download already running", Toast.LENGTH_SHORT).show();
             return;
         }
 
-        mThread = new Thread(new Runnable() {
+        Polygon p = mMapView.getExtent();
+        SpatialReference in = mMapView.getSpatialReference();
+        SpatialReference out = SpatialReference.create(SpatialReference.WKID_WGS84);
+        Polygon wgs84p = (Polygon) GeometryEngine.project(p, in, out);
+        final List<double[]> rings = UrlProvider.getRings(wgs84p);
+        final TileCoverage coverage = new PolygonCoverage(rings, 0);
+
+        // sampling the cache touches the disk, keep it off the main thread
+        new Thread(new Runnable() {
             @Override
             public void run() {
-
-                Polygon p = mMapView.getExtent();
-                SpatialReference in = mMapView.getSpatialReference();
-                SpatialReference out = SpatialReference.create(SpatialReference.WKID_WGS84);
-                Polygon wgs84p = (Polygon) GeometryEngine.project(p, in, out);
-
-                Set<String> urls = UrlProvider.getUrls(wgs84p, 1, 18);
-                for (String url : urls) {
+                final RegionEstimator.Estimate estimate =
+                        mRegionEstimator.estimate(coverage, DOWNLOAD_MIN_ZOOM, DOWNLOAD_MAX_ZOOM);
+                final int maxZoom = estimate.getMaxZoomWithin(MAX_DOWNLOAD_TILES);
+                if (maxZoom >= DOWNLOAD_MIN_ZOOM) {
+                    // tiles are enumerated lazily as the download proceeds
+                    DownloadJob job = new DownloadJob(System.currentTimeMillis(), rings, 0,
+                            DOWNLOAD_MIN_ZOOM, maxZoom);
                     try {
-                        if (MainActivity.this.isDestroyed()) {
-                            break;
-                        }
-                        mDownloader.getData(url);
+                        mTilePrefetcher.start(job);
                     } catch (IOException e) {
-                        Timber.e(e, "problem downloading");
+                        Timber.e(e, "cannot save download");
                     }
                 }
-                Timber.d("finished download");
-                mThread = null;
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        String message;
+                        if (maxZoom < DOWNLOAD_MIN_ZOOM) {
+                            message = "Region too large: " + estimate;
+                        } else if (maxZoom < DOWNLOAD_MAX_ZOOM) {
+                            message = "Downloading to zoom " + maxZoom + ", whole region is " + estimate;
+                        } else {
+                            message = "Downloading " + estimate;
+                        }
+                        Toast.makeText(MainActivity.this, message, Toast.LENGTH_LONG).show();
+                    }
+                });
             }
-        });
-        mThread.start();
+        }, "tile-estimate").start();
     }
 
     /**
@@ -154,5 +256,10 @@ public class MainActivity extends Activity {
             mMapView.setScale(scale, false);
             mMapView.centerAt(y, x, false);
         }
+        updateViewport();
+    }
+
+    private void updateViewport() {
+        mMapboxLayer.setViewport(mMapView.getExtent(), mMapView.getResolution());
     }
 }
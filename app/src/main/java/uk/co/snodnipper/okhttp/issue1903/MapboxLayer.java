@@ -4,6 +4,7 @@ import com.esri.android.map.TiledServiceLayer;
 import com.esri.android.map.event.OnStatusChangedListener;
 import com.esri.core.geometry.Envelope;
 import com.esri.core.geometry.Point;
+import com.esri.core.geometry.Polygon;
 import com.esri.core.geometry.SpatialReference;
 
 import java.util.concurrent.RejectedExecutionException;
@@ -32,19 +33,31 @@ public class MapboxLayer extends TiledServiceLayer {
             36111.909643D, 18055.954822D, 9027.977411D, 4513.988705D, 2256.994353D, 1128.497176D, 564.248588D,
             282.124294D, 141.062147D, 70.531074D};
 
-    private static String SERVER = "http://a.tile.openstreetmap.org";
+    /** Deepest level shown; levels past the source's maximum are scaled up from it. */
+    private final static int MAX_OVERZOOM_LEVEL = 20;
+    /** How many levels up to look for a cached tile to stand in for one that could not be fetched. */
+    private final static int MAX_FALLBACK_DEPTH = 4;
 
-    private final static int MIN_ZOOM_LEVEL = 0;
-    private final static int MAX_ZOOM_LEVEL = 18;
+    private static final double ORIGIN_X = -2.003750834278E7D;
+    private static final double ORIGIN_Y = 2.003750834278E7D;
 
-    private final Downloader mDownloader;
+    private final TileSource mSource;
+    private final TileScheduler mScheduler;
+    private final OverzoomTiles mOverzoomTiles;
 
-    public MapboxLayer(String name, Downloader downloader) {
+    /**
+     * @param source    where tiles come from, and which zoom levels it has
+     * @param scheduler fetches tiles, nearest the current {@link #setViewport viewport} first
+     */
+    public MapboxLayer(TileSource source, TileScheduler scheduler) {
         super(true);
-        setName(name);
-        mDownloader = downloader;
+        setName(source.getName());
+        mSource = source;
+        mScheduler = scheduler;
+        mOverzoomTiles = new OverzoomTiles(scheduler, source, TILE_WIDTH,
+                OverzoomTiles.DEFAULT_MAX_DECODED_BYTES);
         boolean initLayer = true;
-        configure(MIN_ZOOM_LEVEL, MAX_ZOOM_LEVEL, initLayer);
+        configure(source.getMinZoom(), source.getMaxZoom(), initLayer);
     }
 
     private void configure(int minZoomLevel, int maxZoomLevel, boolean initLayer) {
@@ -78,13 +91,14 @@ public class MapboxLayer extends TiledServiceLayer {
             Timber.e("borked layer " + getName());
         } else {
             try {
-                double[] resolutions = new double[mMaxZoomLevel];
-                double[] scales = new double[mMaxZoomLevel];
-                System.arraycopy(RESOLUTIONS, 0, resolutions, 0, mMaxZoomLevel);
-                System.arraycopy(SCALES, 0, scales, 0, mMaxZoomLevel);
+                int levelCount = Math.max(mMaxZoomLevel, MAX_OVERZOOM_LEVEL + 1);
+                double[] resolutions = new double[levelCount];
+                double[] scales = new double[levelCount];
+                System.arraycopy(RESOLUTIONS, 0, resolutions, 0, levelCount);
+                System.arraycopy(SCALES, 0, scales, 0, levelCount);
                 setDefaultSpatialReference(SpatialReference.create(3857));
-                setFullExtent(new Envelope(-2.003750834278E7D, -2.003750834278E7D, 2.003750834278E7D, 2.003750834278E7D));
-                Point origin = new Point(-2.003750834278E7D, 2.003750834278E7D);
+                setFullExtent(new Envelope(ORIGIN_X, -ORIGIN_Y, -ORIGIN_X, ORIGIN_Y));
+                Point origin = new Point(ORIGIN_X, ORIGIN_Y);
                 int levels = scales.length;
                 setTileInfo(new TileInfo(origin, scales, resolutions, levels, TILE_DPI,
                         TILE_WIDTH, TILE_HEIGHT));
@@ -97,24 +111,46 @@ public class MapboxLayer extends TiledServiceLayer {
 
     }
 
+    /**
+     * Tells the scheduler what is on screen so visible tiles are fetched first and tiles panned out of
+     * view are parked.  Call from the UI thread whenever the map is panned or zoomed.
+     * @param extent     the map's extent, in the layer's Web Mercator coordinates
+     * @param resolution the map's resolution, in metres per pixel
+     */
+    public void setViewport(Polygon extent, double resolution) {
+        if (mScheduler == null || extent == null || extent.isEmpty() || resolution <= 0) {
+            return;
+        }
+        int zoom = (int) Math.round(Math.log(RESOLUTIONS[0] / resolution) / Math.log(2));
+        // overzoomed levels are served from tiles at the maximum level, which is what gets fetched
+        zoom = Math.max(mMinZoomLevel, Math.min(mMaxZoomLevel, zoom));
+        double tileSpan = TILE_WIDTH * RESOLUTIONS[zoom];
+        Envelope envelope = new Envelope();
+        extent.queryEnvelope(envelope);
+        // the map wraps around the date line, the scheduler works on tiles of the one world
+        double tiles = 1 << zoom;
+        double centreX = (envelope.getCenterX() - ORIGIN_X) / tileSpan;
+        centreX = centreX - Math.floor(centreX / tiles) * tiles;
+        double centreY = (ORIGIN_Y - envelope.getCenterY()) / tileSpan;
+        mScheduler.setViewport(zoom, centreX, centreY,
+                envelope.getWidth() / 2 / tileSpan, envelope.getHeight() / 2 / tileSpan);
+    }
+
     protected byte[] getTile(int lev, int col, int row) throws Exception {
-        if (mDownloader == null) {
-            Timber.e("TILE ZERO null downloader");
+        if (mScheduler == null) {
+            Timber.e("TILE ZERO null scheduler");
             return new byte[0];
         }
         boolean isCorrectZoomLevel = lev >= mMinZoomLevel && lev <= mMaxZoomLevel;
         if (isCorrectZoomLevel) {
-            String url = new StringBuilder()
-                    .append(SERVER)
-                    .append("/")
-                    .append(lev)
-                    .append("/")
-                    .append(col)
-                    .append("/")
-                    .append(row)
-                    .append(".png")
-                    .toString();
-            return mDownloader.getData(url);
+            byte[] data = mScheduler.getTile(lev, col, row, mSource.format(lev, col, row));
+            if (data == null || data.length == 0) {
+                // offline or failed; a blurry ancestor beats a blank tile
+                data = mOverzoomTiles.fromCachedAncestor(lev, col, row, MAX_FALLBACK_DEPTH);
+            }
+            return data;
+        } else if (lev > mMaxZoomLevel) {
+            return mOverzoomTiles.fromAncestor(lev, col, row, mMaxZoomLevel);
         } else {
             Timber.e("TILE ZERO isCorrectZoomLevel " + isCorrectZoomLevel + " return zero.");
             return new byte[0];
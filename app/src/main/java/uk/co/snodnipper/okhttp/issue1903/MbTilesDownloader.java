@@ -0,0 +1,124 @@
+package uk.co.snodnipper.okhttp.issue1903;
+
+import java.io.IOException;
+
+/**
+ * Serves tiles from an {@link MbTilesStore}, falling back to another {@link Downloader} for tiles the
+ * store does not have.  With write-through enabled, tiles fetched by the fallback are added to the
+ * store, which is how offline regions are filled; stale stored tiles then count as missing, so filling
+ * a region again refreshes them, and once the store is full further tiles fail with a
+ * {@link StoreFullException} without being fetched.
+ * A fallback that can fetch without writing the HTTP cache is asked to, when enqueued, since the
+ * store keeps the tile.
+ * URLs that are not tile URLs go straight to the fallback.
+ */
+public class MbTilesDownloader implements AsyncDownloader {
+
+    private final MbTilesStore mStore;
+    private final AsyncDownloader mFallback;
+    private final boolean mWriteThrough;
+    private final TileMetrics mMetrics;
+
+    public MbTilesDownloader(MbTilesStore store, AsyncDownloader fallback, boolean writeThrough) {
+        this(store, fallback, writeThrough, null);
+    }
+
+    /**
+     * @param fallback     used on a store miss, or null to serve only from the store
+     * @param writeThrough whether tiles fetched by {@code fallback} are added to the store
+     * @param metrics      records hits on the store, or null
+     */
+    public MbTilesDownloader(MbTilesStore store, AsyncDownloader fallback, boolean writeThrough,
+                             TileMetrics metrics) {
+        mStore = store;
+        mMetrics = metrics;
+        mFallback = fallback;
+        mWriteThrough = writeThrough;
+    }
+
+    @Override
+    public byte[] getData(String url) throws IOException {
+        long key = TileKey.fromUrl(url);
+        byte[] stored = getStored(key);
+        if (stored != null) {
+            return stored;
+        }
+        if (mFallback == null) {
+            return null;
+        }
+        boolean writeThrough = mWriteThrough && key != TileKey.INVALID;
+        if (writeThrough && mStore.isFull()) {
+            throw new StoreFullException();
+        }
+        byte[] data = mFallback.getData(url);
+        if (data != null && writeThrough && !mStore.put(key, data)) {
+            throw new StoreFullException();
+        }
+        return data;
+    }
+
+    /**
+     * The store is read on the calling thread; only a miss is handed to the fallback.
+     */
+    @Override
+    public Cancellable enqueue(String url, final Callback callback) {
+        final long key = TileKey.fromUrl(url);
+        byte[] stored = getStored(key);
+        if (stored != null || mFallback == null) {
+            callback.onTile(url, stored);
+            return PendingTile.DONE_ALREADY;
+        }
+        if (!mWriteThrough || key == TileKey.INVALID) {
+            return mFallback.enqueue(url, callback);
+        }
+        if (mStore.isFull()) {
+            callback.onFailure(url, new StoreFullException());
+            return PendingTile.DONE_ALREADY;
+        }
+        Callback store = new Callback() {
+            @Override
+            public void onTile(String url, byte[] data) {
+                if (data != null && !mStore.put(key, data)) {
+                    callback.onFailure(url, new StoreFullException());
+                    return;
+                }
+                callback.onTile(url, data);
+            }
+
+            @Override
+            public void onFailure(String url, IOException e) {
+                callback.onFailure(url, e);
+            }
+        };
+        return mFallback instanceof NoStore
+                ? ((NoStore) mFallback).enqueueNoStore(url, store)
+                : mFallback.enqueue(url, store);
+    }
+
+    /**
+     * @return the tile from the store, or null if it is not a tile or not stored
+     */
+    private byte[] getStored(long key) {
+        if (key == TileKey.INVALID) {
+            return null;
+        }
+        long start = System.nanoTime();
+        byte[] data = mWriteThrough ? mStore.getFresh(key) : mStore.get(key);
+        if (data != null && mMetrics != null) {
+            mMetrics.record(TileMetrics.Outcome.DISK_HIT, System.nanoTime() - start, data.length);
+        }
+        return data;
+    }
+
+    @Override
+    public byte[] getCachedData(String url) throws IOException {
+        long key = TileKey.fromUrl(url);
+        if (key != TileKey.INVALID) {
+            byte[] data = mStore.get(key);
+            if (data != null) {
+                return data;
+            }
+        }
+        return mFallback == null ? null : mFallback.getCachedData(url);
+    }
+}
@@ -0,0 +1,340 @@
+package uk.co.snodnipper.okhttp.issue1903;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A tile store in a single <a href="https://github.com/mapbox/mbtiles-spec">MBTiles</a> SQLite file.
+ * A tile is one indexed lookup in an already open database instead of an OkHttp cache entry's two
+ * files, and a region can be copied to another device as one file.
+ * <p>
+ * Tiles are kept in a table keyed by their {@link TileKey}, an {@code INTEGER PRIMARY KEY}, so a
+ * lookup searches the table's own b-tree with no separate index.  Checks and writes are compiled
+ * statements that bind the key as a {@code long}; reading a tile's data needs a cursor, whose arguments
+ * can only be strings, so there the key is bound as its decimal text, which the column's integer
+ * affinity turns back into the same b-tree lookup.  The {@code tiles} view the spec requires is computed from the key; MBTiles numbers rows
+ * from the bottom (TMS), which the view converts to.  The database is opened lazily, on the first read
+ * or write, so it can be created on the main thread.  Thread safe.
+ * <p>
+ * Each tile keeps the time it was stored.  The map is served stored tiles of any age, but a tile older
+ * than the store's refresh age is reported {@link TilePrefetcher.Freshness#STALE}, so downloading its
+ * region again fetches it anew.
+ * <p>
+ * The store holds at most its size limit of tile data; once full, tiles are refused rather than others
+ * evicted, as a region with holes is no use offline.  {@link #delete} removes a region to make room.
+ */
+public class MbTilesStore implements RegionEstimator.CacheProbe, TilePrefetcher.FreshnessProbe {
+
+    /** How long a stored tile is fresh for before downloading its region again refreshes it. */
+    public static final long DEFAULT_REFRESH_AFTER_MILLIS = TimeUnit.DAYS.toMillis(30);
+
+    /** Tile data kept before further tiles are refused. */
+    public static final long DEFAULT_MAX_BYTES = 2L * 1024 * 1024 * 1024;
+
+    private static final int DATABASE_VERSION = 3;
+
+    private static final String KEY_TABLE = "CREATE TABLE tiles_by_key (tile_key INTEGER PRIMARY KEY,"
+            + " tile_data BLOB, fetched_at INTEGER NOT NULL DEFAULT 0)";
+    /** The spec's {@code tiles} table as a view, from the {@link TileKey} layout. */
+    private static final String TILES_VIEW = "CREATE VIEW tiles AS SELECT"
+            + " tile_key >> 58 AS zoom_level,"
+            + " (tile_key >> 29) & 536870911 AS tile_column,"
+            + " (1 << (tile_key >> 58)) - 1 - (tile_key & 536870911) AS tile_row,"
+            + " tile_data FROM tiles_by_key";
+
+    private final File mFile;
+    private final Helper mHelper;
+    private final long mRefreshAfterMillis;
+    private final long mMaxBytes;
+    private volatile boolean mDirectoryCreated;
+    private SQLiteStatement mInsert;
+    private SQLiteStatement mDelete;
+    private SQLiteStatement mFetchedAt;
+    private SQLiteStatement mSize;
+    // bytes of tile data stored, read from the database on first use; guarded by this
+    private long mBytes = -1;
+
+    public MbTilesStore(Context context, File file, String name) {
+        this(context, file, name, DEFAULT_REFRESH_AFTER_MILLIS, DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * @param refreshAfterMillis age past which a stored tile is reported stale
+     * @param maxBytes           tile data kept before further tiles are refused
+     */
+    public MbTilesStore(Context context, File file, String name, long refreshAfterMillis, long maxBytes) {
+        mFile = file;
+        mHelper = new Helper(context, file, name);
+        mRefreshAfterMillis = refreshAfterMillis;
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * @return the tile's data or null if the store does not have it
+     */
+    public byte[] get(long key) {
+        // a compiled statement cannot return a blob, so this query goes through a cursor and its string
+        // argument
+        Cursor cursor = database().rawQuery(
+                "SELECT tile_data FROM tiles_by_key WHERE tile_key = ?", new String[]{Long.toString(key)});
+        try {
+            return cursor.moveToFirst() ? cursor.getBlob(0) : null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * @return the tile's data, or null if the store does not have it or has it stale
+     */
+    public byte[] getFresh(long key) {
+        Cursor cursor = database().rawQuery(
+                "SELECT tile_data FROM tiles_by_key WHERE tile_key = ? AND fetched_at > ?",
+                new String[]{Long.toString(key), Long.toString(System.currentTimeMillis() - mRefreshAfterMillis)});
+        try {
+            return cursor.moveToFirst() ? cursor.getBlob(0) : null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Stores a tile as fetched now, replacing any copy already stored.
+     * @return false if the tile was not stored because the store is full
+     */
+    public boolean put(long key, byte[] data) {
+        synchronized (this) {
+            // counted before the total is adjusted, which it may not have been since a delete
+            long bytes = bytes();
+            long growth = data.length - Math.max(getSize(key), 0);
+            if (growth > 0 && bytes + growth > mMaxBytes) {
+                return false;
+            }
+            SQLiteStatement insert = statement(Statement.INSERT);
+            insert.bindLong(1, key);
+            insert.bindBlob(2, data);
+            insert.bindLong(3, System.currentTimeMillis());
+            insert.executeInsert();
+            insert.clearBindings();
+            mBytes = bytes + growth;
+            return true;
+        }
+    }
+
+    /**
+     * @return true if the store has reached its size limit and refuses further tiles
+     */
+    public synchronized boolean isFull() {
+        return bytes() >= mMaxBytes;
+    }
+
+    /**
+     * Deletes a region's tiles, in one transaction, including those shared with other regions.
+     * @param tiles {@link TileKey}s of the region, as enumerated for its download
+     * @return the number of tiles deleted
+     */
+    public long delete(LongIterator tiles) {
+        SQLiteDatabase database = database();
+        long deleted = 0;
+        synchronized (this) {
+            SQLiteStatement delete = statement(Statement.DELETE);
+            database.beginTransaction();
+            try {
+                while (tiles.hasNext()) {
+                    delete.bindLong(1, tiles.next());
+                    deleted += delete.executeUpdateDelete();
+                }
+                database.setTransactionSuccessful();
+            } finally {
+                delete.clearBindings();
+                database.endTransaction();
+                // recounted rather than tracked tile by tile
+                mBytes = -1;
+            }
+        }
+        return deleted;
+    }
+
+    /**
+     * @return bytes of tile data stored
+     */
+    public synchronized long getBytes() {
+        return bytes();
+    }
+
+    // guarded by this
+    private long bytes() {
+        if (mBytes == -1) {
+            SQLiteStatement sum = database().compileStatement(
+                    "SELECT coalesce(sum(length(tile_data)), 0) FROM tiles_by_key");
+            try {
+                mBytes = sum.simpleQueryForLong();
+            } finally {
+                sum.close();
+            }
+        }
+        return mBytes;
+    }
+
+    /**
+     * @return whether the store has the tile; answered from the key without reading the tile's data
+     */
+    public boolean contains(long key) {
+        return queryForLong(statement(Statement.FETCHED_AT), key) != -1;
+    }
+
+    /**
+     * A stored tile is fresh until it is older than the store's refresh age; answered from the key
+     * without reading the tile's data.
+     */
+    @Override
+    public TilePrefetcher.Freshness getFreshness(long key, String url) {
+        long fetchedAt = queryForLong(statement(Statement.FETCHED_AT), key);
+        if (fetchedAt == -1) {
+            return TilePrefetcher.Freshness.MISSING;
+        }
+        return System.currentTimeMillis() - fetchedAt < mRefreshAfterMillis
+                ? TilePrefetcher.Freshness.FRESH : TilePrefetcher.Freshness.STALE;
+    }
+
+    /**
+     * @return the size of the tile's data, or -1 if the store does not have it
+     */
+    public long getSize(long key) {
+        return queryForLong(statement(Statement.SIZE), key);
+    }
+
+    @Override
+    public long getCachedSize(String url) {
+        long key = TileKey.fromUrl(url);
+        return key == TileKey.INVALID ? -1 : getSize(key);
+    }
+
+    public void close() {
+        mHelper.close();
+    }
+
+    private SQLiteDatabase database() {
+        if (!mDirectoryCreated) {
+            mFile.getParentFile().mkdirs();
+            mDirectoryCreated = true;
+        }
+        return mHelper.getWritableDatabase();
+    }
+
+    private enum Statement {
+        INSERT("INSERT OR REPLACE INTO tiles_by_key (tile_key, tile_data, fetched_at) VALUES (?, ?, ?)"),
+        DELETE("DELETE FROM tiles_by_key WHERE tile_key = ?"),
+        // -1 when there is no such tile, as a query with no rows cannot be read as a long
+        FETCHED_AT("SELECT coalesce((SELECT fetched_at FROM tiles_by_key WHERE tile_key = ?), -1)"),
+        SIZE("SELECT coalesce((SELECT length(tile_data) FROM tiles_by_key WHERE tile_key = ?), -1)");
+
+        final String mSql;
+
+        Statement(String sql) {
+            mSql = sql;
+        }
+    }
+
+    private synchronized SQLiteStatement statement(Statement statement) {
+        switch (statement) {
+            case INSERT:
+                if (mInsert == null) {
+                    mInsert = database().compileStatement(statement.mSql);
+                }
+                return mInsert;
+            case DELETE:
+                if (mDelete == null) {
+                    mDelete = database().compileStatement(statement.mSql);
+                }
+                return mDelete;
+            case FETCHED_AT:
+                if (mFetchedAt == null) {
+                    mFetchedAt = database().compileStatement(statement.mSql);
+                }
+                return mFetchedAt;
+            default:
+                if (mSize == null) {
+                    mSize = database().compileStatement(statement.mSql);
+                }
+                return mSize;
+        }
+    }
+
+    private static long queryForLong(SQLiteStatement statement, long key) {
+        synchronized (statement) {
+            statement.bindLong(1, key);
+            try {
+                return statement.simpleQueryForLong();
+            } finally {
+                statement.clearBindings();
+            }
+        }
+    }
+
+    private static final class Helper extends SQLiteOpenHelper {
+        private final String mName;
+
+        Helper(Context context, File file, String name) {
+            super(context, file.getAbsolutePath(), null, DATABASE_VERSION);
+            mName = name;
+        }
+
+        @Override
+        public void onConfigure(SQLiteDatabase db) {
+            // readers are never blocked by the prefetcher's writes
+            db.enableWriteAheadLogging();
+        }
+
+        @Override
+        public void onOpen(SQLiteDatabase db) {
+            // in WAL mode NORMAL only syncs at checkpoints, not on every tile
+            db.execSQL("PRAGMA synchronous = NORMAL");
+        }
+
+        @Override
+        public void onCreate(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE metadata (name TEXT, value TEXT)");
+            db.execSQL("CREATE UNIQUE INDEX name ON metadata (name)");
+            db.execSQL(KEY_TABLE);
+            db.execSQL(TILES_VIEW);
+            insertMetadata(db, "name", mName);
+            insertMetadata(db, "type", "baselayer");
+            insertMetadata(db, "version", "1");
+            insertMetadata(db, "format", "png");
+        }
+
+        /**
+         * Version 1 kept tiles in a {@code tiles} table indexed by zoom, column and TMS row; version 2
+         * did not record when tiles were stored.  Tiles carried over count as fetched long ago, so the
+         * next download of their region refreshes them.
+         */
+        @Override
+        public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+            if (oldVersion < 2) {
+                db.execSQL(KEY_TABLE);
+                db.execSQL("INSERT OR REPLACE INTO tiles_by_key (tile_key, tile_data)"
+                        + " SELECT (zoom_level << 58) | (tile_column << 29) | ((1 << zoom_level) - 1 - tile_row),"
+                        + " tile_data FROM tiles");
+                db.execSQL("DROP TABLE tiles");
+                db.execSQL(TILES_VIEW);
+            } else if (oldVersion < 3) {
+                db.execSQL("ALTER TABLE tiles_by_key ADD COLUMN fetched_at INTEGER NOT NULL DEFAULT 0");
+            }
+        }
+
+        private static void insertMetadata(SQLiteDatabase db, String name, String value) {
+            ContentValues values = new ContentValues(2);
+            values.put("name", name);
+            values.put("value", value);
+            db.insert("metadata", null, values);
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package uk.co.snodnipper.okhttp.issue1903;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Keeps recently used tiles in memory in front of another {@link Downloader}, bounded by the total
+ * size of the tiles rather than their number.  Tiles are keyed by {@link TileKey} so the same tile
+ * requested through different URLs is only held once.  URLs that are not tile URLs pass straight
+ * through.
+ */
+public class MemoryTileCache implements AsyncDownloader {
+
+    /** {@code ComponentCallbacks2} levels, repeated here so the cache stays free of Android. */
+    static final int TRIM_MEMORY_RUNNING_LOW = 10;
+    static final int TRIM_MEMORY_MODERATE = 60;
+
+    private final AsyncDownloader mDelegate;
+    private final TileMetrics mMetrics;
+    private final LinkedHashMap<Long, byte[]> mTiles = new LinkedHashMap<>(64, 0.75f, true);
+
+    private final long mMaxBytes;
+    private long mBytes;
+    private long mHitCount;
+    private long mMissCount;
+    private long mEvictionCount;
+
+    public MemoryTileCache(AsyncDownloader delegate, long maxBytes) {
+        this(delegate, maxBytes, null);
+    }
+
+    /**
+     * @param metrics records hits, or null
+     */
+    public MemoryTileCache(AsyncDownloader delegate, long maxBytes, TileMetrics metrics) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("maxBytes <= 0");
+        }
+        mDelegate = delegate;
+        mMetrics = metrics;
+        mMaxBytes = maxBytes;
+    }
+
+    @Override
+    public byte[] getData(String url) throws IOException {
+        long key = TileKey.fromUrl(url);
+        if (key == TileKey.INVALID) {
+            return mDelegate.getData(url);
+        }
+
+        byte[] data = getHit(key);
+        if (data != null) {
+            return data;
+        }
+        data = mDelegate.getData(url);
+        if (data != null) {
+            put(key, data);
+        }
+        return data;
+    }
+
+    /**
+     * A tile held in memory is delivered before this returns.
+     */
+    @Override
+    public Cancellable enqueue(String url, final Callback callback) {
+        final long key = TileKey.fromUrl(url);
+        if (key == TileKey.INVALID) {
+            return mDelegate.enqueue(url, callback);
+        }
+
+        byte[] data = getHit(key);
+        if (data != null) {
+            callback.onTile(url, data);
+            return PendingTile.DONE_ALREADY;
+        }
+        return mDelegate.enqueue(url, new Callback() {
+            @Override
+            public void onTile(String url, byte[] data) {
+                if (data != null) {
+                    put(key, data);
+                }
+                callback.onTile(url, data);
+            }
+
+            @Override
+            public void onFailure(String url, IOException e) {
+                callback.onFailure(url, e);
+            }
+        });
+    }
+
+    private byte[] getHit(long key) {
+        long start = System.nanoTime();
+        byte[] data = get(key);
+        if (data != null && mMetrics != null) {
+            mMetrics.record(TileMetrics.Outcome.MEMORY_HIT, System.nanoTime() - start, data.length);
+        }
+        return data;
+    }
+
+    @Override
+    public byte[] getCachedData(String url) throws IOException {
+        long key = TileKey.fromUrl(url);
+        if (key == TileKey.INVALID) {
+            return mDelegate.getCachedData(url);
+        }
+
+        byte[] data = get(key);
+        if (data != null) {
+            return data;
+        }
+        data = mDelegate.getCachedData(url);
+        if (data != null) {
+            put(key, data);
+        }
+        return data;
+    }
+
+    public synchronized byte[] get(long key) {
+        byte[] data = mTiles.get(key);
+        if (data != null) {
+            mHitCount++;
+        } else {
+            mMissCount++;
+        }
+        return data;
+    }
+
+    public synchronized void put(long key, byte[] data) {
+        if (data.length > mMaxBytes) {
+            return;
+        }
+        byte[] previous = mTiles.put(key, data);
+        mBytes += data.length;
+        if (previous != null) {
+            mBytes -= previous.length;
+        }
+        trimToSize(mMaxBytes);
+    }
+
+    /**
+     * Evicts least recently used tiles until at most {@code maxBytes} are held.  Use this to respond
+     * to memory pressure; the configured budget is unchanged.
+     */
+    public synchronized void trimToSize(long maxBytes) {
+        Iterator<Map.Entry<Long, byte[]>> iterator = mTiles.entrySet().iterator();
+        while (mBytes > maxBytes && iterator.hasNext()) {
+            Map.Entry<Long, byte[]> eldest = iterator.next();
+            mBytes -= eldest.getValue().length;
+            iterator.remove();
+            mEvictionCount++;
+        }
+    }
+
+    /**
+     * Gives memory back as the system asks: half the budget when the app is running low, everything
+     * once it is in the background and the system is short.
+     * @param level as passed to {@code ComponentCallbacks2.onTrimMemory}
+     */
+    public synchronized void onTrimMemory(int level) {
+        if (level >= TRIM_MEMORY_MODERATE) {
+            evictAll();
+        } else if (level >= TRIM_MEMORY_RUNNING_LOW) {
+            trimToSize(mMaxBytes / 2);
+        }
+    }
+
+    public synchronized void evictAll() {
+        trimToSize(0);
+    }
+
+    public synchronized long getMaxBytes() {
+        return mMaxBytes;
+    }
+
+    public synchronized long getBytes() {
+        return mBytes;
+    }
+
+    public synchronized long getHitCount() {
+        return mHitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return mMissCount;
+    }
+
+    public synchronized long getEvictionCount() {
+        return mEvictionCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        long accesses = mHitCount + mMissCount;
+        int hitPercent = accesses == 0 ? 0 : (int) (100 * mHitCount / accesses);
+        return String.format(Locale.US,
+                "MemoryTileCache[bytes=%d,maxBytes=%d,hits=%d,misses=%d,evictions=%d,hitRate=%d%%]",
+                mBytes, mMaxBytes, mHitCount, mMissCount, mEvictionCount, hitPercent);
+    }
+}
@@ -0,0 +1,23 @@
+package uk.co.snodnipper.okhttp.issue1903;
+
+/**
+ * The current network as far as fetching tiles is concerned.  Implementations answer from state they
+ * already hold so the methods are cheap enough to call for every tile.
+ */
+public interface NetworkState {
+
+    enum Bandwidth {
+        UNKNOWN,
+        /** 2G class links, where a tile can take seconds. */
+        SLOW,
+        MODERATE,
+        FAST
+    }
+
+    boolean isOnline();
+
+    /** @return true if the user may pay for the data, as on most mobile networks */
+    boolean isMetered();
+
+    Bandwidth getBandwidth();
+}
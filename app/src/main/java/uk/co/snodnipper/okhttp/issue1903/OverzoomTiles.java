@@ -0,0 +1,109 @@
+package uk.co.snodnipper.okhttp.issue1903;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.LruCache;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+/**
+ * Synthesizes a tile by cropping the matching part of an ancestor tile and scaling it up.  The result
+ * is blurry but lets the map show something while, or instead of, fetching the real tile.  Decoded
+ * ancestors are kept in a small cache so the children of one ancestor only decode it once.
+ */
+public class OverzoomTiles {
+
+    /** Enough for a screen's worth of ancestors of a few levels. */
+    public static final int DEFAULT_MAX_DECODED_BYTES = 4 * 1024 * 1024;
+
+    private final TileScheduler mScheduler;
+    private final TileUrlFormatter mUrls;
+    private final int mTileSize;
+    private final LruCache<Long, Bitmap> mDecoded;
+
+    /**
+     * @param tileSize width and height in pixels of the tiles produced
+     */
+    public OverzoomTiles(TileScheduler scheduler, TileUrlFormatter urls, int tileSize, int maxDecodedBytes) {
+        mScheduler = scheduler;
+        mUrls = urls;
+        mTileSize = tileSize;
+        mDecoded = new LruCache<Long, Bitmap>(maxDecodedBytes) {
+            @Override
+            protected int sizeOf(Long key, Bitmap value) {
+                return value.getRowBytes() * value.getHeight();
+            }
+        };
+    }
+
+    /**
+     * Builds the tile from the nearest ancestor held in the local caches, never going to the network.
+     * @param maxDepth how many levels up to look; each level halves the detail
+     * @return the synthesized tile, or null if no ancestor is cached
+     */
+    public byte[] fromCachedAncestor(int zoom, int x, int y, int maxDepth) throws IOException {
+        for (int depth = 1; depth <= maxDepth && depth <= zoom; depth++) {
+            long key = TileKey.pack(zoom - depth, x >> depth, y >> depth);
+            Bitmap ancestor = mDecoded.get(key);
+            if (ancestor == null) {
+                ancestor = decode(key, mScheduler.getCachedTile(mUrls.format(key)));
+            }
+            if (ancestor != null) {
+                return crop(ancestor, depth, x, y);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Builds the tile from its ancestor at {@code ancestorZoom}, fetching the ancestor if needed.  Use
+     * this for zoom levels the server does not have.
+     * @return the synthesized tile, or null if the ancestor could not be fetched
+     */
+    public byte[] fromAncestor(int zoom, int x, int y, int ancestorZoom) throws IOException {
+        int depth = zoom - ancestorZoom;
+        long key = TileKey.pack(ancestorZoom, x >> depth, y >> depth);
+        Bitmap ancestor = mDecoded.get(key);
+        if (ancestor == null) {
+            String url = mUrls.format(key);
+            ancestor = decode(key, mScheduler.getTile(ancestorZoom, x >> depth, y >> depth, url));
+        }
+        return ancestor == null ? null : crop(ancestor, depth, x, y);
+    }
+
+    public void evictAll() {
+        mDecoded.evictAll();
+    }
+
+    private Bitmap decode(long key, byte[] data) {
+        if (data == null || data.length == 0) {
+            return null;
+        }
+        Bitmap bitmap = BitmapFactory.decodeByteArray(data, 0, data.length);
+        if (bitmap != null) {
+            mDecoded.put(key, bitmap);
+        }
+        return bitmap;
+    }
+
+    private byte[] crop(Bitmap ancestor, int depth, int x, int y) {
+        int size = ancestor.getWidth() >> depth;
+        if (size < 1) {
+            return null;
+        }
+        int mask = (1 << depth) - 1;
+        Bitmap part = Bitmap.createBitmap(ancestor, (x & mask) * size, (y & mask) * size, size, size);
+        Bitmap scaled = Bitmap.createScaledBitmap(part, mTileSize, mTileSize, true);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(16 * 1024);
+        scaled.compress(Bitmap.CompressFormat.PNG, 100, out);
+        // never recycle the ancestor, it is still cached; the copies are ours
+        if (part != ancestor) {
+            part.recycle();
+        }
+        if (scaled != part && scaled != ancestor) {
+            scaled.recycle();
+        }
+        return out.toByteArray();
+    }
+}
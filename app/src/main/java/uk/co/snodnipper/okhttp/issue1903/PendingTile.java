@@ -0,0 +1,116 @@
+package uk.co.snodnipper.okhttp.issue1903;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A tile handed to an {@link AsyncDownloader.Callback} exactly once: delivered, failed or cancelled,
+ * whichever happens first.  A downloader that fetches in several steps points it at the step in
+ * flight with {@link #setUpstream}, so cancelling it cancels that step.
+ */
+final class PendingTile implements AsyncDownloader.Cancellable {
+
+    private static final int PENDING = 0;
+    private static final int DONE = 1;
+    private static final int CANCELLED = 2;
+
+    /** Does nothing; returned for tiles delivered before {@code enqueue} returns. */
+    static final AsyncDownloader.Cancellable DONE_ALREADY = new AsyncDownloader.Cancellable() {
+        @Override
+        public void cancel() {
+        }
+    };
+
+    private final String mUrl;
+    private final AsyncDownloader.Callback mCallback;
+    private final AtomicInteger mState = new AtomicInteger(PENDING);
+    private volatile AsyncDownloader.Cancellable mUpstream;
+
+    PendingTile(String url, AsyncDownloader.Callback callback) {
+        mUrl = url;
+        mCallback = callback;
+    }
+
+    String getUrl() {
+        return mUrl;
+    }
+
+    boolean isCancelled() {
+        return mState.get() == CANCELLED;
+    }
+
+    /**
+     * @param upstream the step now in flight; cancelled at once if this tile already is.  Its
+     *                 cancel may be called more than once
+     */
+    void setUpstream(AsyncDownloader.Cancellable upstream) {
+        mUpstream = upstream;
+        if (isCancelled()) {
+            upstream.cancel();
+        }
+    }
+
+    void deliver(byte[] data) {
+        if (mState.compareAndSet(PENDING, DONE)) {
+            mCallback.onTile(mUrl, data);
+        }
+    }
+
+    void fail(IOException e) {
+        if (mState.compareAndSet(PENDING, DONE)) {
+            mCallback.onFailure(mUrl, e);
+        }
+    }
+
+    @Override
+    public void cancel() {
+        if (mState.compareAndSet(PENDING, CANCELLED)) {
+            AsyncDownloader.Cancellable upstream = mUpstream;
+            if (upstream != null) {
+                upstream.cancel();
+            }
+        }
+    }
+
+    /**
+     * Fetches a tile through {@code downloader} and waits for it, for callers that need a blocking
+     * {@link Downloader#getData}.  If the caller is interrupted the fetch is cancelled.
+     * @throws InterruptedIOException if the calling thread is interrupted while waiting
+     */
+    static byte[] await(AsyncDownloader downloader, String url) throws IOException {
+        Waiter waiter = new Waiter();
+        AsyncDownloader.Cancellable handle = downloader.enqueue(url, waiter);
+        try {
+            waiter.mDone.await();
+        } catch (InterruptedException e) {
+            handle.cancel();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("abandoned " + url);
+        }
+        if (waiter.mError != null) {
+            throw waiter.mError;
+        }
+        return waiter.mResult;
+    }
+
+    private static final class Waiter implements AsyncDownloader.Callback {
+        final CountDownLatch mDone = new CountDownLatch(1);
+        // written before mDone is counted down and read after it, so the latch publishes them
+        byte[] mResult;
+        IOException mError;
+
+        @Override
+        public void onTile(String url, byte[] data) {
+            mResult = data;
+            mDone.countDown();
+        }
+
+        @Override
+        public void onFailure(String url, IOException e) {
+            mError = e;
+            mDone.countDown();
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package uk.co.snodnipper.okhttp.issue1903;
+
+import java.util.List;
+
+/**
+ * Covers exactly the tiles that intersect a polygon, optionally grown by a buffer of whole tiles,
+ * rather than every tile of its bounding box.
+ * <p>
+ * Each row is a scanline: the polygon's edges are clipped to the row's band to find the columns they
+ * cross, and each gap between those columns is either wholly inside or wholly outside the polygon, so
+ * one point-in-polygon test per gap fills the interior.  Cost is proportional to rows times edges,
+ * independent of how many tiles are covered.
+ * <p>
+ * Rings are lists of longitude / latitude vertices.  Edges are treated as straight lines in Web
+ * Mercator, which is exact for map extents projected from the map's spatial reference.  Rings are
+ * combined with the even-odd rule so inner rings are holes.
+ */
+public class PolygonCoverage implements TileCoverage {
+
+    /** Vertices of each ring in world units, x and y in [0, 1] with y = 0 at the top. */
+    private final double[][] mXs;
+    private final double[][] mYs;
+    private final int mEdgeCount;
+    private final int mBuffer;
+    private final double mMinY;
+    private final double mMaxY;
+
+    /**
+     * @param rings       each ring as alternating longitude, latitude values; closing vertex optional
+     * @param bufferTiles number of extra tiles to include around the polygon at every zoom
+     */
+    public PolygonCoverage(List<double[]> rings, int bufferTiles) {
+        if (bufferTiles < 0) {
+            throw new IllegalArgumentException("bufferTiles < 0");
+        }
+        mXs = new double[rings.size()][];
+        mYs = new double[rings.size()][];
+        mBuffer = bufferTiles;
+        double minY = Double.POSITIVE_INFINITY;
+        double maxY = Double.NEGATIVE_INFINITY;
+        int edges = 0;
+        for (int r = 0; r < rings.size(); r++) {
+            double[] ring = rings.get(r);
+            int count = ring.length / 2;
+            mXs[r] = new double[count];
+            mYs[r] = new double[count];
+            TileMath.toWorld(ring, count, mXs[r], mYs[r]);
+            for (int i = 0; i < count; i++) {
+                minY = Math.min(minY, mYs[r][i]);
+                maxY = Math.max(maxY, mYs[r][i]);
+            }
+            edges += count;
+        }
+        mEdgeCount = edges;
+        mMinY = minY;
+        mMaxY = maxY;
+    }
+
+    @Override
+    public int minRow(int zoom) {
+        if (mEdgeCount == 0) {
+            return 1;
+        }
+        return clamp(TileMath.worldToTile(mMinY, zoom) - mBuffer, zoom);
+    }
+
+    @Override
+    public int maxRow(int zoom) {
+        if (mEdgeCount == 0) {
+            return 0;
+        }
+        return clamp(TileMath.worldToTile(mMaxY, zoom) + mBuffer, zoom);
+    }
+
+    @Override
+    public void getSpans(int zoom, int y, TileSpans spans) {
+        spans.clear();
+        if (mEdgeCount == 0) {
+            return;
+        }
+        int tilesPerSide = 1 << zoom;
+        double top = (double) (y - mBuffer) / tilesPerSide;
+        double bottom = (double) (y + 1 + mBuffer) / tilesPerSide;
+
+        // x extents of every edge within the band, as world x pairs
+        double[] crossings = new double[2 * mEdgeCount];
+        int count = 0;
+        for (int r = 0; r < mXs.length; r++) {
+            double[] xs = mXs[r];
+            double[] ys = mYs[r];
+            for (int i = 0, j = xs.length - 1; i < xs.length; j = i++) {
+                double y0 = ys[j];
+                double y1 = ys[i];
+                if ((y0 < top && y1 < top) || (y0 > bottom && y1 > bottom)) {
+                    continue;
+                }
+                double x0 = xs[j];
+                double x1 = xs[i];
+                double from;
+                double to;
+                if (y0 == y1) {
+                    from = x0;
+                    to = x1;
+                } else {
+                    double t0 = (top - y0) / (y1 - y0);
+                    double t1 = (bottom - y0) / (y1 - y0);
+                    double tMin = Math.max(0, Math.min(t0, t1));
+                    double tMax = Math.min(1, Math.max(t0, t1));
+                    from = x0 + (x1 - x0) * tMin;
+                    to = x0 + (x1 - x0) * tMax;
+                }
+                crossings[count++] = Math.min(from, to);
+                crossings[count++] = Math.max(from, to);
+            }
+        }
+        if (count == 0 && !contains(0.5, (top + bottom) / 2)) {
+            return;
+        }
+
+        int[] order = sortByStart(crossings, count / 2);
+        double middle = (top + bottom) / 2;
+        // sweep left to right, merging overlapping edges and filling gaps that are inside the polygon
+        double spanStart = Double.NaN;
+        double spanEnd = 0;
+        double previousEnd = 0;
+        for (int k = 0; k <= order.length; k++) {
+            double from = k < order.length ? crossings[2 * order[k]] : 1;
+            double to = k < order.length ? crossings[2 * order[k] + 1] : 1;
+            if (from > previousEnd && contains((previousEnd + from) / 2, middle)) {
+                // the gap is interior, it joins the current span
+                if (Double.isNaN(spanStart)) {
+                    spanStart = previousEnd;
+                }
+                spanEnd = from;
+            } else if (from > previousEnd && !Double.isNaN(spanStart)) {
+                addSpan(spans, spanStart, spanEnd, tilesPerSide);
+                spanStart = Double.NaN;
+            }
+            if (k == order.length) {
+                break;
+            }
+            if (Double.isNaN(spanStart)) {
+                spanStart = from;
+            }
+            spanEnd = Math.max(spanEnd, to);
+            previousEnd = Math.max(previousEnd, to);
+        }
+        if (!Double.isNaN(spanStart)) {
+            addSpan(spans, spanStart, spanEnd, tilesPerSide);
+        }
+    }
+
+    @Override
+    public long count(int zoom, int fromRow, int toRow) {
+        TileSpans spans = new TileSpans();
+        long count = 0;
+        for (int y = Math.max(fromRow, minRow(zoom)); y <= Math.min(toRow, maxRow(zoom)); y++) {
+            getSpans(zoom, y, spans);
+            count += spans.width();
+        }
+        return count;
+    }
+
+    private void addSpan(TileSpans spans, double from, double to, int tilesPerSide) {
+        int first = (int) Math.floor(from * tilesPerSide);
+        int last = (int) Math.ceil(to * tilesPerSide) - 1;
+        // a single vertical edge exactly on a tile boundary still touches the tile to its right
+        last = Math.max(last, first);
+        spans.add(Math.max(first - mBuffer, 0), Math.min(last + mBuffer, tilesPerSide - 1));
+    }
+
+    /** Even-odd point in polygon test in world units. */
+    private boolean contains(double x, double y) {
+        boolean inside = false;
+        for (int r = 0; r < mXs.length; r++) {
+            double[] xs = mXs[r];
+            double[] ys = mYs[r];
+            for (int i = 0, j = xs.length - 1; i < xs.length; j = i++) {
+                if ((ys[i] > y) != (ys[j] > y)
+                        && x < (xs[j] - xs[i]) * (y - ys[i]) / (ys[j] - ys[i]) + xs[i]) {
+                    inside = !inside;
+                }
+            }
+        }
+        return inside;
+    }
+
+    /**
+     * @return indices of the {@code count} (start, end) pairs in {@code crossings}, ordered by start
+     */
+    private static int[] sortByStart(double[] crossings, int count) {
+        int[] order = new int[count];
+        // insertion sort: a band crosses few edges
+        for (int i = 0; i < count; i++) {
+            double start = crossings[2 * i];
+            int j = i - 1;
+            while (j >= 0 && crossings[2 * order[j]] > start) {
+                order[j + 1] = order[j];
+                j--;
+            }
+            order[j + 1] = i;
+        }
+        return order;
+    }
+
+    private static int clamp(int tile, int zoom) {
+        return Math.min(Math.max(tile, 0), (1 << zoom) - 1);
+    }
+}
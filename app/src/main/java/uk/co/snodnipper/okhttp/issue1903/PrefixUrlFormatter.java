@@ -0,0 +1,45 @@
+package uk.co.snodnipper.okhttp.issue1903;
+
+/**
+ * Formats {@link TileKey}s as {@code prefix + z/x/y + suffix} URLs.  The only allocation per tile is
+ * the returned string: digits are appended to a per-thread builder that is reused between calls.
+ * Safe for use from multiple threads.
+ */
+public class PrefixUrlFormatter implements TileUrlFormatter {
+
+    private final String mPrefix;
+    private final String mSuffix;
+
+    private final ThreadLocal<StringBuilder> mBuilder = new ThreadLocal<StringBuilder>() {
+        @Override
+        protected StringBuilder initialValue() {
+            return new StringBuilder(mPrefix.length() + mSuffix.length() + 24);
+        }
+    };
+
+    /**
+     * @param prefix everything before the zoom, including the trailing slash
+     * @param suffix everything after the row, e.g. {@code ".png"}
+     */
+    public PrefixUrlFormatter(String prefix, String suffix) {
+        mPrefix = prefix;
+        mSuffix = suffix;
+    }
+
+    @Override
+    public String format(long key) {
+        return format(TileKey.zoom(key), TileKey.x(key), TileKey.y(key));
+    }
+
+    @Override
+    public String format(int zoom, int x, int y) {
+        StringBuilder builder = mBuilder.get();
+        builder.setLength(0);
+        return builder.append(mPrefix)
+                .append(zoom).append('/')
+                .append(x).append('/')
+                .append(y)
+                .append(mSuffix)
+                .toString();
+    }
+}
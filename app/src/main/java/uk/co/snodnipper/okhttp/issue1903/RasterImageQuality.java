@@ -0,0 +1,65 @@
+package uk.co.snodnipper.okhttp.issue1903;
+
+/**
+ * Image formats offered by Mapbox raster tile services.
+ */
+public enum RasterImageQuality {
+    /** Full image quality. */
+    MBXRasterImageQualityFull(0, "png"),
+    /** 32 color indexed PNG. */
+    MBXRasterImageQualityPNG32(1, "png32"),
+    /** 64 color indexed PNG. */
+    MBXRasterImageQualityPNG64(2, "png64"),
+    /** 128 color indexed PNG. */
+    MBXRasterImageQualityPNG128(3, "png128"),
+    /** 256 color indexed PNG. */
+    MBXRasterImageQualityPNG256(4, "png256"),
+    /** 70% quality JPEG. */
+    MBXRasterImageQualityJPEG70(5, "jpg70"),
+    /** 80% quality JPEG. */
+    MBXRasterImageQualityJPEG80(6, "jpg80"),
+    /** 90% quality JPEG. */
+    MBXRasterImageQualityJPEG90(7, "jpg90");
+
+    private int value;
+    private String extension;
+
+    RasterImageQuality(int value, String extension) {
+        this.value = value;
+        this.extension = extension;
+    }
+
+    public int getValue() {
+        return value;
+    }
+
+    /**
+     * @return the file extension that selects this quality, without the dot
+     */
+    public String getExtension() {
+        return extension;
+    }
+
+    public static RasterImageQuality getEnumForValue(int value) {
+        switch (value) {
+            case 0:
+                return MBXRasterImageQualityFull;
+            case 1:
+                return MBXRasterImageQualityPNG32;
+            case 2:
+                return MBXRasterImageQualityPNG64;
+            case 3:
+                return MBXRasterImageQualityPNG128;
+            case 4:
+                return MBXRasterImageQualityPNG256;
+            case 5:
+                return MBXRasterImageQualityJPEG70;
+            case 6:
+                return MBXRasterImageQualityJPEG80;
+            case 7:
+                return MBXRasterImageQualityJPEG90;
+            default:
+                return MBXRasterImageQualityFull;
+        }
+    }
+}
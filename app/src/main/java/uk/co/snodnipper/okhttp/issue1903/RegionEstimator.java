@@ -0,0 +1,245 @@
+package uk.co.snodnipper.okhttp.issue1903;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Sizes a region download before it starts: exact tile counts per zoom, computed row by row from the
+ * same {@link TileCoverage}s the download enumerates, plus a sampled estimate of how many tiles are
+ * already cached and how many bytes the rest will cost.  Sample tiles are picked by index from the
+ * rows' spans, so the cost grows with the number of rows rather than of tiles.
+ */
+public class RegionEstimator {
+
+    /** Assumed size of a tile when no sampled tile is cached. */
+    public static final long DEFAULT_TILE_BYTES = 20 * 1024;
+
+    private static final int DEFAULT_SAMPLES = 256;
+
+    public interface CacheProbe {
+        /**
+         * @return the size of the cached body for {@code url}, or -1 if it is not cached
+         */
+        long getCachedSize(String url);
+    }
+
+    public static final class Estimate {
+        public final int minZoom;
+        /** Tiles at each zoom from {@code minZoom}. */
+        public final long[] tilesPerZoom;
+        public final long totalTiles;
+        public final long estimatedCachedTiles;
+        public final long estimatedTileBytes;
+
+        Estimate(int minZoom, long[] tilesPerZoom, long estimatedCachedTiles, long estimatedTileBytes) {
+            this.minZoom = minZoom;
+            this.tilesPerZoom = tilesPerZoom;
+            long total = 0;
+            for (long tiles : tilesPerZoom) {
+                total += tiles;
+            }
+            this.totalTiles = total;
+            this.estimatedCachedTiles = estimatedCachedTiles;
+            this.estimatedTileBytes = estimatedTileBytes;
+        }
+
+        public long getTilesToDownload() {
+            return totalTiles - estimatedCachedTiles;
+        }
+
+        public long getBytesToDownload() {
+            return getTilesToDownload() * estimatedTileBytes;
+        }
+
+        /**
+         * @return the deepest zoom whose cumulative tile count is at most {@code maxTiles}, or
+         *     {@code minZoom - 1} if even {@code minZoom} exceeds it
+         */
+        public int getMaxZoomWithin(long maxTiles) {
+            long total = 0;
+            for (int i = 0; i < tilesPerZoom.length; i++) {
+                total += tilesPerZoom[i];
+                if (total > maxTiles) {
+                    return minZoom + i - 1;
+                }
+            }
+            return minZoom + tilesPerZoom.length - 1;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%d tiles, ~%d cached, ~%.1f MB to download",
+                    totalTiles, estimatedCachedTiles, getBytesToDownload() / (1024.0 * 1024.0));
+        }
+    }
+
+    private final CacheProbe mCacheProbe;
+    private final TileUrlFormatter mUrls;
+    private final int mSamples;
+
+    public RegionEstimator(CacheProbe cacheProbe, TileUrlFormatter urls) {
+        this(cacheProbe, urls, DEFAULT_SAMPLES);
+    }
+
+    /**
+     * @param samples number of tiles, spread evenly over the region, whose cache entries are checked
+     */
+    public RegionEstimator(CacheProbe cacheProbe, TileUrlFormatter urls, int samples) {
+        mCacheProbe = cacheProbe;
+        mUrls = urls;
+        mSamples = samples;
+    }
+
+    public Estimate estimate(TileCoverage coverage, int minZoom, int maxZoom) {
+        return estimate(Collections.singletonList(coverage), minZoom, maxZoom);
+    }
+
+    public Estimate estimate(List<TileCoverage> coverages, int minZoom, int maxZoom) {
+        long[] tilesPerZoom = new long[maxZoom - minZoom + 1];
+        long total = 0;
+        for (int zoom = minZoom; zoom <= maxZoom; zoom++) {
+            tilesPerZoom[zoom - minZoom] = count(coverages, zoom);
+            total += tilesPerZoom[zoom - minZoom];
+        }
+
+        // probe every stride-th tile, in row order at each zoom, so every zoom is sampled in proportion
+        long stride = Math.max(1, total / Math.max(1, mSamples));
+        long sampled = 0;
+        long cached = 0;
+        long cachedBytes = 0;
+        RowUnion row = new RowUnion();
+        long next = 0;
+        long offset = 0;
+        for (int zoom = minZoom; zoom <= maxZoom; zoom++) {
+            long zoomEnd = offset + tilesPerZoom[zoom - minZoom];
+            if (next >= zoomEnd) {
+                offset = zoomEnd;
+                continue;
+            }
+            int maxRow = maxRow(coverages, zoom);
+            for (int y = minRow(coverages, zoom); y <= maxRow && next < zoomEnd; y++) {
+                row.merge(coverages, zoom, y);
+                long rowEnd = offset + row.width();
+                for (; next < rowEnd; next += stride) {
+                    sampled++;
+                    long key = TileKey.pack(zoom, row.column(next - offset), y);
+                    long size = mCacheProbe.getCachedSize(mUrls.format(key));
+                    if (size >= 0) {
+                        cached++;
+                        cachedBytes += size;
+                    }
+                }
+                offset = rowEnd;
+            }
+            offset = zoomEnd;
+        }
+
+        long estimatedCached = sampled == 0 ? 0 : total * cached / sampled;
+        long tileBytes = cached == 0 ? DEFAULT_TILE_BYTES : cachedBytes / cached;
+        return new Estimate(minZoom, tilesPerZoom, estimatedCached, tileBytes);
+    }
+
+    /**
+     * @return the number of distinct tiles the coverages cover at {@code zoom}
+     */
+    public static long count(List<TileCoverage> coverages, int zoom) {
+        if (coverages.size() == 1) {
+            TileCoverage coverage = coverages.get(0);
+            return coverage.count(zoom, coverage.minRow(zoom), coverage.maxRow(zoom));
+        }
+
+        RowUnion row = new RowUnion();
+        long count = 0;
+        int maxRow = maxRow(coverages, zoom);
+        for (int y = minRow(coverages, zoom); y <= maxRow; y++) {
+            row.merge(coverages, zoom, y);
+            count += row.width();
+        }
+        return count;
+    }
+
+    private static int minRow(List<TileCoverage> coverages, int zoom) {
+        int minRow = Integer.MAX_VALUE;
+        for (TileCoverage coverage : coverages) {
+            minRow = Math.min(minRow, coverage.minRow(zoom));
+        }
+        return minRow;
+    }
+
+    private static int maxRow(List<TileCoverage> coverages, int zoom) {
+        int maxRow = Integer.MIN_VALUE;
+        for (TileCoverage coverage : coverages) {
+            maxRow = Math.max(maxRow, coverage.maxRow(zoom));
+        }
+        return maxRow;
+    }
+
+    /**
+     * The union of several coverages' spans in one row, as disjoint column ranges in order.  Not
+     * thread safe.
+     */
+    private static final class RowUnion {
+        private final TileSpans mSpans = new TileSpans();
+        /** Packed (from, to) pairs, sorted then merged in place. */
+        private long[] mBounds = new long[16];
+        private int mSize;
+
+        void merge(List<TileCoverage> coverages, int zoom, int y) {
+            int size = 0;
+            for (TileCoverage coverage : coverages) {
+                coverage.getSpans(zoom, y, mSpans);
+                for (int i = 0; i < mSpans.size(); i++) {
+                    if (size == mBounds.length) {
+                        mBounds = Arrays.copyOf(mBounds, size * 2);
+                    }
+                    mBounds[size++] = ((long) mSpans.from(i) << 32) | mSpans.to(i);
+                }
+            }
+            Arrays.sort(mBounds, 0, size);
+            mSize = 0;
+            for (int i = 0; i < size; i++) {
+                long from = mBounds[i] >>> 32;
+                long to = mBounds[i] & 0xFFFFFFFFL;
+                if (mSize > 0 && from <= to(mSize - 1) + 1) {
+                    if (to > to(mSize - 1)) {
+                        mBounds[mSize - 1] = (from(mSize - 1) << 32) | to;
+                    }
+                } else {
+                    mBounds[mSize++] = (from << 32) | to;
+                }
+            }
+        }
+
+        long width() {
+            long width = 0;
+            for (int i = 0; i < mSize; i++) {
+                width += to(i) - from(i) + 1;
+            }
+            return width;
+        }
+
+        /**
+         * @return the column of the {@code index}th covered tile in the row
+         */
+        int column(long index) {
+            for (int i = 0; i < mSize; i++) {
+                long width = to(i) - from(i) + 1;
+                if (index < width) {
+                    return (int) (from(i) + index);
+                }
+                index -= width;
+            }
+            throw new IndexOutOfBoundsException("index " + index);
+        }
+
+        private long from(int i) {
+            return mBounds[i] >>> 32;
+        }
+
+        private long to(int i) {
+            return mBounds[i] & 0xFFFFFFFFL;
+        }
+    }
+}
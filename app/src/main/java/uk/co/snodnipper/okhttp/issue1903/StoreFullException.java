@@ -0,0 +1,16 @@
+package uk.co.snodnipper.okhttp.issue1903;
+
+import java.io.IOException;
+
+/**
+ * A tile was not fetched, or not kept, because the {@link MbTilesStore} it was bound for is full.  No
+ * later tile fares better until the store is made smaller, so a download stops on it.
+ */
+public class StoreFullException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    public StoreFullException() {
+        super("offline store full");
+    }
+}
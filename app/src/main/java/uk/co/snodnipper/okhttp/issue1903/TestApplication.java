@@ -1,27 +1,127 @@
 package uk.co.snodnipper.okhttp.issue1903;
 
+import android.app.ActivityManager;
 import android.app.Application;
 import android.os.StrictMode;
 import android.util.Log;
 import timber.log.Timber;
 
+import java.io.File;
+import java.io.IOException;
+
 public class TestApplication extends Application {
 
-    private Downloader mDownloader;
+    /** Share of the app's memory class given to recently used tiles held in memory. */
+    private static final int MEMORY_CACHE_FRACTION = 8;
+
+    private AsyncDownloader mDownloader;
+    private MemoryTileCache mMemoryTileCache;
+    private TileScheduler mTileScheduler;
+    private final TileMetrics mTileMetrics = new TileMetrics();
+    private TilePrefetcher mTilePrefetcher;
+    private RegionEstimator mRegionEstimator;
 
     @Override
     public void onCreate() {
         super.onCreate();
-        mDownloader = new DownloaderImpl(getApplicationContext());
+        NetworkState networkState = new ConnectivityMonitor(this);
+        DownloaderImpl downloaderImpl = new DownloaderImpl(getApplicationContext(), networkState,
+                mTileMetrics, DownloaderImpl.DEFAULT_MAX_ORPHANED_DRAINS);
+        // the map layer, the tiles warmed ahead of it and bulk downloads share one fetch, and one limit
+        // per host, when they want the same tile
+        AsyncDownloader networkDownloader = new CoalescingDownloader(new FailoverDownloader(
+                new AdaptiveDownloader(downloaderImpl, networkState), UrlProvider.TILE_SOURCE, networkState));
+        MbTilesStore offlineStore = new MbTilesStore(this, getOfflineStoreFile(), getString(R.string.app_name));
+        mRegionEstimator = new RegionEstimator(offlineStore, UrlProvider.TILE_SOURCE);
+
+        int memoryClass = ((ActivityManager) getSystemService(ACTIVITY_SERVICE)).getMemoryClass();
+        mMemoryTileCache = new MemoryTileCache(
+                new MbTilesDownloader(offlineStore, networkDownloader, false, mTileMetrics),
+                memoryClass * 1024L * 1024L / MEMORY_CACHE_FRACTION, mTileMetrics);
+        mDownloader = mMemoryTileCache;
+        // while the map waits for nothing, warm what it is panning or zooming towards
+        mTileScheduler = new TileScheduler(mDownloader, TileScheduler.DEFAULT_MAX_IN_FLIGHT,
+                TileScheduler.DEFAULT_PARK_TIMEOUT_MILLIS,
+                new TilePredictor(UrlProvider.TILE_SOURCE, networkState, new CachedTiles(offlineStore, downloaderImpl)));
+        // bulk downloads fill the offline store but neither the memory cache nor the HTTP cache, which
+        // they would flush; tiles the store already has fresh are skipped without being read
+        mTilePrefetcher = new TilePrefetcher(new MbTilesDownloader(offlineStore, networkDownloader, true, mTileMetrics),
+                UrlProvider.TILE_SOURCE, new DownloadJobStore(new File(getFilesDir(), "download-jobs")), offlineStore);
         Log.d(TestApplication.class.getSimpleName(), "Created downloader");
         configureStrictMode();
         Timber.plant(new Timber.DebugTree());
+        resumeDownloads();
+    }
+
+    /**
+     * Continues a region download interrupted by the process being killed.
+     */
+    private void resumeDownloads() {
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (mTilePrefetcher.resumePending()) {
+                        Timber.d("resumed download");
+                    }
+                } catch (IOException e) {
+                    Timber.e(e, "cannot resume download");
+                }
+            }
+        }, "tile-prefetch-resume").start();
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        mMemoryTileCache.onTrimMemory(level);
+        Timber.d("trim memory " + level + ": " + mMemoryTileCache);
+    }
+
+    /**
+     * @return counts of every tile fetch in this process, by outcome
+     */
+    public TileMetrics getTileMetrics() {
+        return mTileMetrics;
     }
 
     public Downloader getDownloadLoader() {
         return mDownloader;
     }
 
+    /**
+     * @return the source of the map's tiles; bulk downloads use the same one so they fill its cache
+     */
+    public TileSource getTileSource() {
+        return UrlProvider.TILE_SOURCE;
+    }
+
+    /**
+     * @return the scheduler the map layer fetches through, shared so its workers outlive the activity
+     */
+    public TileScheduler getTileScheduler() {
+        return mTileScheduler;
+    }
+
+    /**
+     * @return the prefetcher shared by all activities so downloads outlive configuration changes
+     */
+    public TilePrefetcher getTilePrefetcher() {
+        return mTilePrefetcher;
+    }
+
+    private File getOfflineStoreFile() {
+        File directory = getExternalFilesDir(null);
+        if (directory == null) {
+            directory = getFilesDir();
+        }
+        return new File(directory, "esri-maps-cache" + File.separator + "offline.mbtiles");
+    }
+
+    public RegionEstimator getRegionEstimator() {
+        return mRegionEstimator;
+    }
+
     private void configureStrictMode() {
         StrictMode.setThreadPolicy(new StrictMode.ThreadPolicy.Builder()
                 .detectAll()
@@ -33,4 +133,23 @@ public class TestApplication extends Application {
                 .penaltyLog()
                 .build());
     }
+
+    /**
+     * A tile is cached if the offline store or the HTTP cache has it fresh.
+     */
+    private static final class CachedTiles implements TilePrefetcher.FreshnessProbe {
+        private final TilePrefetcher.FreshnessProbe mStore;
+        private final TilePrefetcher.FreshnessProbe mCache;
+
+        CachedTiles(TilePrefetcher.FreshnessProbe store, TilePrefetcher.FreshnessProbe cache) {
+            mStore = store;
+            mCache = cache;
+        }
+
+        @Override
+        public TilePrefetcher.Freshness getFreshness(long key, String url) {
+            TilePrefetcher.Freshness freshness = mStore.getFreshness(key, url);
+            return freshness == TilePrefetcher.Freshness.FRESH ? freshness : mCache.getFreshness(key, url);
+        }
+    }
 }
@@ -0,0 +1,91 @@
+package uk.co.snodnipper.okhttp.issue1903;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import okhttp3.ResponseBody;
+import okio.BufferedSource;
+
+/**
+ * Reads tile bodies with as little garbage as possible.  {@link ResponseBody#bytes()} buffers the whole
+ * body in Okio segments and then copies it into a new array; here a body of known length is read
+ * straight into its final array, and one of unknown length into a per-thread scratch buffer that is
+ * reused across tiles, so only the result is allocated.
+ */
+final class TileBodyReader {
+
+    private static final int INITIAL_SCRATCH_BYTES = 32 * 1024;
+    /** Scratch buffers grown past this are not kept, so one huge body does not pin memory. */
+    private static final int MAX_SCRATCH_BYTES = 256 * 1024;
+
+    private static final ThreadLocal<byte[]> SCRATCH = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[INITIAL_SCRATCH_BYTES];
+        }
+    };
+
+    private TileBodyReader() {
+    }
+
+    /**
+     * @return the whole body, in an array of exactly its length
+     */
+    static byte[] read(ResponseBody body) throws IOException {
+        long length = body.contentLength();
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("body too large: " + length);
+        }
+        BufferedSource source = body.source();
+        if (length >= 0) {
+            byte[] data = new byte[(int) length];
+            source.readFully(data);
+            return data;
+        }
+        byte[] scratch = SCRATCH.get();
+        int size = fill(source, scratch);
+        while (size == scratch.length) {
+            scratch = Arrays.copyOf(scratch, scratch.length * 2);
+            if (scratch.length <= MAX_SCRATCH_BYTES) {
+                SCRATCH.set(scratch);
+            }
+            size += fill(source, scratch, size);
+        }
+        return Arrays.copyOf(scratch, size);
+    }
+
+    /**
+     * Reads and throws away the rest of the body, which is what commits it to the cache.
+     * @return the number of bytes read
+     */
+    static long discard(ResponseBody body) throws IOException {
+        BufferedSource source = body.source();
+        byte[] scratch = SCRATCH.get();
+        long total = 0;
+        int read;
+        while ((read = source.read(scratch, 0, scratch.length)) != -1) {
+            total += read;
+        }
+        return total;
+    }
+
+    private static int fill(BufferedSource source, byte[] buffer) throws IOException {
+        return fill(source, buffer, 0);
+    }
+
+    /**
+     * Reads until {@code buffer} is full or the source is exhausted.
+     * @return the number of bytes read
+     */
+    private static int fill(BufferedSource source, byte[] buffer, int offset) throws IOException {
+        int position = offset;
+        while (position < buffer.length) {
+            int read = source.read(buffer, position, buffer.length - position);
+            if (read == -1) {
+                break;
+            }
+            position += read;
+        }
+        return position - offset;
+    }
+}
@@ -0,0 +1,28 @@
+package uk.co.snodnipper.okhttp.issue1903;
+
+/**
+ * The tiles an area covers at each zoom level, described row by row so regions can be enumerated and
+ * counted without materializing them.  Implementations must be safe for concurrent use.
+ */
+public interface TileCoverage {
+
+    /**
+     * @return the first row with covered tiles at {@code zoom}, or greater than {@link #maxRow} if none
+     */
+    int minRow(int zoom);
+
+    /**
+     * @return the last row with covered tiles at {@code zoom}
+     */
+    int maxRow(int zoom);
+
+    /**
+     * Replaces the contents of {@code spans} with the covered columns of row {@code y}.
+     */
+    void getSpans(int zoom, int y, TileSpans spans);
+
+    /**
+     * @return the number of tiles covered in rows {@code [fromRow, toRow]}
+     */
+    long count(int zoom, int fromRow, int toRow);
+}
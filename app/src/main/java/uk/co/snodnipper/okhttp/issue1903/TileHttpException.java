@@ -0,0 +1,72 @@
+package uk.co.snodnipper.okhttp.issue1903;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.Response;
+
+/**
+ * A tile server answered with an error status.  429 Too Many Requests and 503 Service Unavailable
+ * are the server pushing back; they and gateway errors are transient and worth retrying later, after
+ * {@link #getRetryAfterMillis()} if the server said how long.
+ */
+public class TileHttpException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int mCode;
+    private final long mRetryAfterMillis;
+
+    public TileHttpException(String url, int code, long retryAfterMillis) {
+        super("HTTP " + code + " for " + url);
+        mCode = code;
+        mRetryAfterMillis = retryAfterMillis;
+    }
+
+    /**
+     * @param response a response from the network whose status is not a success
+     */
+    public static TileHttpException from(Response response, long nowMillis) {
+        return new TileHttpException(response.request().url().toString(), response.code(),
+                parseRetryAfter(response.header("Retry-After"), nowMillis));
+    }
+
+    /**
+     * @param value a {@code Retry-After} header: seconds, or an HTTP date
+     * @return the delay in milliseconds, or -1 if there is none
+     */
+    static long parseRetryAfter(String value, long nowMillis) {
+        if (value == null) {
+            return -1;
+        }
+        value = value.trim();
+        try {
+            return TimeUnit.SECONDS.toMillis(Math.max(0, Long.parseLong(value)));
+        } catch (NumberFormatException e) {
+            long date = CacheIndex.parseDate(value);
+            return date == -1 ? -1 : Math.max(0, date - nowMillis);
+        }
+    }
+
+    public int getCode() {
+        return mCode;
+    }
+
+    /**
+     * @return how long the server asked clients to wait, or -1 if it did not say
+     */
+    public long getRetryAfterMillis() {
+        return mRetryAfterMillis;
+    }
+
+    /**
+     * @return true if the server is shedding load rather than refusing this tile
+     */
+    public boolean isOverload() {
+        return mCode == 429 || mCode == 503;
+    }
+
+    public boolean isTransient() {
+        return isOverload() || mCode == 502 || mCode == 504;
+    }
+}
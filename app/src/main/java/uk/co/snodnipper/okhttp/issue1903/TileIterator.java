@@ -0,0 +1,223 @@
+package uk.co.snodnipper.okhttp.issue1903;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Lazily enumerates the {@link TileKey}s of one or more {@link TileCoverage}s, zoom level by zoom
+ * level and row by row within a zoom, so a download can start on the first tile while memory stays
+ * flat however large the region is.
+ * <p>
+ * A tile covered by several coverages is returned once, by the first coverage that covers it; that
+ * is checked against the earlier coverages' spans rather than remembered.
+ * <p>
+ * {@link #split()} hands part of the remaining work to a new iterator for parallel consumption.
+ * Not thread safe; each iterator must be used by one thread at a time.
+ */
+public class TileIterator implements LongIterator {
+
+    /** Rows {@code [fromRow, toRow]} of one coverage at one zoom. */
+    private static final class Segment {
+        final int zoom;
+        final int coverage;
+        final int fromRow;
+        int toRow;
+
+        Segment(int zoom, int coverage, int fromRow, int toRow) {
+            this.zoom = zoom;
+            this.coverage = coverage;
+            this.fromRow = fromRow;
+            this.toRow = toRow;
+        }
+    }
+
+    private final List<TileCoverage> mCoverages;
+    private final List<Segment> mSegments;
+
+    /** Spans of the current row of the current segment. */
+    private final TileSpans mSpans = new TileSpans();
+    /** Spans of the current row of each earlier coverage, for de-duplication. */
+    private final TileSpans[] mEarlierSpans;
+    private final long[] mEarlierRows;
+
+    private int mSegment;
+    private int mRow;
+    private int mSpan;
+    private int mColumn;
+    private boolean mRowLoaded;
+
+    private boolean mLimited;
+    private long mRemaining = Long.MAX_VALUE;
+    private long mNext = TileKey.INVALID;
+
+    public TileIterator(TileCoverage coverage, int minZoom, int maxZoom) {
+        this(Collections.singletonList(coverage), minZoom, maxZoom);
+    }
+
+    public TileIterator(List<TileCoverage> coverages, int minZoom, int maxZoom) {
+        this(coverages, segments(coverages, minZoom, maxZoom));
+    }
+
+    private TileIterator(List<TileCoverage> coverages, List<Segment> segments) {
+        mCoverages = coverages;
+        mSegments = segments;
+        mEarlierSpans = new TileSpans[coverages.size()];
+        mEarlierRows = new long[coverages.size()];
+        for (int i = 0; i < mEarlierSpans.length; i++) {
+            mEarlierSpans[i] = new TileSpans();
+            mEarlierRows[i] = TileKey.INVALID;
+        }
+        if (!mSegments.isEmpty()) {
+            mRow = mSegments.get(0).fromRow;
+        }
+    }
+
+    private static List<Segment> segments(List<TileCoverage> coverages, int minZoom, int maxZoom) {
+        if (minZoom < 0 || maxZoom > TileKey.MAX_ZOOM) {
+            throw new IllegalArgumentException("zoom levels must be within 0.." + TileKey.MAX_ZOOM);
+        }
+        List<Segment> segments = new ArrayList<>();
+        for (int zoom = minZoom; zoom <= maxZoom; zoom++) {
+            for (int i = 0; i < coverages.size(); i++) {
+                TileCoverage coverage = coverages.get(i);
+                int minRow = coverage.minRow(zoom);
+                int maxRow = coverage.maxRow(zoom);
+                if (minRow <= maxRow) {
+                    segments.add(new Segment(zoom, i, minRow, maxRow));
+                }
+            }
+        }
+        return segments;
+    }
+
+    /**
+     * Stops the iterator after {@code limit} more tiles.
+     * @return this iterator
+     */
+    public TileIterator limit(long limit) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("limit < 0");
+        }
+        mLimited = true;
+        mRemaining = limit;
+        return this;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (mNext == TileKey.INVALID && mRemaining > 0) {
+            mNext = advance();
+        }
+        return mNext != TileKey.INVALID;
+    }
+
+    @Override
+    public long next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        long next = mNext;
+        mNext = TileKey.INVALID;
+        if (mLimited) {
+            mRemaining--;
+        }
+        return next;
+    }
+
+    /**
+     * @return an upper bound on the number of tiles left; exact for a single coverage
+     */
+    public long estimateSize() {
+        long size = 0;
+        for (int i = mSegment; i < mSegments.size(); i++) {
+            Segment segment = mSegments.get(i);
+            int fromRow = i == mSegment ? mRow : segment.fromRow;
+            size += mCoverages.get(segment.coverage).count(segment.zoom, fromRow, segment.toRow);
+        }
+        return Math.min(size, mRemaining);
+    }
+
+    /**
+     * Moves about half of the rows of the largest remaining segment, normally the deepest zoom, to a
+     * new iterator.
+     * @return the new iterator, or null if the remaining work cannot be split or a limit is set
+     */
+    public TileIterator split() {
+        if (mLimited) {
+            return null;
+        }
+        int best = -1;
+        long bestRows = 1;
+        for (int i = mSegment; i < mSegments.size(); i++) {
+            Segment segment = mSegments.get(i);
+            // the current row is in progress, only later rows may move
+            long rows = segment.toRow - (i == mSegment ? mRow : segment.fromRow - 1);
+            if (rows > bestRows) {
+                best = i;
+                bestRows = rows;
+            }
+        }
+        if (best < 0) {
+            return null;
+        }
+        Segment segment = mSegments.get(best);
+        int moved = (int) (bestRows / 2);
+        List<Segment> split = new ArrayList<>(1);
+        split.add(new Segment(segment.zoom, segment.coverage, segment.toRow - moved + 1, segment.toRow));
+        segment.toRow -= moved;
+        return new TileIterator(mCoverages, split);
+    }
+
+    private long advance() {
+        while (mSegment < mSegments.size()) {
+            Segment segment = mSegments.get(mSegment);
+            if (mRow > segment.toRow) {
+                mSegment++;
+                if (mSegment < mSegments.size()) {
+                    mRow = mSegments.get(mSegment).fromRow;
+                }
+                mRowLoaded = false;
+                continue;
+            }
+            if (!mRowLoaded) {
+                mCoverages.get(segment.coverage).getSpans(segment.zoom, mRow, mSpans);
+                mSpan = 0;
+                mColumn = mSpans.size() > 0 ? mSpans.from(0) : 0;
+                mRowLoaded = true;
+            }
+            while (mSpan < mSpans.size()) {
+                if (mColumn > mSpans.to(mSpan)) {
+                    mSpan++;
+                    if (mSpan < mSpans.size()) {
+                        mColumn = mSpans.from(mSpan);
+                    }
+                    continue;
+                }
+                int x = mColumn++;
+                if (!coveredEarlier(segment, x, mRow)) {
+                    return TileKey.pack(segment.zoom, x, mRow);
+                }
+            }
+            mRow++;
+            mRowLoaded = false;
+        }
+        return TileKey.INVALID;
+    }
+
+    private boolean coveredEarlier(Segment segment, int x, int y) {
+        for (int i = 0; i < segment.coverage; i++) {
+            // cache each earlier coverage's spans for the row; the packed key doubles as a row id
+            long row = TileKey.pack(segment.zoom, 0, y);
+            if (mEarlierRows[i] != row) {
+                mCoverages.get(i).getSpans(segment.zoom, y, mEarlierSpans[i]);
+                mEarlierRows[i] = row;
+            }
+            if (mEarlierSpans[i].contains(x)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
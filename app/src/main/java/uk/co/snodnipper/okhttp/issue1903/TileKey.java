@@ -0,0 +1,88 @@
+package uk.co.snodnipper.okhttp.issue1903;
+
+/**
+ * Packs a tile's zoom, column and row into a single {@code long} so tiles can be keyed without
+ * allocating.  Layout: 6 bits zoom, 29 bits x, 29 bits y.
+ */
+public final class TileKey {
+
+    /** Returned when a URL does not end in {@code /z/x/y.ext}. */
+    public static final long INVALID = -1L;
+
+    public static final int MAX_ZOOM = 29;
+
+    private static final int COORDINATE_BITS = 29;
+    private static final long COORDINATE_MASK = (1L << COORDINATE_BITS) - 1;
+
+    private TileKey() {
+    }
+
+    public static long pack(int zoom, int x, int y) {
+        if (zoom < 0 || zoom > MAX_ZOOM || x < 0 || y < 0 || (x >>> zoom) != 0 || (y >>> zoom) != 0) {
+            throw new IllegalArgumentException("invalid tile " + zoom + "/" + x + "/" + y);
+        }
+        return ((long) zoom << (2 * COORDINATE_BITS)) | ((long) x << COORDINATE_BITS) | y;
+    }
+
+    public static int zoom(long key) {
+        return (int) (key >>> (2 * COORDINATE_BITS));
+    }
+
+    public static int x(long key) {
+        return (int) ((key >>> COORDINATE_BITS) & COORDINATE_MASK);
+    }
+
+    public static int y(long key) {
+        return (int) (key & COORDINATE_MASK);
+    }
+
+    /**
+     * Parses the trailing {@code /z/x/y} of a tile URL, ignoring any extension or query.
+     * @return the packed key or {@link #INVALID}
+     */
+    public static long fromUrl(String url) {
+        int end = url.indexOf('?');
+        if (end < 0) {
+            end = url.length();
+        }
+        int dot = url.lastIndexOf('.', end);
+        int slash = url.lastIndexOf('/', end);
+        if (dot > slash) {
+            end = dot;
+        }
+        long y = parseSegment(url, slash + 1, end);
+        if (y < 0) {
+            return INVALID;
+        }
+        int xSlash = url.lastIndexOf('/', slash - 1);
+        long x = parseSegment(url, xSlash + 1, slash);
+        if (x < 0 || xSlash <= 0) {
+            return INVALID;
+        }
+        int zSlash = url.lastIndexOf('/', xSlash - 1);
+        long zoom = parseSegment(url, zSlash + 1, xSlash);
+        if (zoom < 0 || zoom > MAX_ZOOM || (x >>> zoom) != 0 || (y >>> zoom) != 0) {
+            return INVALID;
+        }
+        return pack((int) zoom, (int) x, (int) y);
+    }
+
+    private static long parseSegment(String s, int start, int end) {
+        if (start <= 0 || start >= end || end - start > 10) {
+            return -1;
+        }
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    public static String toString(long key) {
+        return zoom(key) + "/" + x(key) + "/" + y(key);
+    }
+}
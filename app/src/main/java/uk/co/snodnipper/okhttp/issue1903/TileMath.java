@@ -0,0 +1,117 @@
+package uk.co.snodnipper.okhttp.issue1903;
+
+/**
+ * Web Mercator tile arithmetic in double precision.
+ * <p>
+ * Positions are projected once to world units, x and y in [0, 1] with y = 0 at the top, after which
+ * the tile at any zoom is a multiplication by a power of two and a floor, both exact.  Projecting
+ * many points at once, as a polygon's vertices, goes through the batch methods, which take flat arrays
+ * and allocate nothing.
+ */
+public final class TileMath {
+
+    /** Latitude limit of the Web Mercator projection. */
+    public static final double MAX_LATITUDE = 85.0511287798066;
+
+    /** {@code SCALES[TileKey.MAX_ZOOM + d]} is 2 to the power d, for zoom differences d either way. */
+    private static final double[] SCALES = new double[2 * TileKey.MAX_ZOOM + 1];
+
+    static {
+        for (int d = -TileKey.MAX_ZOOM; d <= TileKey.MAX_ZOOM; d++) {
+            SCALES[TileKey.MAX_ZOOM + d] = d >= 0 ? (double) (1L << d) : 1.0 / (1L << -d);
+        }
+    }
+
+    private TileMath() {
+    }
+
+    public static int tilesPerSide(int zoom) {
+        return 1 << zoom;
+    }
+
+    /**
+     * @return the size of a tile at {@code fromZoom} measured in tiles at {@code toZoom}
+     */
+    public static double scale(int fromZoom, int toZoom) {
+        return SCALES[TileKey.MAX_ZOOM + toZoom - fromZoom];
+    }
+
+    public static double lonToWorldX(double lon) {
+        return (lon + 180.0) / 360.0;
+    }
+
+    /**
+     * @return the world y of {@code lat}, clamped to the projection's limits
+     */
+    public static double latToWorldY(double lat) {
+        double clamped = Math.min(Math.max(lat, -MAX_LATITUDE), MAX_LATITUDE);
+        double sin = Math.sin(Math.toRadians(clamped));
+        // ln(tan(lat) + sec(lat)) written with a single sine
+        return 0.5 - Math.log((1.0 + sin) / (1.0 - sin)) / (4.0 * Math.PI);
+    }
+
+    public static double worldXToLon(double x) {
+        return x * 360.0 - 180.0;
+    }
+
+    public static double worldYToLat(double y) {
+        return Math.toDegrees(Math.atan(Math.sinh(Math.PI * (1.0 - 2.0 * y))));
+    }
+
+    /**
+     * @return the column or row containing world coordinate {@code world}, clamped to the world
+     */
+    public static int worldToTile(double world, int zoom) {
+        int tile = (int) Math.floor(world * SCALES[TileKey.MAX_ZOOM + zoom]);
+        return Math.min(Math.max(tile, 0), (1 << zoom) - 1);
+    }
+
+    /**
+     * @return the column containing {@code lon}, clamped to the world
+     */
+    public static int lonToTileX(double lon, int zoom) {
+        return worldToTile(lonToWorldX(lon), zoom);
+    }
+
+    /**
+     * @return the row containing {@code lat}, clamped to the world
+     */
+    public static int latToTileY(double lat, int zoom) {
+        return worldToTile(latToWorldY(lat), zoom);
+    }
+
+    /**
+     * Projects {@code count} points to world units.
+     * @param lonLats alternating longitude, latitude values
+     * @param xs      receives each point's world x
+     * @param ys      receives each point's world y
+     */
+    public static void toWorld(double[] lonLats, int count, double[] xs, double[] ys) {
+        for (int i = 0; i < count; i++) {
+            xs[i] = lonToWorldX(lonLats[2 * i]);
+            ys[i] = latToWorldY(lonLats[2 * i + 1]);
+        }
+    }
+
+    /**
+     * Converts {@code count} world coordinates, all x or all y, to tiles at {@code zoom}.
+     */
+    public static void toTiles(double[] world, int count, int zoom, int[] tiles) {
+        double scale = SCALES[TileKey.MAX_ZOOM + zoom];
+        int last = (1 << zoom) - 1;
+        for (int i = 0; i < count; i++) {
+            int tile = (int) Math.floor(world[i] * scale);
+            tiles[i] = tile < 0 ? 0 : tile > last ? last : tile;
+        }
+    }
+
+    /**
+     * Converts {@code count} points to the {@link TileKey}s of the tiles containing them.
+     * @param lonLats alternating longitude, latitude values
+     */
+    public static void toTileKeys(double[] lonLats, int count, int zoom, long[] keys) {
+        for (int i = 0; i < count; i++) {
+            keys[i] = TileKey.pack(zoom, lonToTileX(lonLats[2 * i], zoom), latToTileY(lonLats[2 * i + 1], zoom));
+        }
+    }
+}
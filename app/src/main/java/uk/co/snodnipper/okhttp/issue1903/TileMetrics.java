@@ -0,0 +1,256 @@
+package uk.co.snodnipper.okhttp.issue1903;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import okhttp3.Cache;
+import okhttp3.Connection;
+import okhttp3.Interceptor;
+import okhttp3.Response;
+
+/**
+ * Counts what happens to tile fetches: latency histograms and bytes by {@link Outcome}, how often
+ * connections are reused, how many cache writes commit or abort, and how many tiles are downloaded
+ * again after an earlier fetch of them was.  Recording is lock-free and cheap enough for every tile;
+ * {@link #snapshot()} and {@link #dump()} can be polled at any time.
+ */
+public class TileMetrics {
+
+    public enum Outcome {
+        /** Served from memory. */
+        MEMORY_HIT,
+        /** Served from the HTTP cache or the offline store without touching the network. */
+        DISK_HIT,
+        /** Revalidated with the server, which answered 304. */
+        CONDITIONAL_HIT,
+        /** Downloaded. */
+        NETWORK,
+        /** No tile: an error, or a miss with the network unavailable. */
+        FAILURE,
+        /** Abandoned by its caller before the tile arrived. */
+        CANCELLED
+    }
+
+    /** Log2 buckets of milliseconds: bucket i holds latencies in [2^(i-1), 2^i), bucket 0 under 1ms. */
+    static final int BUCKETS = 20;
+
+    /** One in this many tiles is logged. */
+    private static final int LOG_SAMPLE_RATE = 100;
+    /** Words of the set of fetched tiles: 256K bits in 32 KB. */
+    private static final int FETCHED_WORDS = 1 << 12;
+
+    private final AtomicLongArray mHistograms = new AtomicLongArray(Outcome.values().length * BUCKETS);
+    private final AtomicLongArray mCounts = new AtomicLongArray(Outcome.values().length);
+    private final AtomicLongArray mBytes = new AtomicLongArray(Outcome.values().length);
+    private final AtomicLongArray mTotalNanos = new AtomicLongArray(Outcome.values().length);
+    private final AtomicLong mNewConnections = new AtomicLong();
+    private final AtomicLong mReusedConnections = new AtomicLong();
+    private final AtomicLong mLogCounter = new AtomicLong();
+    /** Tiles fetched from the network, hashed to one bit each, so a set bit may be another tile's. */
+    private final AtomicLongArray mFetched = new AtomicLongArray(FETCHED_WORDS);
+    private final AtomicLong mRefetches = new AtomicLong();
+    /** Connections seen by the network interceptor, weakly held so closed ones are forgotten. */
+    private final Set<Connection> mConnections =
+            Collections.newSetFromMap(new WeakHashMap<Connection, Boolean>());
+
+    private volatile Cache mCache;
+
+    public void record(Outcome outcome, long latencyNanos, long bytes) {
+        int index = outcome.ordinal();
+        mCounts.incrementAndGet(index);
+        mBytes.addAndGet(index, bytes);
+        mTotalNanos.addAndGet(index, latencyNanos);
+        mHistograms.incrementAndGet(index * BUCKETS + bucket(latencyNanos));
+    }
+
+    /**
+     * Notes a network fetch of a tile that either read the whole body, committing it to the cache, or
+     * was cancelled after it started.  A tile downloaded after an earlier fetch of it is counted as a
+     * refetch: the bytes of the first were lost, to an aborted cache write or to eviction.  The count
+     * is approximate; a few tiles share each bit.
+     * @param key        the {@link TileKey}; {@link TileKey#INVALID} is ignored
+     * @param downloaded true if the body was read, false if the fetch was cancelled
+     */
+    public void recordFetch(long key, boolean downloaded) {
+        if (key == TileKey.INVALID) {
+            return;
+        }
+        long hash = key * 0x9E3779B97F4A7C15L;
+        int bit = (int) (hash >>> 58);
+        int word = (int) (hash >>> 32) & (FETCHED_WORDS - 1);
+        long mask = 1L << bit;
+        long bits;
+        do {
+            bits = mFetched.get(word);
+        } while ((bits & mask) == 0 && !mFetched.compareAndSet(word, bits, bits | mask));
+        if (downloaded && (bits & mask) != 0) {
+            mRefetches.incrementAndGet();
+        }
+    }
+
+    /**
+     * @return true for one in {@code LOG_SAMPLE_RATE} calls, so per-tile logging can be sampled
+     */
+    public boolean sampleLog() {
+        return mLogCounter.getAndIncrement() % LOG_SAMPLE_RATE == 0;
+    }
+
+    /**
+     * Reports the write counts of {@code cache}, whose aborted writes are tiles lost to cancellation.
+     */
+    public void attach(Cache cache) {
+        mCache = cache;
+    }
+
+    /**
+     * @return a network interceptor counting whether each request got a new or a pooled connection
+     */
+    public Interceptor connectionInterceptor() {
+        return new Interceptor() {
+            @Override
+            public Response intercept(Chain chain) throws IOException {
+                Connection connection = chain.connection();
+                if (connection != null) {
+                    boolean added;
+                    synchronized (mConnections) {
+                        added = mConnections.add(connection);
+                    }
+                    (added ? mNewConnections : mReusedConnections).incrementAndGet();
+                }
+                return chain.proceed(chain.request());
+            }
+        };
+    }
+
+    static int bucket(long latencyNanos) {
+        long millis = TimeUnit.NANOSECONDS.toMillis(latencyNanos);
+        int bucket = 64 - Long.numberOfLeadingZeros(millis);
+        return Math.min(bucket, BUCKETS - 1);
+    }
+
+    public Snapshot snapshot() {
+        int outcomes = Outcome.values().length;
+        long[] histograms = new long[outcomes * BUCKETS];
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = mHistograms.get(i);
+        }
+        long[] counts = new long[outcomes];
+        long[] bytes = new long[outcomes];
+        long[] totalNanos = new long[outcomes];
+        for (int i = 0; i < outcomes; i++) {
+            counts[i] = mCounts.get(i);
+            bytes[i] = mBytes.get(i);
+            totalNanos[i] = mTotalNanos.get(i);
+        }
+        Cache cache = mCache;
+        return new Snapshot(histograms, counts, bytes, totalNanos, mNewConnections.get(), mReusedConnections.get(),
+                cache == null ? 0 : cache.writeSuccessCount(), cache == null ? 0 : cache.writeAbortCount(),
+                mRefetches.get());
+    }
+
+    /**
+     * @return a multi-line summary suitable for logging
+     */
+    public String dump() {
+        return snapshot().toString();
+    }
+
+    public static final class Snapshot {
+        private final long[] mHistograms;
+        private final long[] mCounts;
+        private final long[] mBytes;
+        private final long[] mTotalNanos;
+        public final long newConnections;
+        public final long reusedConnections;
+        public final long cacheWriteSuccesses;
+        public final long cacheWriteAborts;
+        /** Tiles downloaded again after an earlier fetch of them was downloaded or cancelled. */
+        public final long refetches;
+
+        Snapshot(long[] histograms, long[] counts, long[] bytes, long[] totalNanos, long newConnections,
+                 long reusedConnections, long cacheWriteSuccesses, long cacheWriteAborts, long refetches) {
+            mHistograms = histograms;
+            mCounts = counts;
+            mBytes = bytes;
+            mTotalNanos = totalNanos;
+            this.newConnections = newConnections;
+            this.reusedConnections = reusedConnections;
+            this.cacheWriteSuccesses = cacheWriteSuccesses;
+            this.cacheWriteAborts = cacheWriteAborts;
+            this.refetches = refetches;
+        }
+
+        public long getCount(Outcome outcome) {
+            return mCounts[outcome.ordinal()];
+        }
+
+        public long getBytes(Outcome outcome) {
+            return mBytes[outcome.ordinal()];
+        }
+
+        /**
+         * @return the tiles with {@code outcome} whose latency fell in {@code bucket}; see {@link #BUCKETS}
+         */
+        public long getBucket(Outcome outcome, int bucket) {
+            return mHistograms[outcome.ordinal() * BUCKETS + bucket];
+        }
+
+        /**
+         * @return an upper bound in milliseconds on the latency of the given fraction of the tiles with
+         *         {@code outcome}, to the resolution of the histogram, or 0 if there are none
+         */
+        public long getPercentileMillis(Outcome outcome, double fraction) {
+            long count = getCount(outcome);
+            if (count == 0) {
+                return 0;
+            }
+            long target = (long) Math.ceil(fraction * count);
+            long seen = 0;
+            for (int bucket = 0; bucket < BUCKETS; bucket++) {
+                seen += getBucket(outcome, bucket);
+                if (seen >= target) {
+                    return 1L << bucket;
+                }
+            }
+            return 1L << BUCKETS;
+        }
+
+        /**
+         * @return the share of tiles served without downloading the body, 0 to 1
+         */
+        public double getHitRatio() {
+            long hits = getCount(Outcome.MEMORY_HIT) + getCount(Outcome.DISK_HIT) + getCount(Outcome.CONDITIONAL_HIT);
+            long total = hits + getCount(Outcome.NETWORK) + getCount(Outcome.FAILURE);
+            return total == 0 ? 0 : (double) hits / total;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder();
+            builder.append(String.format(Locale.US,
+                    "tiles: hit ratio %.2f, connections %d new %d reused, cache writes %d committed %d aborted,"
+                            + " %d refetched",
+                    getHitRatio(), newConnections, reusedConnections, cacheWriteSuccesses, cacheWriteAborts,
+                    refetches));
+            for (Outcome outcome : Outcome.values()) {
+                long count = getCount(outcome);
+                if (count == 0) {
+                    continue;
+                }
+                builder.append(String.format(Locale.US,
+                        "\n  %-15s %7d tiles %9d KB  mean %5d ms  p50 <%d ms  p90 <%d ms  p99 <%d ms",
+                        outcome, count, getBytes(outcome) / 1024,
+                        TimeUnit.NANOSECONDS.toMillis(mTotalNanos[outcome.ordinal()] / count),
+                        getPercentileMillis(outcome, 0.5), getPercentileMillis(outcome, 0.9),
+                        getPercentileMillis(outcome, 0.99)));
+            }
+            return builder.toString();
+        }
+    }
+}
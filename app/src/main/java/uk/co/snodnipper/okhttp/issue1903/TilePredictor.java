@@ -0,0 +1,355 @@
+package uk.co.snodnipper.okhttp.issue1903;
+
+import java.util.Arrays;
+
+/**
+ * Guesses which tiles the map will ask for next from how its viewport has been moving, so a
+ * {@link TileScheduler} can fetch them while its foreground queue is empty.
+ * <p>
+ * Panning is followed as a velocity in world units, smoothed over successive viewports; the tiles
+ * predicted are those the viewport would move into over the lookahead, nearest first.  After a zoom
+ * the same view one level further in the same direction is predicted, and otherwise just the children
+ * of the centre tile.  Predictions are limited to {@code maxInFlight} fetches at once and a byte budget
+ * refilled at {@code bytesPerSecond}, and are not made at all on a metered or slow network.  Thread
+ * safe.
+ */
+public class TilePredictor {
+
+    public static final int DEFAULT_MAX_IN_FLIGHT = 2;
+    public static final long DEFAULT_BYTES_PER_SECOND = 128 * 1024;
+    public static final long DEFAULT_LOOKAHEAD_MILLIS = 1000;
+
+    /** A viewport that has not moved for this long has stopped, whatever its last velocity. */
+    private static final long MAX_SAMPLE_GAP_MILLIS = 500;
+    private static final double VELOCITY_WEIGHT = 0.5;
+    /** How long a zoom suggests another in the same direction. */
+    private static final long ZOOM_INTENT_MILLIS = 5000;
+    /** Movement over the lookahead below this, in tiles, is not worth predicting for. */
+    private static final double MIN_LEAD_TILES = 0.25;
+    private static final int MAX_PREDICTED = 64;
+    /** Tiles remembered as already warmed before the memory is started afresh. */
+    private static final int MAX_WARMED = 4096;
+    private static final long[] NONE = new long[0];
+
+    private final TileSource mSource;
+    private final NetworkState mNetworkState;
+    private final TilePrefetcher.FreshnessProbe mFreshnessProbe;
+    private final int mMaxInFlight;
+    private final long mBytesPerSecond;
+    private final long mLookaheadMillis;
+
+    private int mZoom = -1;
+    /** The viewport's centre in world units. */
+    private double mCentreX;
+    private double mCentreY;
+    /** Half the viewport's size in tiles at {@code mZoom}. */
+    private double mHalfWidth;
+    private double mHalfHeight;
+    private long mLastMillis;
+    /** World units per millisecond. */
+    private double mVelocityX;
+    private double mVelocityY;
+    private int mZoomDirection;
+    private long mZoomedMillis;
+
+    private double mBudget;
+    private long mBudgetMillis;
+    /** Tiles claimed, fetched or found fresh, so they are not predicted again. */
+    private LongHashSet mClaimed = new LongHashSet();
+    /** Tiles claimed and actually fetched, the only ones the map asking for is a hit on. */
+    private LongHashSet mWarmed = new LongHashSet();
+    private long mWarmedCount;
+    private long mHitCount;
+
+    public TilePredictor(TileSource source, NetworkState networkState, TilePrefetcher.FreshnessProbe freshnessProbe) {
+        this(source, networkState, freshnessProbe, DEFAULT_MAX_IN_FLIGHT, DEFAULT_BYTES_PER_SECOND,
+                DEFAULT_LOOKAHEAD_MILLIS);
+    }
+
+    /**
+     * @param freshnessProbe   tells which predicted tiles are already cached and need no fetch; may be
+     *                         null
+     * @param maxInFlight      most predicted tiles fetched at once; the scheduler's other slots are
+     *                         left to the tiles the map asks for
+     * @param bytesPerSecond   average rate predicted tiles may be fetched at, with bursts of up to two
+     *                         seconds' worth
+     * @param lookaheadMillis  how far ahead panning is extrapolated
+     */
+    public TilePredictor(TileSource source, NetworkState networkState, TilePrefetcher.FreshnessProbe freshnessProbe,
+                         int maxInFlight, long bytesPerSecond, long lookaheadMillis) {
+        mSource = source;
+        mNetworkState = networkState;
+        mFreshnessProbe = freshnessProbe;
+        mMaxInFlight = maxInFlight;
+        mBytesPerSecond = bytesPerSecond;
+        mLookaheadMillis = lookaheadMillis;
+        mBudget = 2 * bytesPerSecond;
+    }
+
+    /**
+     * Records where the viewport is; the arguments are as for {@link TileScheduler#setViewport}.
+     */
+    public synchronized void onViewport(int zoom, double centreX, double centreY, double halfWidth,
+                                        double halfHeight, long nowMillis) {
+        double scale = TileMath.scale(zoom, 0);
+        double x = centreX * scale;
+        double y = centreY * scale;
+        long elapsed = nowMillis - mLastMillis;
+        if (zoom != mZoom) {
+            if (mZoom >= 0) {
+                mZoomDirection = zoom > mZoom ? 1 : -1;
+                mZoomedMillis = nowMillis;
+            }
+            mVelocityX = 0;
+            mVelocityY = 0;
+        } else if (elapsed > MAX_SAMPLE_GAP_MILLIS) {
+            mVelocityX = 0;
+            mVelocityY = 0;
+        } else if (elapsed > 0) {
+            double dx = x - mCentreX;
+            // the shorter way round the date line
+            dx -= Math.floor(dx + 0.5);
+            mVelocityX += VELOCITY_WEIGHT * (dx / elapsed - mVelocityX);
+            mVelocityY += VELOCITY_WEIGHT * ((y - mCentreY) / elapsed - mVelocityY);
+        }
+        mZoom = zoom;
+        mCentreX = x;
+        mCentreY = y;
+        mHalfWidth = halfWidth;
+        mHalfHeight = halfHeight;
+        mLastMillis = nowMillis;
+    }
+
+    /**
+     * @return {@link TileKey}s of the tiles worth warming, most urgent first, leaving out those the
+     *         viewport already shows and those already warmed
+     */
+    public synchronized long[] predict(long nowMillis) {
+        if (mZoom < 0) {
+            return NONE;
+        }
+        long[] keys = new long[MAX_PREDICTED];
+        int count = 0;
+
+        int tiles = TileMath.tilesPerSide(mZoom);
+        // a fling is not followed further than two views ahead
+        double leadX = clamp(mVelocityX * mLookaheadMillis * tiles, 4 * mHalfWidth);
+        double leadY = clamp(mVelocityY * mLookaheadMillis * tiles, 4 * mHalfHeight);
+        if (Math.abs(leadX) >= MIN_LEAD_TILES || Math.abs(leadY) >= MIN_LEAD_TILES) {
+            count = addLeadingRing(keys, count, leadX, leadY);
+        }
+
+        boolean zooming = mZoomDirection != 0 && nowMillis - mZoomedMillis < ZOOM_INTENT_MILLIS;
+        if (zooming && mZoomDirection > 0 && mZoom < mSource.getMaxZoom()) {
+            // a view one level in shows the middle half of this one
+            count = addView(keys, count, mZoom + 1, mHalfWidth, mHalfHeight);
+        } else if (zooming && mZoomDirection < 0 && mZoom > mSource.getMinZoom()) {
+            count = addView(keys, count, mZoom - 1, mHalfWidth, mHalfHeight);
+        } else if (!zooming && mZoom < mSource.getMaxZoom()) {
+            count = addChildren(keys, count);
+        }
+        return Arrays.copyOf(keys, count);
+    }
+
+    /**
+     * Adds the tiles the viewport moves into when its centre is moved by {@code leadX, leadY} tiles,
+     * nearest the current centre first.
+     */
+    private int addLeadingRing(long[] keys, int count, double leadX, double leadY) {
+        int tiles = TileMath.tilesPerSide(mZoom);
+        double centreX = mCentreX * tiles;
+        double centreY = mCentreY * tiles;
+        int fromX = (int) Math.floor(Math.min(centreX, centreX + leadX) - mHalfWidth);
+        int toX = (int) Math.floor(Math.max(centreX, centreX + leadX) + mHalfWidth);
+        int fromY = Math.max(0, (int) Math.floor(Math.min(centreY, centreY + leadY) - mHalfHeight));
+        int toY = Math.min(tiles - 1, (int) Math.floor(Math.max(centreY, centreY + leadY) + mHalfHeight));
+        int visibleFromX = (int) Math.floor(centreX - mHalfWidth);
+        int visibleToX = (int) Math.floor(centreX + mHalfWidth);
+        int visibleFromY = (int) Math.floor(centreY - mHalfHeight);
+        int visibleToY = (int) Math.floor(centreY + mHalfHeight);
+
+        // candidates in the swept rectangle outside the view, by distance along the direction of travel
+        // and then by distance from the line of travel
+        int width = toX - fromX + 1;
+        int height = toY - fromY + 1;
+        if (width <= 0 || height <= 0) {
+            return count;
+        }
+        long[] candidates = new long[width * height];
+        double[] distances = new double[width * height];
+        double[] offsets = new double[width * height];
+        int found = 0;
+        double length = Math.sqrt(leadX * leadX + leadY * leadY);
+        for (int y = fromY; y <= toY; y++) {
+            for (int x = fromX; x <= toX; x++) {
+                if (x >= visibleFromX && x <= visibleToX && y >= visibleFromY && y <= visibleToY) {
+                    continue;
+                }
+                double along = ((x + 0.5 - centreX) * leadX + (y + 0.5 - centreY) * leadY) / length;
+                if (along <= 0) {
+                    continue;
+                }
+                candidates[found] = TileKey.pack(mZoom, ((x % tiles) + tiles) % tiles, y);
+                distances[found] = along;
+                offsets[found] = Math.abs((x + 0.5 - centreX) * leadY - (y + 0.5 - centreY) * leadX) / length;
+                found++;
+            }
+        }
+        int[] order = sortByDistance(distances, offsets, found);
+        for (int i = 0; i < found && count < keys.length; i++) {
+            count = add(keys, count, candidates[order[i]]);
+        }
+        return count;
+    }
+
+    /**
+     * Adds the tiles of a view centred where this one is, {@code halfWidth} by {@code halfHeight}
+     * tiles at {@code zoom}.
+     */
+    private int addView(long[] keys, int count, int zoom, double halfWidth, double halfHeight) {
+        int tiles = TileMath.tilesPerSide(zoom);
+        double centreX = mCentreX * tiles;
+        double centreY = mCentreY * tiles;
+        int fromY = Math.max(0, (int) Math.floor(centreY - halfHeight));
+        int toY = Math.min(tiles - 1, (int) Math.floor(centreY + halfHeight));
+        int fromX = (int) Math.floor(centreX - halfWidth);
+        int toX = (int) Math.floor(centreX + halfWidth);
+        for (int y = fromY; y <= toY && count < keys.length; y++) {
+            for (int x = fromX; x <= toX && count < keys.length; x++) {
+                count = add(keys, count, TileKey.pack(zoom, ((x % tiles) + tiles) % tiles, y));
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Adds the four tiles one level in that cover the centre tile.
+     */
+    private int addChildren(long[] keys, int count) {
+        int x = TileMath.worldToTile(mCentreX, mZoom);
+        int y = TileMath.worldToTile(mCentreY, mZoom);
+        for (int i = 0; i < 4 && count < keys.length; i++) {
+            count = add(keys, count, TileKey.pack(mZoom + 1, 2 * x + (i & 1), 2 * y + (i >> 1)));
+        }
+        return count;
+    }
+
+    private static double clamp(double value, double limit) {
+        return Math.max(-limit, Math.min(limit, value));
+    }
+
+    private int add(long[] keys, int count, long key) {
+        if (mClaimed.contains(key)) {
+            return count;
+        }
+        for (int i = 0; i < count; i++) {
+            if (keys[i] == key) {
+                return count;
+            }
+        }
+        keys[count] = key;
+        return count + 1;
+    }
+
+    /**
+     * @return indices of the first {@code count} candidates, nearest first
+     */
+    private static int[] sortByDistance(double[] distances, double[] offsets, int count) {
+        int[] order = new int[count];
+        // insertion sort: a ring is a few dozen tiles
+        for (int i = 0; i < count; i++) {
+            int j = i - 1;
+            while (j >= 0 && (distances[order[j]] > distances[i]
+                    || (distances[order[j]] == distances[i] && offsets[order[j]] > offsets[i]))) {
+                order[j + 1] = order[j];
+                j--;
+            }
+            order[j + 1] = i;
+        }
+        return order;
+    }
+
+    /**
+     * @return true if the network and the byte budget allow another predicted tile to be fetched now
+     */
+    public synchronized boolean canFetch(long nowMillis) {
+        if (!mNetworkState.isOnline() || mNetworkState.isMetered()
+                || mNetworkState.getBandwidth() == NetworkState.Bandwidth.SLOW) {
+            return false;
+        }
+        mBudget = Math.min(2 * mBytesPerSecond, mBudget + (nowMillis - mBudgetMillis) * mBytesPerSecond / 1000.0);
+        mBudgetMillis = nowMillis;
+        return mBudget > 0;
+    }
+
+    /**
+     * Remembers that {@code key} has been taken for warming so it is not predicted again.
+     * @return false if it already was
+     */
+    public synchronized boolean claim(long key) {
+        if (mClaimed.size() >= MAX_WARMED) {
+            mClaimed = new LongHashSet();
+        }
+        return mClaimed.add(key);
+    }
+
+    /**
+     * Notes that a claimed tile is being fetched, {@link #isNeeded} having found it missing or stale.
+     */
+    public synchronized void onWarming(long key) {
+        if (mWarmed.size() >= MAX_WARMED) {
+            mWarmed = new LongHashSet();
+        }
+        if (mWarmed.add(key)) {
+            mWarmedCount++;
+        }
+    }
+
+    /**
+     * @return false if the tile is already fresh in the cache; may read from disk, so call it off the
+     *         thread that picks tiles
+     */
+    public boolean isNeeded(long key, String url) {
+        return mFreshnessProbe == null
+                || mFreshnessProbe.getFreshness(key, url) != TilePrefetcher.Freshness.FRESH;
+    }
+
+    /**
+     * Charges a predicted tile's size to the byte budget, which may go negative until it refills.
+     */
+    public synchronized void onFetched(long bytes) {
+        mBudget -= bytes;
+    }
+
+    /**
+     * Notes a tile the map asked for, counting it as a hit if it was predicted and fetched; a predicted
+     * tile that was already fresh would have been served as quickly without the prediction.
+     */
+    public synchronized void onRequested(long key) {
+        if (mWarmed.contains(key)) {
+            mHitCount++;
+        }
+    }
+
+    public int getMaxInFlight() {
+        return mMaxInFlight;
+    }
+
+    TileSource getSource() {
+        return mSource;
+    }
+
+    /**
+     * @return the number of predicted tiles fetched
+     */
+    public synchronized long getWarmedCount() {
+        return mWarmedCount;
+    }
+
+    /**
+     * @return the number of tiles the map asked for after they were warmed
+     */
+    public synchronized long getHitCount() {
+        return mHitCount;
+    }
+}
@@ -0,0 +1,401 @@
+package uk.co.snodnipper.okhttp.issue1903;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+import timber.log.Timber;
+
+/**
+ * Downloads a region of tiles, a bounded number at a time.  Fetches are asynchronous, so one
+ * coordinator thread keeps them all in flight however many are allowed.  How many go to each host is
+ * left to the downloader, such as an {@link AdaptiveDownloader}.  The prefetcher is owned by the
+ * application rather than an activity so a running job survives rotation; activities attach a
+ * {@link Listener} while they are visible.
+ * <p>
+ * {@link DownloadJob}s are durable: the job is saved and each completed tile is recorded in the job's
+ * {@link DownloadJournal}, so after the process dies {@link #resumePending()} continues with the tiles
+ * that are left, skipping the finished ones without touching the cache.  A job whose tiles keep
+ * failing is given up after {@link #MAX_ATTEMPTS} runs, and one whose tiles are no longer enumerated
+ * as they were when it was saved is discarded rather than resumed.  A tile failing with a
+ * {@link StoreFullException} ends the job there and then, and it is not kept to be resumed.
+ * <p>
+ * With a {@link FreshnessProbe} each tile is first checked by key, without reading its body, and
+ * tiles already fresh are counted as done without being fetched, so topping up a region that is
+ * mostly downloaded costs about as much as its missing tiles.
+ */
+public class TilePrefetcher {
+
+    /** Enough for the downloader to raise a host to its highest limit; beyond that tiles only queue. */
+    public static final int DEFAULT_MAX_IN_FLIGHT = AdaptiveDownloader.DEFAULT_MAX_LIMIT;
+    /** Runs of a saved job, the first included, before tiles that still fail are given up. */
+    public static final int MAX_ATTEMPTS = 3;
+
+    private static final long PROGRESS_INTERVAL_MILLIS = 250;
+
+    public interface Listener {
+        /** Called from a background thread, at most every {@code PROGRESS_INTERVAL_MILLIS}. */
+        void onProgress(Progress progress);
+
+        /** Called from a background thread once every tile has been attempted or the job was cancelled. */
+        void onFinished(Progress progress);
+    }
+
+    public enum Freshness {
+        /** Cached and usable as is; not fetched. */
+        FRESH,
+        /** Cached but expired; fetched, which lets a caching downloader revalidate it. */
+        STALE,
+        MISSING
+    }
+
+    public interface FreshnessProbe {
+        /**
+         * Must be cheap: it is called for every tile of a job, one after another.
+         * @param key {@link TileKey} of the tile that {@code url} requests
+         */
+        Freshness getFreshness(long key, String url);
+    }
+
+    public static final class Progress {
+        public final long total;
+        /** Tiles done, including the {@code skipped} ones. */
+        public final long completed;
+        /** Tiles found fresh and not fetched. */
+        public final long skipped;
+        public final long failed;
+        public final long bytes;
+        public final long elapsedMillis;
+        public final boolean cancelled;
+        /** The job stopped because the offline store filled up. */
+        public final boolean storeFull;
+
+        Progress(long total, long completed, long skipped, long failed, long bytes, long elapsedMillis,
+                 boolean cancelled, boolean storeFull) {
+            this.total = total;
+            this.completed = completed;
+            this.skipped = skipped;
+            this.failed = failed;
+            this.bytes = bytes;
+            this.elapsedMillis = elapsedMillis;
+            this.cancelled = cancelled;
+            this.storeFull = storeFull;
+        }
+
+        public double getTilesPerSecond() {
+            return elapsedMillis == 0 ? 0 : (completed + failed) * 1000.0 / elapsedMillis;
+        }
+
+        public double getBytesPerSecond() {
+            return elapsedMillis == 0 ? 0 : bytes * 1000.0 / elapsedMillis;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%d/%d tiles (%d failed, %d fresh), %.1f tiles/s, %.1f KB/s%s",
+                    completed + failed, total, failed, skipped, getTilesPerSecond(), getBytesPerSecond() / 1024,
+                    storeFull ? ", stopped: offline store full" : "");
+        }
+    }
+
+    private final AsyncDownloader mDownloader;
+    private final TileUrlFormatter mUrls;
+    private final DownloadJobStore mJobStore;
+    private final FreshnessProbe mFreshness;
+    private final int mMaxInFlight;
+    private final List<Listener> mListeners = new CopyOnWriteArrayList<>();
+
+    private volatile Job mJob;
+
+    public TilePrefetcher(AsyncDownloader downloader, TileUrlFormatter urls, DownloadJobStore jobStore) {
+        this(downloader, urls, jobStore, null);
+    }
+
+    public TilePrefetcher(AsyncDownloader downloader, TileUrlFormatter urls, DownloadJobStore jobStore,
+                          FreshnessProbe freshness) {
+        this(downloader, urls, jobStore, freshness, DEFAULT_MAX_IN_FLIGHT);
+    }
+
+    /**
+     * @param urls        turns each tile into the URL to request
+     * @param jobStore    where durable jobs are kept
+     * @param freshness   finds the tiles that need not be fetched, or null to fetch every tile
+     * @param maxInFlight maximum number of tiles being fetched at once
+     */
+    public TilePrefetcher(AsyncDownloader downloader, TileUrlFormatter urls, DownloadJobStore jobStore,
+                          FreshnessProbe freshness, int maxInFlight) {
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("maxInFlight must be positive");
+        }
+        mDownloader = downloader;
+        mUrls = urls;
+        mJobStore = jobStore;
+        mFreshness = freshness;
+        mMaxInFlight = maxInFlight;
+    }
+
+    public void addListener(Listener listener) {
+        mListeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    public boolean isRunning() {
+        return mJob != null;
+    }
+
+    /**
+     * @return progress of the running job or null if idle
+     */
+    public Progress getProgress() {
+        Job job = mJob;
+        return job == null ? null : job.snapshot();
+    }
+
+    /**
+     * Starts downloading {@code tiles}.  Nothing is saved; if the process dies the download is lost.
+     * @param tiles {@link TileKey}s to download
+     * @param total number of tiles {@code tiles} will return, for progress reporting
+     * @return false if a job is already running
+     */
+    public synchronized boolean start(LongIterator tiles, long total) {
+        if (mJob != null) {
+            return false;
+        }
+        run(new Job(tiles, total, null, null));
+        return true;
+    }
+
+    /**
+     * Saves {@code job} and starts downloading it.  Does file I/O, call off the main thread.
+     * @return false if a job is already running
+     */
+    public synchronized boolean start(DownloadJob job) throws IOException {
+        if (mJob != null) {
+            return false;
+        }
+        startAttempt(job);
+        return true;
+    }
+
+    /**
+     * Resumes the oldest job left unfinished by an earlier process.  Does file I/O, call off the main
+     * thread.
+     * @return true if a job was resumed
+     */
+    public synchronized boolean resumePending() throws IOException {
+        if (mJob != null) {
+            return false;
+        }
+        for (DownloadJob job : mJobStore.list()) {
+            if (!job.matchesEnumeration()) {
+                Timber.w("discarding job " + job.getId() + ": its tiles are no longer enumerated as when saved");
+                mJobStore.delete(job);
+            } else if (job.getAttempts() >= MAX_ATTEMPTS) {
+                Timber.w("giving up job " + job.getId() + " after " + job.getAttempts() + " attempts");
+                mJobStore.delete(job);
+            } else {
+                startAttempt(job);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Records another attempt at {@code saved} and runs it.
+     */
+    private void startAttempt(DownloadJob saved) throws IOException {
+        DownloadJob job = saved.nextAttempt();
+        mJobStore.save(job);
+        TileIterator tiles = job.tiles();
+        long total = tiles.estimateSize();
+        DownloadJournal journal = mJobStore.openJournal(job);
+        Timber.d("starting job " + job.getId() + ": " + journal.getDoneCount() + " of " + total + " tiles done");
+        run(new Job(tiles, total, job, journal));
+    }
+
+    private void run(final Job job) {
+        mJob = job;
+        Thread coordinator = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                job.run();
+            }
+        }, "tile-prefetch-coordinator");
+        coordinator.setDaemon(true);
+        coordinator.setPriority(Thread.MIN_PRIORITY);
+        coordinator.start();
+    }
+
+    /**
+     * Stops submitting tiles and forgets the job; tiles already in flight are allowed to finish so
+     * their cache entries are committed.
+     */
+    public void cancel() {
+        Job job = mJob;
+        if (job != null) {
+            job.mCancelled = true;
+        }
+    }
+
+    private final class Job {
+        private final LongIterator mTiles;
+        private final long mTotal;
+        private final DownloadJob mDownloadJob;
+        private final DownloadJournal mJournal;
+        private final long mStartMillis = System.currentTimeMillis();
+        private final Semaphore mInFlight = new Semaphore(mMaxInFlight);
+        private final AtomicLong mCompleted = new AtomicLong();
+        private final AtomicLong mSkipped = new AtomicLong();
+        private final AtomicLong mFailed = new AtomicLong();
+        private final AtomicLong mBytes = new AtomicLong();
+        private final AtomicLong mLastReportMillis = new AtomicLong();
+
+        volatile boolean mCancelled;
+        volatile boolean mStoreFull;
+
+        /**
+         * @param downloadJob the durable job being run, or null
+         * @param journal     records completed tiles of {@code downloadJob}, or null
+         */
+        Job(LongIterator tiles, long total, DownloadJob downloadJob, DownloadJournal journal) {
+            mTiles = tiles;
+            mTotal = total;
+            mDownloadJob = downloadJob;
+            mJournal = journal;
+            if (journal != null) {
+                mCompleted.set(journal.getDoneCount());
+            }
+        }
+
+        void run() {
+            try {
+                for (long ordinal = 0; !mCancelled && !mStoreFull && mTiles.hasNext(); ordinal++) {
+                    long key = mTiles.next();
+                    if (mJournal != null && mJournal.isDone(ordinal)) {
+                        continue;
+                    }
+                    String url = mUrls.format(key);
+                    // checked before taking a slot so a run of fresh tiles never waits for one
+                    if (mFreshness != null && mFreshness.getFreshness(key, url) == Freshness.FRESH) {
+                        mCompleted.incrementAndGet();
+                        mSkipped.incrementAndGet();
+                        markDone(ordinal);
+                        maybeReport();
+                        continue;
+                    }
+                    // bound the tiles in flight so enumeration never runs far ahead
+                    mInFlight.acquireUninterruptibly();
+                    fetch(url, ordinal);
+                }
+                // wait for the in-flight tiles to drain
+                mInFlight.acquireUninterruptibly(mMaxInFlight);
+                mInFlight.release(mMaxInFlight);
+            } finally {
+                finish();
+            }
+        }
+
+        private void finish() {
+            if (mJournal != null) {
+                try {
+                    mJournal.close();
+                } catch (IOException e) {
+                    Timber.e(e, "cannot close journal");
+                }
+                // keep a job with failed tiles so they are retried when it is resumed, a few times; a
+                // full store would only fail them again
+                if (mCancelled || mStoreFull || mFailed.get() == 0 || mDownloadJob.getAttempts() >= MAX_ATTEMPTS) {
+                    mJobStore.delete(mDownloadJob);
+                }
+            }
+            synchronized (TilePrefetcher.this) {
+                mJob = null;
+            }
+            Progress progress = snapshot();
+            Timber.d("finished download: " + progress);
+            for (Listener listener : mListeners) {
+                listener.onFinished(progress);
+            }
+        }
+
+        /**
+         * Starts fetching a tile; the in-flight slot taken for it is released when it completes.
+         */
+        private void fetch(String url, final long ordinal) {
+            try {
+                mDownloader.enqueue(url, new AsyncDownloader.Callback() {
+                    @Override
+                    public void onTile(String url, byte[] data) {
+                        if (data != null) {
+                            mCompleted.incrementAndGet();
+                            mBytes.addAndGet(data.length);
+                            markDone(ordinal);
+                        } else {
+                            mFailed.incrementAndGet();
+                        }
+                        completed();
+                    }
+
+                    @Override
+                    public void onFailure(String url, IOException e) {
+                        mFailed.incrementAndGet();
+                        if (e instanceof StoreFullException) {
+                            if (!mStoreFull) {
+                                mStoreFull = true;
+                                Timber.w("stopping download: " + e.getMessage());
+                            }
+                        } else {
+                            Timber.e(e, "problem downloading");
+                        }
+                        completed();
+                    }
+                });
+            } catch (RuntimeException e) {
+                mFailed.incrementAndGet();
+                Timber.e(e, "problem downloading");
+                completed();
+            }
+        }
+
+        private void completed() {
+            mInFlight.release();
+            maybeReport();
+        }
+
+        private void markDone(long ordinal) {
+            if (mJournal == null) {
+                return;
+            }
+            try {
+                mJournal.markDone(ordinal);
+            } catch (IOException e) {
+                // the tile is cached; at worst it is fetched again if the job is resumed
+                Timber.e(e, "cannot record tile " + ordinal);
+            }
+        }
+
+        private void maybeReport() {
+            long now = System.currentTimeMillis();
+            long last = mLastReportMillis.get();
+            if (now - last < PROGRESS_INTERVAL_MILLIS || !mLastReportMillis.compareAndSet(last, now)) {
+                return;
+            }
+            Progress progress = snapshot();
+            for (Listener listener : mListeners) {
+                listener.onProgress(progress);
+            }
+        }
+
+        Progress snapshot() {
+            return new Progress(mTotal, mCompleted.get(), mSkipped.get(), mFailed.get(), mBytes.get(),
+                    System.currentTimeMillis() - mStartMillis, mCancelled, mStoreFull);
+        }
+    }
+}
@@ -0,0 +1,414 @@
+package uk.co.snodnipper.okhttp.issue1903;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Orders the map layer's tile fetches by what the user is looking at.  Callers block in
+ * {@link #getTile} as before, but the fetches are started by the scheduler, which whenever one of its
+ * {@code maxInFlight} slots frees up starts the pending tile that matters most to the current
+ * {@link #setViewport viewport}: tiles at the viewport's zoom first, nearest the centre first, then
+ * ancestors that can stand in as placeholders, then descendants.  Fetches are asynchronous, so a
+ * single thread keeps every slot busy; it only picks tiles, and each is started on one of a few I/O
+ * threads, as starting it reads the local caches first.  A slow disk read then delays that tile alone
+ * rather than the choice of every tile after it.
+ * <p>
+ * Tiles outside the viewport are parked rather than fetched.  They resume if the viewport comes back
+ * over them, and are given up with a null result after {@code parkTimeoutMillis} so their callers are
+ * not held forever.  A caller that is interrupted while its tile is still pending removes it without
+ * any network activity; one interrupted while its tile is in flight cancels the fetch.
+ * <p>
+ * With a {@link TilePredictor} the scheduler also warms the tiles the viewport is predicted to need
+ * next.  A predicted tile is only started when no tile the map asked for is waiting, and never more
+ * than the predictor allows at once, so the map's own tiles always have the remaining slots.
+ */
+public class TileScheduler {
+
+    public static final int DEFAULT_MAX_IN_FLIGHT = 8;
+    public static final long DEFAULT_PARK_TIMEOUT_MILLIS = 10000;
+
+    /** Tiles this far outside the viewport, in viewport-zoom tiles, still count as visible. */
+    private static final double VIEW_MARGIN = 1;
+    /** How often predicted tiles held back by the byte budget are looked at again. */
+    private static final long PREDICTION_RETRY_MILLIS = 250;
+    private static final long[] NONE = new long[0];
+    /** Threads starting fetches, each doing the cache lookups that come before the network. */
+    private static final int IO_THREADS = 2;
+
+    private final AsyncDownloader mDownloader;
+    private final TilePredictor mPredictor;
+    private final long mParkTimeoutMillis;
+    private final Semaphore mSlots;
+    private final Executor mStarter;
+    /** Pending tiles; a linear scan per pick is cheaper than re-sorting a heap on every viewport move. */
+    private final List<Request> mPending = new ArrayList<>();
+
+    private Viewport mViewport;
+    private long mSequence;
+    /** Tiles predicted for the current viewport, those before {@code mNextPredicted} already taken. */
+    private long[] mPredicted = NONE;
+    private int mNextPredicted;
+    private int mPredictedInFlight;
+
+    public TileScheduler(AsyncDownloader downloader) {
+        this(downloader, DEFAULT_MAX_IN_FLIGHT, DEFAULT_PARK_TIMEOUT_MILLIS);
+    }
+
+    public TileScheduler(AsyncDownloader downloader, int maxInFlight, long parkTimeoutMillis) {
+        this(downloader, maxInFlight, parkTimeoutMillis, null);
+    }
+
+    /**
+     * @param maxInFlight most tiles being fetched at once; the later a tile is started the more
+     *                    likely it is still wanted, so keep this near what the network can carry
+     * @param predictor   warms the tiles the viewport is moving towards while the map waits for none;
+     *                    may be null
+     */
+    public TileScheduler(AsyncDownloader downloader, int maxInFlight, long parkTimeoutMillis,
+                         TilePredictor predictor) {
+        mDownloader = downloader;
+        mPredictor = predictor;
+        mParkTimeoutMillis = parkTimeoutMillis;
+        mSlots = new Semaphore(maxInFlight);
+        mStarter = Executors.newFixedThreadPool(IO_THREADS, new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "tile-scheduler-io-" + mCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        Thread dispatcher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                dispatch();
+            }
+        }, "tile-scheduler");
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+    }
+
+    /**
+     * @param zoom       zoom level being displayed
+     * @param centreX    column of the viewport's centre, in fractional tiles at {@code zoom}
+     * @param centreY    row of the viewport's centre, in fractional tiles at {@code zoom}
+     * @param halfWidth  half the viewport's width, in tiles at {@code zoom}
+     * @param halfHeight half the viewport's height, in tiles at {@code zoom}
+     */
+    public synchronized void setViewport(int zoom, double centreX, double centreY, double halfWidth, double halfHeight) {
+        mViewport = new Viewport(zoom, centreX, centreY, halfWidth, halfHeight);
+        if (mPredictor != null) {
+            long now = System.currentTimeMillis();
+            mPredictor.onViewport(zoom, centreX, centreY, halfWidth, halfHeight, now);
+            mPredicted = mPredictor.predict(now);
+            mNextPredicted = 0;
+        }
+        // parked tiles may be visible again
+        notifyAll();
+    }
+
+    /**
+     * Fetches a tile when its turn comes, blocking until then.
+     * @return the tile, or null if it could not be fetched or was parked too long
+     * @throws InterruptedIOException if the calling thread is interrupted while waiting
+     */
+    public byte[] getTile(int zoom, int x, int y, String url) throws IOException {
+        Request request = new Request(zoom, x, y, url, false);
+        if (mPredictor != null) {
+            mPredictor.onRequested(TileKey.pack(zoom, x, y));
+        }
+        synchronized (this) {
+            request.mSequence = mSequence++;
+            mPending.add(request);
+            notify();
+        }
+        try {
+            request.mDone.await();
+        } catch (InterruptedException e) {
+            synchronized (this) {
+                mPending.remove(request);
+            }
+            request.cancel();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("abandoned " + url);
+        }
+        if (request.mError != null) {
+            throw request.mError;
+        }
+        return request.mResult;
+    }
+
+    /**
+     * Looks a tile up in the local caches on the calling thread, bypassing the queue.
+     * @return the tile, or null if it would have to be fetched
+     */
+    public byte[] getCachedTile(String url) throws IOException {
+        return mDownloader.getCachedData(url);
+    }
+
+    public synchronized int getPendingCount() {
+        return mPending.size();
+    }
+
+    private void dispatch() {
+        while (true) {
+            final Request request;
+            try {
+                mSlots.acquire();
+                request = take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            mStarter.execute(new Runnable() {
+                @Override
+                public void run() {
+                    start(request);
+                }
+            });
+        }
+    }
+
+    /**
+     * Runs on an I/O thread: a cached tile is delivered from here, a missing one queued for the network.
+     */
+    private void start(Request request) {
+        if (request.mPredicted) {
+            long key = TileKey.pack(request.mZoom, request.mX, request.mY);
+            if (!mPredictor.isNeeded(key, request.mUrl)) {
+                // already cached; finishing it frees the slot without a fetch
+                request.onTile(request.mUrl, null);
+                return;
+            }
+            mPredictor.onWarming(key);
+        }
+        try {
+            request.setHandle(mDownloader.enqueue(request.mUrl, request));
+        } catch (RuntimeException e) {
+            request.onFailure(request.mUrl, new IOException(e));
+        }
+    }
+
+    private synchronized Request take() throws InterruptedException {
+        while (true) {
+            long now = System.currentTimeMillis();
+            Request best = null;
+            double bestPriority = Double.MAX_VALUE;
+            long nextTimeout = Long.MAX_VALUE;
+            for (int i = mPending.size() - 1; i >= 0; i--) {
+                Request request = mPending.get(i);
+                double priority = priority(request);
+                if (priority < 0) {
+                    if (request.mParkedAt == 0) {
+                        request.mParkedAt = now;
+                    }
+                    if (now - request.mParkedAt >= mParkTimeoutMillis) {
+                        mPending.remove(i);
+                        request.mDone.countDown();
+                    } else {
+                        nextTimeout = Math.min(nextTimeout, request.mParkedAt + mParkTimeoutMillis);
+                    }
+                    continue;
+                }
+                request.mParkedAt = 0;
+                if (priority < bestPriority || (priority == bestPriority && request.mSequence < best.mSequence)) {
+                    best = request;
+                    bestPriority = priority;
+                }
+            }
+            if (best != null) {
+                mPending.remove(best);
+                return best;
+            }
+            Request predicted = takePredicted(now);
+            if (predicted != null) {
+                return predicted;
+            }
+            if (mNextPredicted < mPredicted.length) {
+                nextTimeout = Math.min(nextTimeout, now + PREDICTION_RETRY_MILLIS);
+            }
+            if (nextTimeout == Long.MAX_VALUE) {
+                wait();
+            } else {
+                wait(Math.max(1, nextTimeout - now));
+            }
+        }
+    }
+
+    /**
+     * @return the next predicted tile if the predictor allows one to be fetched now, otherwise null
+     */
+    private Request takePredicted(long now) {
+        if (mPredictor == null || mNextPredicted == mPredicted.length
+                || mPredictedInFlight >= mPredictor.getMaxInFlight() || !mPredictor.canFetch(now)) {
+            return null;
+        }
+        while (mNextPredicted < mPredicted.length) {
+            long key = mPredicted[mNextPredicted++];
+            if (mPredictor.claim(key)) {
+                int zoom = TileKey.zoom(key);
+                int x = TileKey.x(key);
+                int y = TileKey.y(key);
+                mPredictedInFlight++;
+                return new Request(zoom, x, y, mPredictor.getSource().format(zoom, x, y), true);
+            }
+        }
+        return null;
+    }
+
+    private synchronized void predictedDone(byte[] data) {
+        mPredictor.onFetched(data == null ? 0 : data.length);
+        mPredictedInFlight--;
+        notify();
+    }
+
+    /**
+     * @return lower is sooner, negative if the tile is out of view and should be parked
+     */
+    private double priority(Request request) {
+        Viewport viewport = mViewport;
+        if (viewport == null) {
+            // nothing known about the view yet, first come first served
+            return request.mSequence;
+        }
+        // the tile's centre and half size in tiles at the viewport's zoom
+        double scale = TileMath.scale(request.mZoom, viewport.zoom);
+        double dx = Math.abs((request.mX + 0.5) * scale - viewport.centreX);
+        // the map wraps at the antimeridian, so a tile across it may be the nearer one
+        dx = Math.min(dx, TileMath.tilesPerSide(viewport.zoom) - dx);
+        double dy = Math.abs((request.mY + 0.5) * scale - viewport.centreY);
+        double halfSize = scale / 2;
+        if (dx - halfSize > viewport.halfWidth + VIEW_MARGIN || dy - halfSize > viewport.halfHeight + VIEW_MARGIN) {
+            return -1;
+        }
+
+        int rank;
+        if (request.mZoom == viewport.zoom) {
+            rank = 0;
+        } else if (request.mZoom < viewport.zoom) {
+            rank = viewport.zoom - request.mZoom;
+        } else {
+            rank = TileKey.MAX_ZOOM + request.mZoom - viewport.zoom;
+        }
+        // distance never exceeds the world's width in tiles, so each rank is its own band
+        return rank * (double) (1L << (TileKey.MAX_ZOOM + 1)) + Math.sqrt(dx * dx + dy * dy);
+    }
+
+    private static final class Viewport {
+        final int zoom;
+        final double centreX;
+        final double centreY;
+        final double halfWidth;
+        final double halfHeight;
+
+        Viewport(int zoom, double centreX, double centreY, double halfWidth, double halfHeight) {
+            this.zoom = zoom;
+            this.centreX = centreX;
+            this.centreY = centreY;
+            this.halfWidth = halfWidth;
+            this.halfHeight = halfHeight;
+        }
+    }
+
+    private final class Request implements AsyncDownloader.Callback {
+        final int mZoom;
+        final int mX;
+        final int mY;
+        final String mUrl;
+        /** Warmed for a prediction; nobody waits for it. */
+        final boolean mPredicted;
+        final CountDownLatch mDone = new CountDownLatch(1);
+        long mSequence;
+        long mParkedAt;
+        // written before mDone is counted down and read after it, so the latch publishes them
+        byte[] mResult;
+        IOException mError;
+
+        // guarded by this request; whoever sets mFinished first frees the slot
+        private AsyncDownloader.Cancellable mHandle;
+        private boolean mFinished;
+        private boolean mCancelled;
+
+        Request(int zoom, int x, int y, String url, boolean predicted) {
+            mZoom = zoom;
+            mX = x;
+            mY = y;
+            mUrl = url;
+            mPredicted = predicted;
+        }
+
+        void setHandle(AsyncDownloader.Cancellable handle) {
+            synchronized (this) {
+                mHandle = handle;
+                // the caller gave up while the fetch was being started
+                if (!mCancelled || mFinished) {
+                    return;
+                }
+                mFinished = true;
+            }
+            handle.cancel();
+            mSlots.release();
+        }
+
+        /**
+         * Cancels the fetch if it was started; a cancelled fetch never calls back, so its slot is freed
+         * here.
+         */
+        void cancel() {
+            AsyncDownloader.Cancellable handle;
+            synchronized (this) {
+                mCancelled = true;
+                if (mFinished || mHandle == null) {
+                    // not started yet, or already delivered
+                    return;
+                }
+                mFinished = true;
+                handle = mHandle;
+            }
+            handle.cancel();
+            mSlots.release();
+        }
+
+        @Override
+        public void onTile(String url, byte[] data) {
+            if (finish()) {
+                mResult = data;
+                mDone.countDown();
+                if (mPredicted) {
+                    predictedDone(data);
+                }
+            }
+        }
+
+        @Override
+        public void onFailure(String url, IOException e) {
+            if (finish()) {
+                mError = e;
+                mDone.countDown();
+                if (mPredicted) {
+                    predictedDone(null);
+                }
+            }
+        }
+
+        private boolean finish() {
+            synchronized (this) {
+                if (mFinished) {
+                    return false;
+                }
+                mFinished = true;
+            }
+            mSlots.release();
+            return true;
+        }
+    }
+}
@@ -0,0 +1,244 @@
+package uk.co.snodnipper.okhttp.issue1903;
+
+import okhttp3.HttpUrl;
+
+/**
+ * Where tiles come from: a URL template, the zoom levels the server has and the image quality asked
+ * for.  Both the map layer and bulk downloads build URLs here so the same tile always has the same URL.
+ * <p>
+ * A template such as {@code http://{s}.tile.openstreetmap.org/{z}/{x}/{y}.png} names several hosts
+ * through {@code {s}}.  Each tile is assigned one of them from its coordinates, so neighbouring tiles
+ * are spread across hosts, raising the connections allowed per host, while any one tile keeps a stable
+ * URL and so a stable cache key.  {@code {q}} is replaced by the quality's file extension.
+ * <p>
+ * Hosts that fail, or become much slower than the others, are taken out of rotation for a while.  A
+ * tile's URL never changes with a host's health, since the URL is also its cache key: a tile is
+ * always requested from its own host first, and only a failed fetch is retried on the next healthy
+ * host, by {@link FailoverDownloader}.
+ */
+public class TileSource implements TileUrlFormatter {
+
+    public static final TileSource OPENSTREETMAP = new TileSource("OpenStreetMap",
+            "http://{s}.tile.openstreetmap.org/{z}/{x}/{y}.png", new String[]{"a", "b", "c"},
+            0, 18, RasterImageQuality.MBXRasterImageQualityFull);
+
+    /** How long a host is left out of rotation after failing or spiking. */
+    static final long COOL_DOWN_MILLIS = 30000;
+    /** Consecutive failures that take a host out of rotation. */
+    static final int MAX_CONSECUTIVE_FAILURES = 2;
+    /** A host this much slower on average than the fastest healthy one is taken out of rotation... */
+    private static final double LATENCY_SPIKE_FACTOR = 3;
+    /** ...provided it is also at least this slow, so fast hosts are not ejected over noise. */
+    private static final double LATENCY_SPIKE_MIN_MILLIS = 1000;
+    private static final double LATENCY_EWMA_WEIGHT = 0.2;
+
+    private static final String TILE_PATH = "{z}/{x}/{y}";
+
+    private final String mName;
+    private final int mMinZoom;
+    private final int mMaxZoom;
+    private final RasterImageQuality mQuality;
+    private final Host[] mHosts;
+
+    /**
+     * @param template   URL with {@code {z}/{x}/{y}} and optionally {@code {s}} and {@code {q}}
+     * @param subdomains values for {@code {s}}, or empty if the template has none
+     */
+    public TileSource(String name, String template, String[] subdomains, int minZoom, int maxZoom,
+                      RasterImageQuality quality) {
+        int path = template.indexOf(TILE_PATH);
+        if (path < 0) {
+            throw new IllegalArgumentException("template has no " + TILE_PATH + ": " + template);
+        }
+        if (template.contains("{s}") == (subdomains.length == 0)) {
+            throw new IllegalArgumentException("subdomains do not match template: " + template);
+        }
+        mName = name;
+        mMinZoom = minZoom;
+        mMaxZoom = maxZoom;
+        mQuality = quality;
+        String prefix = template.substring(0, path).replace("{q}", quality.getExtension());
+        String suffix = template.substring(path + TILE_PATH.length()).replace("{q}", quality.getExtension());
+        String[] names = subdomains.length == 0 ? new String[]{null} : subdomains;
+        mHosts = new Host[names.length];
+        for (int i = 0; i < names.length; i++) {
+            String hostPrefix = names[i] == null ? prefix : prefix.replace("{s}", names[i]);
+            HttpUrl url = HttpUrl.parse(hostPrefix);
+            if (url == null) {
+                throw new IllegalArgumentException("not a URL: " + hostPrefix);
+            }
+            mHosts[i] = new Host(url.host(), new PrefixUrlFormatter(hostPrefix, suffix));
+        }
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public int getMinZoom() {
+        return mMinZoom;
+    }
+
+    public int getMaxZoom() {
+        return mMaxZoom;
+    }
+
+    public RasterImageQuality getQuality() {
+        return mQuality;
+    }
+
+    @Override
+    public String format(long key) {
+        return format(TileKey.zoom(key), TileKey.x(key), TileKey.y(key));
+    }
+
+    /**
+     * @return the tile's URL on its own host, whether or not the host is in rotation
+     */
+    @Override
+    public String format(int zoom, int x, int y) {
+        return mHosts[shard(x, y)].mUrls.format(zoom, x, y);
+    }
+
+    /**
+     * @return the tile at {@code url} on the next healthy host after the one in {@code url}, or null if
+     *         there is no other healthy host
+     */
+    public String alternate(String url) {
+        long key = TileKey.fromUrl(url);
+        Host failed = host(url);
+        if (key == TileKey.INVALID || failed == null) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        int from = indexOf(failed);
+        for (int i = 1; i < mHosts.length; i++) {
+            Host host = mHosts[(from + i) % mHosts.length];
+            if (host.isHealthy(now)) {
+                return host.mUrls.format(key);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Records a tile fetched from the host of {@code url} in {@code latencyMillis}.
+     */
+    public void reportSuccess(String url, long latencyMillis) {
+        Host host = host(url);
+        if (host == null) {
+            return;
+        }
+        double average;
+        synchronized (host) {
+            host.mConsecutiveFailures = 0;
+            host.mLatencyMillis = host.mLatencyMillis == 0 ? latencyMillis
+                    : host.mLatencyMillis + LATENCY_EWMA_WEIGHT * (latencyMillis - host.mLatencyMillis);
+            average = host.mLatencyMillis;
+        }
+        if (average >= LATENCY_SPIKE_MIN_MILLIS && average > LATENCY_SPIKE_FACTOR * fastestLatency(host)) {
+            host.eject();
+        }
+    }
+
+    /**
+     * Records a failed fetch from the host of {@code url}.
+     */
+    public void reportFailure(String url) {
+        Host host = host(url);
+        if (host == null) {
+            return;
+        }
+        boolean eject;
+        synchronized (host) {
+            eject = ++host.mConsecutiveFailures >= MAX_CONSECUTIVE_FAILURES;
+        }
+        if (eject) {
+            host.eject();
+        }
+    }
+
+    /**
+     * @return whether the host serving {@code url} is in rotation
+     */
+    public boolean isHealthy(String url) {
+        Host host = host(url);
+        return host == null || host.isHealthy(System.currentTimeMillis());
+    }
+
+    /**
+     * @return the fastest average latency among the other healthy hosts, or infinity if none is known
+     */
+    private double fastestLatency(Host except) {
+        long now = System.currentTimeMillis();
+        double fastest = Double.POSITIVE_INFINITY;
+        for (Host host : mHosts) {
+            if (host != except && host.isHealthy(now)) {
+                synchronized (host) {
+                    if (host.mLatencyMillis > 0) {
+                        fastest = Math.min(fastest, host.mLatencyMillis);
+                    }
+                }
+            }
+        }
+        return fastest;
+    }
+
+    private int shard(int x, int y) {
+        // adjacent tiles differ in x + y by one, so a viewport is spread evenly over the hosts
+        return (int) (((long) x + y) % mHosts.length);
+    }
+
+    private Host host(String url) {
+        HttpUrl httpUrl = HttpUrl.parse(url);
+        if (httpUrl == null) {
+            return null;
+        }
+        String name = httpUrl.host();
+        for (Host host : mHosts) {
+            if (host.mName.equals(name)) {
+                return host;
+            }
+        }
+        return null;
+    }
+
+    private int indexOf(Host host) {
+        for (int i = 0; i < mHosts.length; i++) {
+            if (mHosts[i] == host) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public String toString() {
+        return mName;
+    }
+
+    private static final class Host {
+        final String mName;
+        final TileUrlFormatter mUrls;
+        volatile long mEjectedUntil;
+        // guarded by this
+        int mConsecutiveFailures;
+        double mLatencyMillis;
+
+        Host(String name, TileUrlFormatter urls) {
+            mName = name;
+            mUrls = urls;
+        }
+
+        boolean isHealthy(long now) {
+            return now >= mEjectedUntil;
+        }
+
+        synchronized void eject() {
+            mEjectedUntil = System.currentTimeMillis() + COOL_DOWN_MILLIS;
+            // start afresh when the host comes back rather than be ejected again on old numbers
+            mConsecutiveFailures = 0;
+            mLatencyMillis = 0;
+        }
+    }
+}
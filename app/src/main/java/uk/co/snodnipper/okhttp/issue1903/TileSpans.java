@@ -0,0 +1,76 @@
+package uk.co.snodnipper.okhttp.issue1903;
+
+import java.util.Arrays;
+
+/**
+ * A reusable list of inclusive {@code [from, to]} column ranges covering one row of tiles, in
+ * ascending order.  Not thread safe.
+ */
+public final class TileSpans {
+
+    private int[] mBounds = new int[8];
+    private int mCount;
+
+    public void clear() {
+        mCount = 0;
+    }
+
+    /**
+     * Appends {@code [from, to]}, merging it with the last span if they touch.  Spans must be added in
+     * ascending order.
+     */
+    public void add(int from, int to) {
+        if (from > to) {
+            return;
+        }
+        if (mCount > 0 && from <= mBounds[2 * mCount - 1] + 1) {
+            mBounds[2 * mCount - 1] = Math.max(to, mBounds[2 * mCount - 1]);
+            return;
+        }
+        if (2 * mCount == mBounds.length) {
+            mBounds = Arrays.copyOf(mBounds, mBounds.length * 2);
+        }
+        mBounds[2 * mCount] = from;
+        mBounds[2 * mCount + 1] = to;
+        mCount++;
+    }
+
+    public int size() {
+        return mCount;
+    }
+
+    public int from(int index) {
+        return mBounds[2 * index];
+    }
+
+    public int to(int index) {
+        return mBounds[2 * index + 1];
+    }
+
+    public boolean contains(int x) {
+        int low = 0;
+        int high = mCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (x < mBounds[2 * mid]) {
+                high = mid - 1;
+            } else if (x > mBounds[2 * mid + 1]) {
+                low = mid + 1;
+            } else {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the number of columns covered
+     */
+    public long width() {
+        long width = 0;
+        for (int i = 0; i < mCount; i++) {
+            width += mBounds[2 * i + 1] - mBounds[2 * i] + 1;
+        }
+        return width;
+    }
+}
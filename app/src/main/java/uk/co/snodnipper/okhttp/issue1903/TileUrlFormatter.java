@@ -0,0 +1,12 @@
+package uk.co.snodnipper.okhttp.issue1903;
+
+/**
+ * Turns {@link TileKey}s into the URLs tiles are requested and cached under.  Implementations must
+ * be safe for use from multiple threads.
+ */
+public interface TileUrlFormatter {
+
+    String format(long key);
+
+    String format(int zoom, int x, int y);
+}
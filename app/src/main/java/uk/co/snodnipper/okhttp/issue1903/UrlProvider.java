@@ -1,103 +1,30 @@
 package uk.co.snodnipper.okhttp.issue1903;
 
-import com.esri.core.geometry.Envelope;
+import com.esri.core.geometry.Point;
 import com.esri.core.geometry.Polygon;
 
 import java.util.*;
 
 public class UrlProvider {
 
-    private final static float PI = 3.1415927f;
-
     /**
-     * The default base endpoint of Mapbox services.
+     * The source URLs are built for; the map layer uses the same one so bulk-downloaded tiles are
+     * cache hits for it.
      */
-    public static final String MAPBOX_BASE_URL_V4 = "http://a.tile.openstreetmap.org/";
+    public static final TileSource TILE_SOURCE = TileSource.OPENSTREETMAP;
 
     public static final String USER_AGENT = "Mapbox Android SDK/0.7.0";
 
     public static final Locale MAPBOX_LOCALE = Locale.US;
 
-    public final static int UNLIMITED = -1;
-
-    public enum RasterImageQuality {
-        /** Full image quality. */
-        MBXRasterImageQualityFull(0),
-        /** 32 color indexed PNG. */
-        MBXRasterImageQualityPNG32(1),
-        /** 64 color indexed PNG. */
-        MBXRasterImageQualityPNG64(2),
-        /** 128 color indexed PNG. */
-        MBXRasterImageQualityPNG128(3),
-        /** 256 color indexed PNG. */
-        MBXRasterImageQualityPNG256(4),
-        /** 70% quality JPEG. */
-        MBXRasterImageQualityJPEG70(5),
-        /** 80% quality JPEG. */
-        MBXRasterImageQualityJPEG80(6),
-        /** 90% quality JPEG. */
-        MBXRasterImageQualityJPEG90(7);
-
-        private int value;
-
-        RasterImageQuality(int value) {
-            this.value = value;
-        }
-
-        public int getValue() {
-            return value;
-        }
-
-        public static RasterImageQuality getEnumForValue(int value) {
-            switch (value) {
-                case 0:
-                    return MBXRasterImageQualityFull;
-                case 1:
-                    return MBXRasterImageQualityPNG32;
-                case 2:
-                    return MBXRasterImageQualityPNG64;
-                case 3:
-                    return MBXRasterImageQualityPNG128;
-                case 4:
-                    return MBXRasterImageQualityPNG256;
-                case 5:
-                    return MBXRasterImageQualityJPEG70;
-                case 6:
-                    return MBXRasterImageQualityJPEG80;
-                case 7:
-                    return MBXRasterImageQualityJPEG90;
-                default:
-                    return MBXRasterImageQualityFull;
-            }
-        }
-    }
-
+    /**
+     * @return the number of tiles {@link #getUrls(Polygon, int, int)} returns, without enumerating them
+     */
     public static long getUrlCount(Polygon polygon, int minZoom, int maxZoom) {
-        Envelope envelope = new Envelope();
-        polygon.queryEnvelope(envelope);
-
-        double minLat = envelope.getYMin();
-        double minLon = envelope.getXMin();
-        double maxLat = envelope.getYMax();
-        double maxLon = envelope.getXMax();
-
-        // Loop through the zoom levels and count all tiles for the given zoom level.
-        int minX;
-        int maxX;
-        int minY;
-        int maxY;
-        int tilesPerSide;
-        int count = 0;
-        outerloop:
+        List<TileCoverage> coverages = Collections.singletonList(getCoverage(polygon, 0));
+        long count = 0;
         for (int zoom = minZoom; zoom <= maxZoom; zoom++) {
-            tilesPerSide = Double.valueOf(Math.pow(2.0, zoom)).intValue();
-            minX = Double.valueOf(Math.floor(((minLon + 180.0) / 360.0) * tilesPerSide)).intValue();
-            maxX = Double.valueOf(Math.floor(((maxLon + 180.0) / 360.0) * tilesPerSide)).intValue();
-            minY = Double.valueOf(Math.floor((1.0 - (Math.log(Math.tan(maxLat * PI / 180.0) + 1.0 / Math.cos(maxLat * PI / 180.0)) / PI)) / 2.0 * tilesPerSide)).intValue();
-            maxY = Double.valueOf(Math.floor((1.0 - (Math.log(Math.tan(minLat * PI / 180.0) + 1.0 / Math.cos(minLat * PI / 180.0)) / PI)) / 2.0 * tilesPerSide)).intValue();
-            int x1 = maxX - minX + 1;
-            int y1 = maxY - minY + 1;
-            count += x1 * y1;
+            count += RegionEstimator.count(coverages, zoom);
         }
         return count;
     }
@@ -113,62 +40,92 @@ public class UrlProvider {
      */
     public static Set<String> getUrls(Polygon polygon,
                                       int minZoom, int maxZoom) {
-        return getUrls(polygon, minZoom, maxZoom, UNLIMITED);
+        return toUrls(getTileKeys(polygon, minZoom, maxZoom));
     }
 
-    private static Set<String> getUrls(Polygon polygon,
-                                       int minZoom, int maxZoom, int limit) {
-        boolean unlimited = limit == UNLIMITED;
-
-        Envelope envelope = new Envelope();
-        polygon.queryEnvelope(envelope);
-
-        double minLat = envelope.getYMin();
-        double minLon = envelope.getXMin();
-        double maxLat = envelope.getYMax();
-        double maxLon = envelope.getXMax();
-
-        // Loop through the zoom levels and lat/lon bounds to generate a list of urls which should
-        // be included in the offline map.
-        Set<String> urls = new LinkedHashSet<>();
-        UrlProvider.RasterImageQuality quality = UrlProvider.RasterImageQuality.MBXRasterImageQualityFull;
-
-        int minX;
-        int maxX;
-        int minY;
-        int maxY;
-        int tilesPerSide;
-        outerloop:
-        for (int zoom = minZoom; zoom <= maxZoom; zoom++) {
-            tilesPerSide = Double.valueOf(Math.pow(2.0, zoom)).intValue();
-            minX = Double.valueOf(Math.floor(((minLon + 180.0) / 360.0) * tilesPerSide)).intValue();
-            maxX = Double.valueOf(Math.floor(((maxLon + 180.0) / 360.0) * tilesPerSide)).intValue();
-            minY = Double.valueOf(Math.floor((1.0 - (Math.log(Math.tan(maxLat * PI / 180.0) + 1.0 / Math.cos(maxLat * PI / 180.0)) / PI)) / 2.0 * tilesPerSide)).intValue();
-            maxY = Double.valueOf(Math.floor((1.0 - (Math.log(Math.tan(minLat * PI / 180.0) + 1.0 / Math.cos(minLat * PI / 180.0)) / PI)) / 2.0 * tilesPerSide)).intValue();
-            for (int x = minX; x <= maxX; x++) {
-                for (int y = minY; y <= maxY; y++) {
-                    urls.add(getMapTileURL(zoom, x, y));
-                    if (!unlimited && urls.size() == limit) {
-                        System.out.println("breaking with limit" + limit);
-                        break outerloop;
-                    }
-                }
+    public static Set<String> getUrls(List<Polygon> polygons,
+                                      final int minZoom, final int maxZoom) {
+        return toUrls(getTileKeys(polygons, minZoom, maxZoom));
+    }
+
+    /**
+     * As {@link #getUrls(Polygon, int, int)} but returns {@link TileKey}s, in zoom order; format them
+     * with {@link #TILE_SOURCE} only when a request is made.
+     */
+    public static LongHashSet getTileKeys(Polygon polygon, int minZoom, int maxZoom) {
+        return toKeys(getTiles(polygon, minZoom, maxZoom));
+    }
+
+    public static LongHashSet getTileKeys(List<Polygon> polygons, int minZoom, int maxZoom) {
+        return toKeys(getTiles(polygons, minZoom, maxZoom));
+    }
+
+    /**
+     * Lazily enumerates the tiles of {@code polygon}, lowest zoom first, without holding them in memory.
+     * @param polygon containing WGS84 / EPSG:4326 coordinates aka latitude / longitude
+     */
+    public static TileIterator getTiles(Polygon polygon, int minZoom, int maxZoom) {
+        return getTiles(polygon, minZoom, maxZoom, 0);
+    }
+
+    /**
+     * As {@link #getTiles(Polygon, int, int)}, also including {@code bufferTiles} tiles around the polygon.
+     */
+    public static TileIterator getTiles(Polygon polygon, int minZoom, int maxZoom, int bufferTiles) {
+        return new TileIterator(getCoverage(polygon, bufferTiles), minZoom, maxZoom);
+    }
+
+    /**
+     * Lazily enumerates the tiles of {@code polygons}.  Tiles shared by several polygons are returned once.
+     */
+    public static TileIterator getTiles(List<Polygon> polygons, int minZoom, int maxZoom) {
+        List<TileCoverage> coverages = new ArrayList<>(polygons.size());
+        for (Polygon polygon : polygons) {
+            coverages.add(getCoverage(polygon, 0));
+        }
+        return new TileIterator(coverages, minZoom, maxZoom);
+    }
+
+    /**
+     * @return the tiles that intersect {@code polygon} itself, not just its envelope
+     */
+    public static TileCoverage getCoverage(Polygon polygon, int bufferTiles) {
+        return new PolygonCoverage(getRings(polygon), bufferTiles);
+    }
+
+    /**
+     * @return each path of {@code polygon} as alternating longitude, latitude values
+     */
+    public static List<double[]> getRings(Polygon polygon) {
+        List<double[]> rings = new ArrayList<>(polygon.getPathCount());
+        for (int path = 0; path < polygon.getPathCount(); path++) {
+            int start = polygon.getPathStart(path);
+            int end = polygon.getPathEnd(path);
+            double[] ring = new double[2 * (end - start)];
+            for (int i = start; i < end; i++) {
+                Point point = polygon.getPoint(i);
+                ring[2 * (i - start)] = point.getX();
+                ring[2 * (i - start) + 1] = point.getY();
             }
+            rings.add(ring);
         }
-        return urls;
+        return rings;
     }
 
-    private static String getMapTileURL(int zoom, int x, int y) {
-        return String.format(MAPBOX_LOCALE, MAPBOX_BASE_URL_V4 + "/%d/%d/%d.png", zoom, x, y);
+    private static LongHashSet toKeys(LongIterator tiles) {
+        LongHashSet keys = new LongHashSet();
+        while (tiles.hasNext()) {
+            keys.add(tiles.next());
+        }
+        return keys;
     }
 
-    public static Set<String> getUrls(List<Polygon> polygons,
-                                      final int minZoom, final int maxZoom) {
-        Set<String> toKeep = new HashSet<>();
-        for (Polygon polygon : polygons) {
-            Set<String> batch = UrlProvider.getUrls(polygon, minZoom, maxZoom);
-            toKeep.addAll(batch);
+    private static Set<String> toUrls(LongHashSet keys) {
+        Set<String> urls = new LinkedHashSet<>(keys.size() * 4 / 3 + 1);
+        LongIterator iterator = keys.iterator();
+        while (iterator.hasNext()) {
+            urls.add(TILE_SOURCE.format(iterator.next()));
         }
-        return toKeep;
+        return urls;
     }
 }
@@ -0,0 +1,201 @@
+package uk.co.snodnipper.okhttp.issue1903;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+
+import static org.junit.Assert.*;
+
+public class AdaptiveDownloaderTest {
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private static final String URL = "http://a.tiles.test/1/0/0.png";
+
+    private static final NetworkState ONLINE = new NetworkState() {
+        @Override
+        public boolean isOnline() {
+            return true;
+        }
+
+        @Override
+        public boolean isMetered() {
+            return false;
+        }
+
+        @Override
+        public Bandwidth getBandwidth() {
+            return Bandwidth.FAST;
+        }
+    };
+
+    /** Answers each fetch, on another thread, with the next scripted failure or else a tile. */
+    private static class ScriptedDownloader implements AsyncDownloader {
+        final ConcurrentLinkedQueue<IOException> mFailures = new ConcurrentLinkedQueue<>();
+        final AtomicInteger mFetches = new AtomicInteger();
+        final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+
+        @Override
+        public Cancellable enqueue(final String url, final Callback callback) {
+            mFetches.incrementAndGet();
+            final IOException failure = mFailures.poll();
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (failure != null) {
+                        callback.onFailure(url, failure);
+                    } else {
+                        callback.onTile(url, new byte[1]);
+                    }
+                }
+            });
+            return PendingTile.DONE_ALREADY;
+        }
+
+        @Override
+        public byte[] getData(String url) throws IOException {
+            return PendingTile.await(this, url);
+        }
+
+        @Override
+        public byte[] getCachedData(String url) {
+            return null;
+        }
+    }
+
+    @Test
+    public void transientFailure_isRetried() throws Exception {
+        ScriptedDownloader server = new ScriptedDownloader();
+        server.mFailures.add(new TileHttpException(URL, 503, -1));
+        AdaptiveDownloader downloader = new AdaptiveDownloader(server, ONLINE);
+
+        assertNotNull(downloader.getData(URL));
+        assertEquals(2, server.mFetches.get());
+        assertEquals(1, downloader.getRetryCount());
+    }
+
+    @Test
+    public void retryAfter_isHonoured() throws Exception {
+        ScriptedDownloader server = new ScriptedDownloader();
+        server.mFailures.add(new TileHttpException(URL, 429, 1500));
+        AdaptiveDownloader downloader = new AdaptiveDownloader(server, ONLINE);
+
+        long start = System.currentTimeMillis();
+        assertNotNull(downloader.getData(URL));
+        assertTrue(System.currentTimeMillis() - start >= 1500);
+    }
+
+    @Test
+    public void permanentFailure_isNotRetried() throws Exception {
+        ScriptedDownloader server = new ScriptedDownloader();
+        server.mFailures.add(new TileHttpException(URL, 404, -1));
+        AdaptiveDownloader downloader = new AdaptiveDownloader(server, ONLINE);
+
+        try {
+            downloader.getData(URL);
+            fail();
+        } catch (TileHttpException expected) {
+            assertEquals(404, expected.getCode());
+        }
+        assertEquals(1, server.mFetches.get());
+    }
+
+    @Test
+    public void overload_halvesLimit() throws Exception {
+        ScriptedDownloader server = new ScriptedDownloader();
+        server.mFailures.add(new TileHttpException(URL, 429, -1));
+        AdaptiveDownloader downloader = new AdaptiveDownloader(server, ONLINE, 4, 16, 1, 8);
+
+        try {
+            downloader.getData(URL);
+            fail();
+        } catch (TileHttpException expected) {
+        }
+        assertEquals(2, downloader.getLimit("a.tiles.test"));
+    }
+
+    @Test
+    public void steadyLatency_restoresLimitAfterOverload() throws Exception {
+        AdaptiveDownloader.Host host = new AdaptiveDownloader.Host(4, 16);
+        long now = 0;
+        host.onOverload(-1, 0, now);
+        assertEquals(2, host.limit());
+        for (int i = 0; i < 8; i++) {
+            now += TimeUnit.MILLISECONDS.toNanos(100);
+            host.onSuccess(100, now);
+        }
+        assertTrue(host.limit() > 2);
+    }
+
+    @Test
+    public void risingLatency_easesLimitOncePerRoundTrip() throws Exception {
+        AdaptiveDownloader.Host host = new AdaptiveDownloader.Host(10, 16);
+        long now = 0;
+        host.onSuccess(20, now);
+        // queueing at the server: latency well past twice the best
+        for (int i = 0; i < 3; i++) {
+            host.onSuccess(400, now);
+        }
+        assertEquals(9, host.limit());
+        now += TimeUnit.SECONDS.toNanos(1);
+        host.onSuccess(400, now);
+        assertEquals(8, host.limit());
+    }
+
+    @Test
+    public void retryAfter_blocksHost() throws Exception {
+        AdaptiveDownloader.Host host = new AdaptiveDownloader.Host(4, 16);
+        host.onOverload(5000, 1000, 0);
+        assertEquals(6000, host.mBlockedUntil);
+    }
+
+    @Test
+    public void cachedTile_isServedWhileHostIsBlocked() throws Exception {
+        MockWebServer server = new MockWebServer();
+        server.start();
+        try {
+            server.enqueue(HttpDownloaderTest.tile());
+            server.enqueue(new MockResponse().setResponseCode(503).setHeader("Retry-After", "60"));
+            HttpDownloader http = new HttpDownloader(mFolder.getRoot(), 1024 * 1024, ONLINE, new TileMetrics(), 1);
+            AdaptiveDownloader downloader = new AdaptiveDownloader(http, ONLINE, 2, 16, 2, 8);
+            String cached = server.url("/1/0/0.png").toString();
+            assertNotNull(downloader.getData(cached));
+
+            // the 503 blocks the host for a minute, and halves its limit once it has been handled
+            downloader.enqueue(server.url("/1/1/0.png").toString(), new HttpDownloaderTest.Received());
+            long deadline = System.currentTimeMillis() + 5000;
+            while (downloader.getLimit(server.getHostName()) == 2 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            HttpDownloaderTest.Received queued = new HttpDownloaderTest.Received();
+            downloader.enqueue(server.url("/1/0/1.png").toString(), queued);
+
+            HttpDownloaderTest.Received hit = new HttpDownloaderTest.Received();
+            downloader.enqueue(cached, hit);
+            assertEquals(0, hit.mDone.getCount());
+            assertNotNull(hit.mData);
+            assertFalse(queued.mDone.await(200, TimeUnit.MILLISECONDS));
+            assertEquals(2, server.getRequestCount());
+        } finally {
+            server.shutdown();
+        }
+    }
+
+    @Test
+    public void retryAfter_acceptsSecondsOrDate() throws Exception {
+        assertEquals(120000, TileHttpException.parseRetryAfter("120", 0));
+        assertEquals(60000, TileHttpException.parseRetryAfter("Thu, 01 Jan 1970 00:02:00 GMT", 60000));
+        assertEquals(-1, TileHttpException.parseRetryAfter("soon", 0));
+        assertEquals(-1, TileHttpException.parseRetryAfter(null, 0));
+    }
+}
@@ -0,0 +1,90 @@
+package uk.co.snodnipper.okhttp.issue1903;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.Cache;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+
+import static org.junit.Assert.*;
+
+public class CacheIndexTest {
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private MockWebServer mServer;
+    private OkHttpClient mClient;
+    private CacheIndex mIndex;
+
+    @Before
+    public void setUp() throws Exception {
+        mServer = new MockWebServer();
+        mServer.start();
+        mClient = new OkHttpClient.Builder()
+                .cache(new Cache(mFolder.getRoot(), 1024 * 1024))
+                .build();
+        mIndex = new CacheIndex(mFolder.getRoot());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mServer.shutdown();
+    }
+
+    @Test
+    public void entry_withinMaxAge_isFresh() throws Exception {
+        String url = fetch("/1/0/0.png", new MockResponse().setHeader("Cache-Control", "max-age=3600"));
+        long now = System.currentTimeMillis();
+        assertEquals(TilePrefetcher.Freshness.FRESH, mIndex.getFreshness(url, now));
+        assertEquals(TilePrefetcher.Freshness.STALE, mIndex.getFreshness(url, now + TimeUnit.HOURS.toMillis(2)));
+    }
+
+    @Test
+    public void entry_withoutFreshnessLifetime_isStale() throws Exception {
+        String url = fetch("/1/0/1.png", new MockResponse().setHeader("ETag", "\"v1\""));
+        assertEquals(TilePrefetcher.Freshness.STALE, mIndex.getFreshness(url, System.currentTimeMillis()));
+    }
+
+    @Test
+    public void expires_isUsedWithoutMaxAge() throws Exception {
+        long now = System.currentTimeMillis();
+        String url = fetch("/1/1/0.png", new MockResponse()
+                .setHeader("Date", httpDate(now))
+                .setHeader("Expires", httpDate(now + TimeUnit.HOURS.toMillis(1))));
+        assertEquals(TilePrefetcher.Freshness.FRESH, mIndex.getFreshness(url, now));
+        assertEquals(TilePrefetcher.Freshness.STALE, mIndex.getFreshness(url, now + TimeUnit.HOURS.toMillis(2)));
+    }
+
+    @Test
+    public void uncachedUrl_isMissing() throws Exception {
+        assertEquals(TilePrefetcher.Freshness.MISSING,
+                mIndex.getFreshness(mServer.url("/1/1/1.png").toString(), System.currentTimeMillis()));
+    }
+
+    private static String httpDate(long millis) {
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return format.format(new Date(millis));
+    }
+
+    private String fetch(String path, MockResponse response) throws Exception {
+        mServer.enqueue(response.setBody("tile"));
+        String url = mServer.url(path).toString();
+        Response cached = mClient.newCall(new Request.Builder().url(url).build()).execute();
+        assertEquals("tile", cached.body().string());
+        return url;
+    }
+}
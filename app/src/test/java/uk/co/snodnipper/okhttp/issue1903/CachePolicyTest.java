@@ -0,0 +1,59 @@
+package uk.co.snodnipper.okhttp.issue1903;
+
+import org.junit.Test;
+
+import okhttp3.CacheControl;
+
+import static org.junit.Assert.*;
+
+public class CachePolicyTest {
+
+    private static NetworkState network(final boolean online, final boolean metered,
+                                        final NetworkState.Bandwidth bandwidth) {
+        return new NetworkState() {
+            @Override
+            public boolean isOnline() {
+                return online;
+            }
+
+            @Override
+            public boolean isMetered() {
+                return metered;
+            }
+
+            @Override
+            public Bandwidth getBandwidth() {
+                return bandwidth;
+            }
+        };
+    }
+
+    @Test
+    public void offline_usesOnlyTheCache() throws Exception {
+        CachePolicy policy = new CachePolicy();
+        assertSame(CacheControl.FORCE_CACHE, policy.choose(network(false, false, NetworkState.Bandwidth.FAST)));
+    }
+
+    @Test
+    public void meteredOrSlow_toleratesStalerTiles() throws Exception {
+        CachePolicy policy = new CachePolicy();
+        CacheControl unmetered = policy.choose(network(true, false, NetworkState.Bandwidth.FAST));
+        CacheControl metered = policy.choose(network(true, true, NetworkState.Bandwidth.FAST));
+        CacheControl slow = policy.choose(network(true, false, NetworkState.Bandwidth.SLOW));
+
+        assertTrue(metered.maxStaleSeconds() > unmetered.maxStaleSeconds());
+        assertSame(metered, slow);
+    }
+
+    @Test
+    public void cacheOnly_keepsTheNetworksStaleness() throws Exception {
+        CachePolicy policy = new CachePolicy();
+        NetworkState metered = network(true, true, NetworkState.Bandwidth.FAST);
+        CacheControl cacheOnly = policy.chooseCacheOnly(metered);
+
+        assertTrue(cacheOnly.onlyIfCached());
+        assertEquals(policy.choose(metered).maxStaleSeconds(), cacheOnly.maxStaleSeconds());
+        assertEquals(policy.choose(metered).maxAgeSeconds(), cacheOnly.maxAgeSeconds());
+        assertSame(CacheControl.FORCE_CACHE, policy.chooseCacheOnly(network(false, false, NetworkState.Bandwidth.FAST)));
+    }
+}
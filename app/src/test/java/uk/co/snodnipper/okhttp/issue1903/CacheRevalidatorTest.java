@@ -0,0 +1,73 @@
+package uk.co.snodnipper.okhttp.issue1903;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.Cache;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+
+import static org.junit.Assert.*;
+
+public class CacheRevalidatorTest {
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private MockWebServer mServer;
+    private OkHttpClient mClient;
+
+    @Before
+    public void setUp() throws Exception {
+        mServer = new MockWebServer();
+        mServer.start();
+        mClient = new OkHttpClient.Builder()
+                .cache(new Cache(mFolder.getRoot(), 1024 * 1024))
+                .build();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mServer.shutdown();
+    }
+
+    @Test
+    public void staleEntry_isRevalidatedConditionally() throws Exception {
+        mServer.enqueue(new MockResponse()
+                .setHeader("ETag", "\"v1\"")
+                .setHeader("Cache-Control", "max-age=0")
+                .setBody("tile"));
+        mServer.enqueue(new MockResponse().setResponseCode(304));
+        String url = mServer.url("/1/0/0.png").toString();
+        Response response = mClient.newCall(new Request.Builder().url(url).build()).execute();
+        assertEquals("tile", response.body().string());
+        mServer.takeRequest();
+
+        CacheRevalidator revalidator = new CacheRevalidator(mClient);
+        assertTrue(revalidator.revalidate(url));
+
+        RecordedRequest revalidation = mServer.takeRequest(5, TimeUnit.SECONDS);
+        assertEquals("\"v1\"", revalidation.getHeader("If-None-Match"));
+        long deadline = System.currentTimeMillis() + 5000;
+        while (revalidator.getRevalidatedCount() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, revalidator.getRevalidatedCount());
+    }
+
+    @Test
+    public void revalidations_beyondRateAreDropped() throws Exception {
+        CacheRevalidator revalidator = new CacheRevalidator(mClient, 1, 8, 0.001, 1);
+        assertTrue(revalidator.revalidate(mServer.url("/1/0/0.png").toString()));
+        assertFalse(revalidator.revalidate(mServer.url("/1/1/0.png").toString()));
+        assertEquals(1, revalidator.getDroppedCount());
+    }
+}
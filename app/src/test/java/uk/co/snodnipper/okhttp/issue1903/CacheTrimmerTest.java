@@ -0,0 +1,96 @@
+package uk.co.snodnipper.okhttp.issue1903;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+
+import okhttp3.Cache;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+
+import static org.junit.Assert.*;
+
+public class CacheTrimmerTest {
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private MockWebServer mServer;
+    private Cache mCache;
+    private OkHttpClient mClient;
+
+    @Before
+    public void setUp() throws Exception {
+        mServer = new MockWebServer();
+        mServer.start();
+        mCache = new Cache(mFolder.getRoot(), 1024 * 1024);
+        mClient = new OkHttpClient.Builder().cache(mCache).build();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mServer.shutdown();
+    }
+
+    @Test
+    public void trim_evictsDeepZoomsBeforeOlderShallowOnes() throws Exception {
+        // the shallow tiles are the least recently used
+        String shallow1 = fetch("/2/1/1.png");
+        String shallow2 = fetch("/2/1/2.png");
+        for (int x = 0; x < 10; x++) {
+            fetch("/18/" + x + "/0.png");
+        }
+        long size = mCache.size();
+
+        CacheTrimmer trimmer = new CacheTrimmer(mCache, size * 6 / 10, 1.0, 20);
+        int evicted = trimmer.trim();
+
+        assertTrue(evicted > 0);
+        assertTrue(mCache.size() <= size * 6 / 10);
+        Set<String> cached = cachedUrls();
+        assertTrue(cached.contains(shallow1));
+        assertTrue(cached.contains(shallow2));
+        assertEquals(12 - evicted, cached.size());
+        // the oldest deep tile goes first
+        assertFalse(cached.contains(mServer.url("/18/0/0.png").toString()));
+    }
+
+    @Test
+    public void trim_withinBudget_evictsNothing() throws Exception {
+        fetch("/2/1/1.png");
+        CacheTrimmer trimmer = new CacheTrimmer(mCache, mCache.size() * 2);
+        assertEquals(0, trimmer.trim());
+        assertEquals(1, cachedUrls().size());
+    }
+
+    @Test
+    public void score_withoutBias_isRecency() throws Exception {
+        CacheTrimmer trimmer = new CacheTrimmer(mCache, 1, 0, 20);
+        assertEquals(0, trimmer.score(0, 5, 3), 0);
+        assertEquals(1, trimmer.score(4, 5, 18), 0);
+        assertTrue(new CacheTrimmer(mCache, 1).score(0, 5, 3) > trimmer.score(1, 5, 18));
+    }
+
+    private Set<String> cachedUrls() throws Exception {
+        Set<String> urls = new HashSet<>();
+        Iterator<String> iterator = mCache.urls();
+        while (iterator.hasNext()) {
+            urls.add(iterator.next());
+        }
+        return urls;
+    }
+
+    private String fetch(String path) throws Exception {
+        mServer.enqueue(new MockResponse().setHeader("Cache-Control", "max-age=3600").setBody("tile"));
+        String url = mServer.url(path).toString();
+        mClient.newCall(new Request.Builder().url(url).build()).execute().body().close();
+        return url;
+    }
+}
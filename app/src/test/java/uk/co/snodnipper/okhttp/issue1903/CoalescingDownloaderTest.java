@@ -0,0 +1,181 @@
+package uk.co.snodnipper.okhttp.issue1903;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class CoalescingDownloaderTest {
+
+    private static final String URL = "http://tiles.example.com/10/500/300.png";
+    private static final byte[] DATA = {1, 2, 3};
+
+    @Test
+    public void concurrentRequests_shareOneFetch() throws Exception {
+        Upstream upstream = new Upstream();
+        CoalescingDownloader downloader = new CoalescingDownloader(upstream);
+        Received first = new Received();
+        Received second = new Received();
+
+        downloader.enqueue(URL, first);
+        downloader.enqueue(URL, second);
+        upstream.complete(0);
+
+        assertEquals(1, upstream.mCallbacks.size());
+        assertSame(DATA, first.mData);
+        assertSame(DATA, second.mData);
+        assertEquals(1, downloader.getCoalescedCount());
+    }
+
+    @Test
+    public void cancelledWaiter_isDetachedAndFetchCompletes() throws Exception {
+        Upstream upstream = new Upstream();
+        CoalescingDownloader downloader = new CoalescingDownloader(upstream);
+        Received leader = new Received();
+        Received waiter = new Received();
+
+        downloader.enqueue(URL, leader);
+        downloader.enqueue(URL, waiter).cancel();
+        upstream.complete(0);
+
+        assertEquals(0, upstream.mCancelCount);
+        assertSame(DATA, leader.mData);
+        assertEquals(0, waiter.mCalls);
+    }
+
+    @Test
+    public void cancelledLeader_waiterKeepsRunningFetch() throws Exception {
+        Upstream upstream = new Upstream();
+        CoalescingDownloader downloader = new CoalescingDownloader(upstream);
+        Received leader = new Received();
+        Received waiter = new Received();
+
+        AsyncDownloader.Cancellable leaderHandle = downloader.enqueue(URL, leader);
+        downloader.enqueue(URL, waiter);
+        leaderHandle.cancel();
+        // a third request still joins the running fetch rather than starting another
+        Received late = new Received();
+        downloader.enqueue(URL, late);
+        upstream.complete(0);
+
+        assertEquals(1, upstream.mCallbacks.size());
+        assertEquals(0, upstream.mCancelCount);
+        assertEquals(0, leader.mCalls);
+        assertSame(DATA, waiter.mData);
+        assertSame(DATA, late.mData);
+    }
+
+    @Test
+    public void lastWaiterCancelled_cancelsFetch() throws Exception {
+        Upstream upstream = new Upstream();
+        CoalescingDownloader downloader = new CoalescingDownloader(upstream);
+
+        AsyncDownloader.Cancellable first = downloader.enqueue(URL, new Received());
+        AsyncDownloader.Cancellable second = downloader.enqueue(URL, new Received());
+        first.cancel();
+        assertEquals(0, upstream.mCancelCount);
+        second.cancel();
+        assertEquals(1, upstream.mCancelCount);
+    }
+
+    @Test
+    public void failure_reachesEveryWaiter() throws Exception {
+        Upstream upstream = new Upstream();
+        CoalescingDownloader downloader = new CoalescingDownloader(upstream);
+        Received first = new Received();
+        Received second = new Received();
+
+        downloader.enqueue(URL, first);
+        downloader.enqueue(URL, second);
+        upstream.mCallbacks.get(0).onFailure(URL, new IOException("boom"));
+
+        assertNotNull(first.mError);
+        assertNotNull(second.mError);
+    }
+
+    @Test
+    public void fetch_storesUnlessStartedByNoStoreRequest() throws Exception {
+        Upstream upstream = new Upstream();
+        CoalescingDownloader downloader = new CoalescingDownloader(upstream);
+        Received map = new Received();
+        Received bulk = new Received();
+
+        downloader.enqueue(URL, map);
+        downloader.enqueueNoStore(URL, bulk);
+        upstream.complete(0);
+        downloader.enqueueNoStore(URL, bulk);
+        downloader.enqueue(URL, map);
+        upstream.complete(1);
+
+        assertEquals(2, upstream.mCallbacks.size());
+        assertEquals(Arrays.asList(true, false), upstream.mStored);
+        assertEquals(2, map.mCalls);
+        assertEquals(2, bulk.mCalls);
+        assertEquals(2, downloader.getCoalescedCount());
+    }
+
+    /** Holds every fetch until the test completes it. */
+    private static final class Upstream implements AsyncDownloader, AsyncDownloader.NoStore {
+        final List<Callback> mCallbacks = new ArrayList<>();
+        final List<Boolean> mStored = new ArrayList<>();
+        int mCancelCount;
+
+        @Override
+        public Cancellable enqueue(String url, Callback callback) {
+            mStored.add(true);
+            return fetch(callback);
+        }
+
+        @Override
+        public Cancellable enqueueNoStore(String url, Callback callback) {
+            mStored.add(false);
+            return fetch(callback);
+        }
+
+        private Cancellable fetch(Callback callback) {
+            mCallbacks.add(callback);
+            return new Cancellable() {
+                @Override
+                public void cancel() {
+                    mCancelCount++;
+                }
+            };
+        }
+
+        void complete(int fetch) {
+            mCallbacks.get(fetch).onTile(URL, DATA);
+        }
+
+        @Override
+        public byte[] getData(String url) throws IOException {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public byte[] getCachedData(String url) throws IOException {
+            return null;
+        }
+    }
+
+    private static final class Received implements AsyncDownloader.Callback {
+        byte[] mData;
+        IOException mError;
+        int mCalls;
+
+        @Override
+        public void onTile(String url, byte[] data) {
+            mData = data;
+            mCalls++;
+        }
+
+        @Override
+        public void onFailure(String url, IOException e) {
+            mError = e;
+            mCalls++;
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package uk.co.snodnipper.okhttp.issue1903;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+
+import static org.junit.Assert.*;
+
+public class DownloadJournalTest {
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void completedTiles_surviveReopen() throws Exception {
+        File file = new File(mFolder.getRoot(), "job.journal");
+        DownloadJournal journal = new DownloadJournal(file, 4, Long.MAX_VALUE);
+        for (long ordinal = 0; ordinal < 1000; ordinal += 3) {
+            journal.markDone(ordinal);
+        }
+        journal.close();
+
+        DownloadJournal reopened = new DownloadJournal(file);
+        assertEquals(334, reopened.getDoneCount());
+        assertTrue(reopened.isDone(999));
+        assertFalse(reopened.isDone(998));
+        reopened.close();
+    }
+
+    @Test
+    public void tornBatch_isDiscarded() throws Exception {
+        File file = new File(mFolder.getRoot(), "job.journal");
+        DownloadJournal journal = new DownloadJournal(file, 2, Long.MAX_VALUE);
+        journal.markDone(1);
+        journal.markDone(2);
+        journal.close();
+
+        // a batch header claiming two ordinals followed by only part of one
+        FileOutputStream out = new FileOutputStream(file, true);
+        out.write(new byte[]{'O', 0, 0, 0, 2, 0, 0});
+        out.close();
+
+        journal = new DownloadJournal(file, 1, Long.MAX_VALUE);
+        assertEquals(2, journal.getDoneCount());
+        journal.markDone(7);
+        journal.close();
+
+        DownloadJournal reopened = new DownloadJournal(file);
+        assertEquals(3, reopened.getDoneCount());
+        assertTrue(reopened.isDone(7));
+        reopened.close();
+    }
+
+    @Test
+    public void unflushedTiles_areNotDurable() throws Exception {
+        File file = new File(mFolder.getRoot(), "job.journal");
+        DownloadJournal journal = new DownloadJournal(file, 100, Long.MAX_VALUE);
+        journal.markDone(5);
+        // simulate process death: no flush or close
+
+        DownloadJournal reopened = new DownloadJournal(file);
+        assertFalse(reopened.isDone(5));
+        reopened.close();
+    }
+}
@@ -0,0 +1,95 @@
+package uk.co.snodnipper.okhttp.issue1903;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+
+import static org.junit.Assert.*;
+
+public class FailoverDownloaderTest {
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private MockWebServer mFirst;
+    private MockWebServer mSecond;
+    private TileSource mSource;
+    private FailoverDownloader mDownloader;
+
+    @Before
+    public void setUp() throws Exception {
+        mFirst = new MockWebServer();
+        mFirst.start();
+        mSecond = new MockWebServer();
+        mSecond.start();
+        // hosts are told apart by name, so the two servers are reached under different ones
+        mSource = new TileSource("test", "http://{s}/{z}/{x}/{y}.png",
+                new String[]{"localhost:" + mFirst.getPort(), "127.0.0.1:" + mSecond.getPort()},
+                0, 18, RasterImageQuality.MBXRasterImageQualityFull);
+        HttpDownloader http = new HttpDownloader(mFolder.getRoot(), 1024 * 1024, HttpDownloaderTest.ONLINE,
+                new TileMetrics(), 1);
+        mDownloader = new FailoverDownloader(http, mSource, HttpDownloaderTest.ONLINE);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mFirst.shutdown();
+        mSecond.shutdown();
+    }
+
+    @Test
+    public void enqueuedTileThatFails_isRetriedOnAnotherHost() throws Exception {
+        mFirst.enqueue(new MockResponse().setResponseCode(503));
+        mSecond.enqueue(HttpDownloaderTest.tile());
+
+        HttpDownloaderTest.Received received = new HttpDownloaderTest.Received();
+        mDownloader.enqueue(tileOnFirstHost(), received);
+
+        assertTrue(received.mDone.await(5, TimeUnit.SECONDS));
+        assertNotNull(received.mData);
+        assertEquals(1, mFirst.getRequestCount());
+        assertEquals(1, mSecond.getRequestCount());
+    }
+
+    @Test
+    public void enqueuedTileThatFailsEverywhere_failsAfterOneRetry() throws Exception {
+        mFirst.enqueue(new MockResponse().setResponseCode(503));
+        mSecond.enqueue(new MockResponse().setResponseCode(503));
+
+        HttpDownloaderTest.Received received = new HttpDownloaderTest.Received();
+        mDownloader.enqueue(tileOnFirstHost(), received);
+
+        assertTrue(received.mDone.await(5, TimeUnit.SECONDS));
+        assertTrue(received.mError instanceof TileHttpException);
+        assertEquals(1, mFirst.getRequestCount());
+        assertEquals(1, mSecond.getRequestCount());
+    }
+
+    @Test
+    public void cancelledTile_isNotRetried() throws Exception {
+        mFirst.enqueue(HttpDownloaderTest.slowTile());
+
+        HttpDownloaderTest.Received received = new HttpDownloaderTest.Received();
+        AsyncDownloader.Cancellable tile = mDownloader.enqueue(tileOnFirstHost(), received);
+        mFirst.takeRequest(5, TimeUnit.SECONDS);
+        tile.cancel();
+
+        assertFalse(received.mDone.await(2, TimeUnit.SECONDS));
+        assertEquals(0, mSecond.getRequestCount());
+    }
+
+    private String tileOnFirstHost() {
+        for (int x = 0; ; x++) {
+            String url = mSource.format(5, x, 0);
+            if (url.startsWith("http://localhost:")) {
+                return url;
+            }
+        }
+    }
+}
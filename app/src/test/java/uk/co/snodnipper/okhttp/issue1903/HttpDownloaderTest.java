@@ -0,0 +1,289 @@
+package uk.co.snodnipper.okhttp.issue1903;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.SocketPolicy;
+import okio.Buffer;
+import okio.ByteString;
+
+import static org.junit.Assert.*;
+
+public class HttpDownloaderTest {
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    static final NetworkState ONLINE = new NetworkState() {
+        @Override
+        public boolean isOnline() {
+            return true;
+        }
+
+        @Override
+        public boolean isMetered() {
+            return false;
+        }
+
+        @Override
+        public Bandwidth getBandwidth() {
+            return Bandwidth.FAST;
+        }
+    };
+
+    private final TileMetrics mMetrics = new TileMetrics();
+    private MockWebServer mServer;
+
+    @Before
+    public void setUp() throws Exception {
+        mServer = new MockWebServer();
+        mServer.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mServer.shutdown();
+    }
+
+    @Test
+    public void interruptedCaller_orphanDrainsIntoCache() throws Exception {
+        HttpDownloader downloader = newDownloader(1);
+        mServer.enqueue(slowTile());
+        String url = mServer.url("/1/0/0.png").toString();
+
+        AtomicReference<Throwable> thrown = new AtomicReference<>();
+        Thread caller = fetchLater(downloader, url, thrown);
+        mServer.takeRequest(5, TimeUnit.SECONDS);
+        Thread.sleep(100);
+        caller.interrupt();
+        caller.join(5000);
+        assertTrue(thrown.get() instanceof InterruptedIOException);
+
+        awaitCached(downloader, url);
+        assertNotNull(downloader.getData(url));
+        assertEquals(1, mServer.getRequestCount());
+        assertEquals(1, downloader.getAvailableOrphanPermits());
+        assertEquals(0, mMetrics.snapshot().refetches);
+    }
+
+    @Test
+    public void orphanThatFails_returnsItsPermit() throws Exception {
+        HttpDownloader downloader = newDownloader(1);
+        mServer.enqueue(slowTile().setSocketPolicy(SocketPolicy.DISCONNECT_DURING_RESPONSE_BODY));
+        String url = mServer.url("/1/0/0.png").toString();
+
+        Thread caller = fetchLater(downloader, url, new AtomicReference<Throwable>());
+        mServer.takeRequest(5, TimeUnit.SECONDS);
+        caller.interrupt();
+        caller.join(5000);
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (downloader.getAvailableOrphanPermits() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, downloader.getAvailableOrphanPermits());
+        assertNull(downloader.getCachedData(url));
+    }
+
+    @Test
+    public void orphansBeyondLimit_areCancelled() throws Exception {
+        HttpDownloader downloader = newDownloader(0);
+        mServer.enqueue(slowTile());
+        mServer.enqueue(tile());
+        String url = mServer.url("/1/0/0.png").toString();
+
+        Thread caller = fetchLater(downloader, url, new AtomicReference<Throwable>());
+        mServer.takeRequest(5, TimeUnit.SECONDS);
+        caller.interrupt();
+        caller.join(5000);
+
+        // the cancelled fetch left nothing behind, so the tile is fetched again
+        assertNotNull(downloader.getData(url));
+        assertEquals(2, mServer.getRequestCount());
+        assertEquals(0, downloader.getAvailableOrphanPermits());
+        assertEquals(1, mMetrics.snapshot().refetches);
+    }
+
+    @Test
+    public void requestForDrainingTile_joinsOrphanInsteadOfRefetching() throws Exception {
+        HttpDownloader downloader = newDownloader(1);
+        mServer.enqueue(slowTile());
+        mServer.enqueue(tile());
+        String url = mServer.url("/1/0/0.png").toString();
+
+        AsyncDownloader.Cancellable abandoned = downloader.enqueue(url, new Received());
+        mServer.takeRequest(5, TimeUnit.SECONDS);
+        Thread.sleep(100);
+        abandoned.cancel();
+        Received joined = new Received();
+        downloader.enqueue(url, joined);
+
+        assertTrue(joined.mDone.await(5, TimeUnit.SECONDS));
+        assertEquals(64 * 1024, joined.mData.length);
+        assertEquals(1, mServer.getRequestCount());
+    }
+
+    @Test
+    public void enqueuedTileCancelledMidBody_drainsIntoCacheAndReturnsItsPermit() throws Exception {
+        HttpDownloader downloader = newDownloader(1);
+        mServer.enqueue(slowTile());
+        String url = mServer.url("/1/0/0.png").toString();
+
+        Received received = new Received();
+        AsyncDownloader.Cancellable tile = downloader.enqueue(url, received);
+        mServer.takeRequest(5, TimeUnit.SECONDS);
+        Thread.sleep(100);
+        tile.cancel();
+        assertEquals(0, downloader.getAvailableOrphanPermits());
+
+        awaitCached(downloader, url);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (downloader.getAvailableOrphanPermits() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, downloader.getAvailableOrphanPermits());
+        assertEquals(1, mServer.getRequestCount());
+        // the orphan drained for the cache, not for the tile that gave up on it
+        assertEquals(1, received.mDone.getCount());
+        assertEquals(0, mMetrics.snapshot().refetches);
+    }
+
+    @Test
+    public void enqueuedTileCancelledBeyondOrphanLimit_isCancelled() throws Exception {
+        HttpDownloader downloader = newDownloader(0);
+        mServer.enqueue(slowTile());
+        mServer.enqueue(tile());
+        String url = mServer.url("/1/0/0.png").toString();
+
+        Received received = new Received();
+        AsyncDownloader.Cancellable tile = downloader.enqueue(url, received);
+        mServer.takeRequest(5, TimeUnit.SECONDS);
+        tile.cancel();
+
+        assertNotNull(downloader.getData(url));
+        assertEquals(2, mServer.getRequestCount());
+        assertEquals(1, received.mDone.getCount());
+        assertEquals(1, mMetrics.snapshot().refetches);
+    }
+
+    @Test
+    public void entryBeyondPolicysStaleness_isFetchedAgain() throws Exception {
+        HttpDownloader downloader = newDownloader(1);
+        // ten days old on arrival, past the seven days of staleness allowed on a fast network
+        mServer.enqueue(tile().setHeader("Age", TimeUnit.DAYS.toSeconds(10)));
+        mServer.enqueue(tile());
+        String url = mServer.url("/1/0/0.png").toString();
+
+        assertNotNull(downloader.getData(url));
+        assertNotNull(downloader.getCachedData(url));
+        assertNotNull(downloader.getData(url));
+        assertEquals(2, mServer.getRequestCount());
+    }
+
+    @Test
+    public void enqueueNoStore_fetchesWithoutWritingTheCache() throws Exception {
+        HttpDownloader downloader = newDownloader(1);
+        mServer.enqueue(tile());
+        mServer.enqueue(tile());
+        String url = mServer.url("/1/0/0.png").toString();
+
+        Received received = new Received();
+        downloader.enqueueNoStore(url, received);
+        assertTrue(received.mDone.await(5, TimeUnit.SECONDS));
+        assertNotNull(received.mData);
+        assertTrue(mServer.takeRequest().getHeader("Cache-Control").contains("no-store"));
+        assertNull(downloader.getCachedData(url));
+
+        // a cached tile is still served to it
+        assertNotNull(downloader.getData(url));
+        Received cached = new Received();
+        downloader.enqueueNoStore(url, cached);
+        assertTrue(cached.mDone.await(5, TimeUnit.SECONDS));
+        assertNotNull(cached.mData);
+        assertEquals(2, mServer.getRequestCount());
+    }
+
+    @Test
+    public void md5Hex_namesEntriesAsOkHttpDoes() throws Exception {
+        StringBuilder longUrl = new StringBuilder("http://tiles.test/");
+        for (int i = 0; i < 300; i++) {
+            longUrl.append('a');
+        }
+        for (String url : new String[]{"http://tiles.test/1/0/0.png", "http://tiles.test/\u00e9/0.png",
+                longUrl.toString(), ""}) {
+            assertEquals(ByteString.encodeUtf8(url).md5().hex(), HttpDownloader.md5Hex(url));
+        }
+    }
+
+    private HttpDownloader newDownloader(int maxOrphanedDrains) {
+        return new HttpDownloader(mFolder.getRoot(), 1024 * 1024, ONLINE, mMetrics, maxOrphanedDrains);
+    }
+
+    static MockResponse tile() {
+        return new MockResponse()
+                .setHeader("Content-Type", "image/png")
+                .setHeader("Cache-Control", "max-age=3600")
+                .setBody("tile");
+    }
+
+    /** A 64 KiB tile whose body takes about a second to arrive. */
+    static MockResponse slowTile() {
+        return new MockResponse()
+                .setHeader("Content-Type", "image/png")
+                .setHeader("Cache-Control", "max-age=3600")
+                .setBody(new Buffer().write(new byte[64 * 1024]))
+                .throttleBody(8 * 1024, 125, TimeUnit.MILLISECONDS);
+    }
+
+    static void awaitCached(Downloader downloader, String url) throws Exception {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (downloader.getCachedData(url) == null && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertNotNull(downloader.getCachedData(url));
+    }
+
+    private static Thread fetchLater(final HttpDownloader downloader, final String url,
+                                     final AtomicReference<Throwable> thrown) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    downloader.getData(url);
+                } catch (IOException | RuntimeException e) {
+                    thrown.set(e);
+                }
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    static final class Received implements AsyncDownloader.Callback {
+        final CountDownLatch mDone = new CountDownLatch(1);
+        volatile byte[] mData;
+        volatile IOException mError;
+
+        @Override
+        public void onTile(String url, byte[] data) {
+            mData = data;
+            mDone.countDown();
+        }
+
+        @Override
+        public void onFailure(String url, IOException e) {
+            mError = e;
+            mDone.countDown();
+        }
+    }
+}
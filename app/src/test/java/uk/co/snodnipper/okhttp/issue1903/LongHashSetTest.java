@@ -0,0 +1,92 @@
+package uk.co.snodnipper.okhttp.issue1903;
+
+import org.junit.Test;
+
+import java.util.NoSuchElementException;
+
+import static org.junit.Assert.*;
+
+public class LongHashSetTest {
+    @Test
+    public void add_rejectsDuplicates() throws Exception {
+        LongHashSet set = new LongHashSet();
+        assertTrue(set.add(42));
+        assertFalse(set.add(42));
+        assertEquals(1, set.size());
+        assertTrue(set.contains(42));
+        assertFalse(set.contains(43));
+    }
+
+    @Test
+    public void zeroAndMinusOne_areOrdinaryElements() throws Exception {
+        LongHashSet set = new LongHashSet();
+        assertFalse(set.contains(0));
+        assertTrue(set.add(0));
+        assertFalse(set.add(0));
+        assertTrue(set.add(-1));
+        assertFalse(set.add(-1));
+        assertTrue(set.contains(0));
+        assertTrue(set.contains(-1));
+        assertEquals(2, set.size());
+        assertEquals(0, set.get(0));
+        assertEquals(-1, set.get(1));
+    }
+
+    @Test
+    public void growingFromTinyCapacity_keepsEveryElement() throws Exception {
+        // four slots to start with, so probes collide and the table is rehashed many times
+        LongHashSet set = new LongHashSet(1);
+        for (long i = -5000; i < 5000; i++) {
+            assertTrue(set.add(i * 31));
+        }
+        assertEquals(10000, set.size());
+        for (long i = -5000; i < 5000; i++) {
+            assertTrue(set.contains(i * 31));
+            assertFalse(set.contains(i * 31 + 1));
+            assertFalse(set.add(i * 31));
+        }
+    }
+
+    @Test
+    public void keysDifferingOnlyInHighBits_areDistinct() throws Exception {
+        LongHashSet set = new LongHashSet();
+        for (int i = 0; i < 64; i++) {
+            assertTrue(set.add(1L << i));
+        }
+        assertTrue(set.add(Long.MIN_VALUE + 1));
+        assertTrue(set.add(Long.MAX_VALUE));
+        assertEquals(66, set.size());
+        for (int i = 0; i < 64; i++) {
+            assertTrue(set.contains(1L << i));
+        }
+        assertFalse(set.contains(3));
+    }
+
+    @Test
+    public void iterator_followsInsertionOrderAndSeesLaterAdds() throws Exception {
+        LongHashSet set = new LongHashSet();
+        set.add(7);
+        set.add(0);
+        set.add(-3);
+
+        LongIterator iterator = set.iterator();
+        assertEquals(7, iterator.next());
+        set.add(99);
+        assertEquals(0, iterator.next());
+        assertEquals(-3, iterator.next());
+        assertEquals(99, iterator.next());
+        assertFalse(iterator.hasNext());
+        try {
+            iterator.next();
+            fail();
+        } catch (NoSuchElementException expected) {
+        }
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void get_beyondSize_throws() throws Exception {
+        LongHashSet set = new LongHashSet();
+        set.add(1);
+        set.get(1);
+    }
+}
@@ -0,0 +1,113 @@
+package uk.co.snodnipper.okhttp.issue1903;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class MemoryTileCacheTest {
+
+    private static final String URL = "http://a.tiles.test/3/1/2.png";
+
+    /** Answers every fetch at once with a tile of {@code mSize} bytes. */
+    private static class CountingDownloader implements AsyncDownloader {
+        final AtomicInteger mFetches = new AtomicInteger();
+        int mSize = 10;
+
+        @Override
+        public Cancellable enqueue(String url, Callback callback) {
+            mFetches.incrementAndGet();
+            callback.onTile(url, new byte[mSize]);
+            return PendingTile.DONE_ALREADY;
+        }
+
+        @Override
+        public byte[] getData(String url) throws IOException {
+            mFetches.incrementAndGet();
+            return new byte[mSize];
+        }
+
+        @Override
+        public byte[] getCachedData(String url) {
+            return null;
+        }
+    }
+
+    @Test
+    public void leastRecentlyUsed_isEvictedFirst() throws Exception {
+        MemoryTileCache cache = new MemoryTileCache(new CountingDownloader(), 30);
+        cache.put(1, new byte[10]);
+        cache.put(2, new byte[10]);
+        cache.put(3, new byte[10]);
+        // touch 1 so 2 is now the eldest
+        assertNotNull(cache.get(1));
+        cache.put(4, new byte[10]);
+
+        assertNull(cache.get(2));
+        assertNotNull(cache.get(1));
+        assertNotNull(cache.get(3));
+        assertNotNull(cache.get(4));
+        assertEquals(1, cache.getEvictionCount());
+    }
+
+    @Test
+    public void bytes_areAccountedOnReplaceAndEviction() throws Exception {
+        MemoryTileCache cache = new MemoryTileCache(new CountingDownloader(), 100);
+        cache.put(1, new byte[40]);
+        cache.put(2, new byte[30]);
+        assertEquals(70, cache.getBytes());
+        cache.put(1, new byte[10]);
+        assertEquals(40, cache.getBytes());
+        cache.put(3, new byte[80]);
+        // replacing 1 made 2 the eldest, and it had to go to make room
+        assertEquals(90, cache.getBytes());
+        assertEquals(1, cache.getEvictionCount());
+        assertNull(cache.get(2));
+        cache.put(4, new byte[101]);
+        assertEquals(90, cache.getBytes());
+        assertNull(cache.get(4));
+    }
+
+    @Test
+    public void trimMemory_halvesThenEmpties() throws Exception {
+        MemoryTileCache cache = new MemoryTileCache(new CountingDownloader(), 100);
+        for (int i = 0; i < 10; i++) {
+            cache.put(i, new byte[10]);
+        }
+        cache.onTrimMemory(5);
+        assertEquals(100, cache.getBytes());
+        cache.onTrimMemory(MemoryTileCache.TRIM_MEMORY_RUNNING_LOW);
+        assertEquals(50, cache.getBytes());
+        assertNull(cache.get(0));
+        assertNotNull(cache.get(9));
+        cache.onTrimMemory(MemoryTileCache.TRIM_MEMORY_MODERATE);
+        assertEquals(0, cache.getBytes());
+        assertEquals(100, cache.getMaxBytes());
+    }
+
+    @Test
+    public void hitsAndMisses_areCounted() throws Exception {
+        CountingDownloader delegate = new CountingDownloader();
+        MemoryTileCache cache = new MemoryTileCache(delegate, 100, new TileMetrics());
+        assertNotNull(cache.getData(URL));
+        assertNotNull(cache.getData(URL));
+        assertNotNull(PendingTile.await(cache, URL));
+
+        assertEquals(1, delegate.mFetches.get());
+        assertEquals(2, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+    }
+
+    @Test
+    public void sameTileThroughAnotherHost_isHeldOnce() throws Exception {
+        CountingDownloader delegate = new CountingDownloader();
+        MemoryTileCache cache = new MemoryTileCache(delegate, 100);
+        cache.getData(URL);
+        cache.getData("http://b.tiles.test/3/1/2.png");
+
+        assertEquals(1, delegate.mFetches.get());
+        assertEquals(10, cache.getBytes());
+    }
+}
@@ -0,0 +1,103 @@
+package uk.co.snodnipper.okhttp.issue1903;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class PendingTileTest {
+
+    private static final String URL = "http://tiles.example.com/10/500/300.png";
+
+    @Test
+    public void tile_isHandedOverOnce() throws Exception {
+        HttpDownloaderTest.Received received = new HttpDownloaderTest.Received();
+        PendingTile tile = new PendingTile(URL, received);
+
+        tile.deliver(new byte[1]);
+        tile.fail(new IOException("late"));
+        tile.deliver(new byte[2]);
+
+        assertEquals(1, received.mData.length);
+        assertNull(received.mError);
+    }
+
+    @Test
+    public void cancel_cancelsTheStepInFlightAndDropsTheResult() throws Exception {
+        HttpDownloaderTest.Received received = new HttpDownloaderTest.Received();
+        PendingTile tile = new PendingTile(URL, received);
+        Counting upstream = new Counting();
+        tile.setUpstream(upstream);
+
+        tile.cancel();
+        tile.cancel();
+        tile.deliver(new byte[1]);
+
+        assertTrue(tile.isCancelled());
+        assertEquals(1, upstream.mCancels.get());
+        assertEquals(1, received.mDone.getCount());
+    }
+
+    @Test
+    public void stepStartedAfterCancel_isCancelledAtOnce() throws Exception {
+        PendingTile tile = new PendingTile(URL, new HttpDownloaderTest.Received());
+        tile.setUpstream(new Counting());
+        tile.cancel();
+
+        // as a failover's retry would be started
+        Counting retry = new Counting();
+        tile.setUpstream(retry);
+        assertEquals(1, retry.mCancels.get());
+    }
+
+    @Test
+    public void interruptedAwait_cancelsTheFetch() throws Exception {
+        final Counting upstream = new Counting();
+        final AsyncDownloader never = new AsyncDownloader() {
+            @Override
+            public Cancellable enqueue(String url, Callback callback) {
+                return upstream;
+            }
+
+            @Override
+            public byte[] getData(String url) throws IOException {
+                return PendingTile.await(this, url);
+            }
+
+            @Override
+            public byte[] getCachedData(String url) {
+                return null;
+            }
+        };
+        final AtomicReference<IOException> thrown = new AtomicReference<>();
+        Thread caller = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    never.getData(URL);
+                } catch (IOException e) {
+                    thrown.set(e);
+                }
+            }
+        });
+        caller.start();
+        caller.interrupt();
+        caller.join(5000);
+
+        assertTrue(thrown.get() instanceof InterruptedIOException);
+        assertEquals(1, upstream.mCancels.get());
+    }
+
+    private static final class Counting implements AsyncDownloader.Cancellable {
+        final AtomicInteger mCancels = new AtomicInteger();
+
+        @Override
+        public void cancel() {
+            mCancels.incrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package uk.co.snodnipper.okhttp.issue1903;
+
+import org.junit.Test;
+
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class PolygonCoverageTest {
+    /** A narrow diagonal strip from south-west to north-east. */
+    private static final double[] CORRIDOR = {-1, 50, -0.9, 50, 1.1, 52, 1, 52.05};
+
+    /** A U shape whose notch, between longitudes 0.5 and 1.5, is outside the polygon. */
+    private static final double[] U_SHAPE = {0, 50, 2, 50, 2, 52, 1.5, 52, 1.5, 50.5, 0.5, 50.5, 0.5, 52, 0, 52};
+
+    @Test
+    public void corridor_coversFarFewerTilesThanEnvelope() throws Exception {
+        TileCoverage polygon = new PolygonCoverage(Collections.singletonList(CORRIDOR), 0);
+        TileCoverage envelope = new EnvelopeCoverage(-1, 50, 1.1, 52.05);
+        long polygonTiles = polygon.count(14, 0, (1 << 14) - 1);
+        long envelopeTiles = envelope.count(14, 0, (1 << 14) - 1);
+        assertTrue(polygonTiles + " vs " + envelopeTiles, polygonTiles * 10 < envelopeTiles);
+    }
+
+    @Test
+    public void concavePolygon_excludesNotch() throws Exception {
+        TileCoverage coverage = new PolygonCoverage(Collections.singletonList(U_SHAPE), 0);
+        int zoom = 10;
+        int notchX = TileMath.lonToTileX(1.0, zoom);
+        int notchY = TileMath.latToTileY(51.5, zoom);
+        int armX = TileMath.lonToTileX(0.25, zoom);
+        TileSpans spans = new TileSpans();
+        coverage.getSpans(zoom, notchY, spans);
+        assertFalse(spans.contains(notchX));
+        assertTrue(spans.contains(armX));
+        assertEquals(2, spans.size());
+    }
+
+    @Test
+    public void buffer_growsCoverage() throws Exception {
+        TileCoverage exact = new PolygonCoverage(Collections.singletonList(CORRIDOR), 0);
+        TileCoverage buffered = new PolygonCoverage(Collections.singletonList(CORRIDOR), 1);
+        assertEquals(exact.minRow(10) - 1, buffered.minRow(10));
+        assertEquals(exact.maxRow(10) + 1, buffered.maxRow(10));
+        assertTrue(buffered.count(10, 0, 1023) > exact.count(10, 0, 1023));
+    }
+}
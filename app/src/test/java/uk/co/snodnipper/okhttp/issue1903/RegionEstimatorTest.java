@@ -0,0 +1,112 @@
+package uk.co.snodnipper.okhttp.issue1903;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class RegionEstimatorTest {
+    private static final TileUrlFormatter URLS = new PrefixUrlFormatter("http://tiles/", ".png");
+
+    private static List<TileCoverage> overlappingCoverages() {
+        List<TileCoverage> coverages = new ArrayList<>();
+        coverages.add(new EnvelopeCoverage(-1, 51, 0.5, 52));
+        coverages.add(new PolygonCoverage(Collections.singletonList(
+                new double[]{-1, 50, -0.9, 50, 1.1, 52, 1, 52.05}), 0));
+        return coverages;
+    }
+
+    @Test
+    public void count_matchesEnumeration() throws Exception {
+        List<TileCoverage> coverages = overlappingCoverages();
+        for (int zoom = 1; zoom <= 12; zoom++) {
+            long enumerated = 0;
+            TileIterator tiles = new TileIterator(coverages, zoom, zoom);
+            while (tiles.hasNext()) {
+                tiles.next();
+                enumerated++;
+            }
+            assertEquals("zoom " + zoom, enumerated, RegionEstimator.count(coverages, zoom));
+        }
+    }
+
+    @Test
+    public void count_doesNotOverflowAtDeepZoom() throws Exception {
+        TileCoverage world = new EnvelopeCoverage(-180, -90, 180, 90);
+        assertEquals(1L << 40, RegionEstimator.count(Collections.singletonList(world), 20));
+    }
+
+    @Test
+    public void estimate_extrapolatesCachedTiles() throws Exception {
+        RegionEstimator estimator = new RegionEstimator(new RegionEstimator.CacheProbe() {
+            @Override
+            public long getCachedSize(String url) {
+                return 1000;
+            }
+        }, URLS);
+        RegionEstimator.Estimate estimate = estimator.estimate(overlappingCoverages(), 1, 12);
+        assertEquals(estimate.totalTiles, estimate.estimatedCachedTiles);
+        assertEquals(0, estimate.getBytesToDownload());
+        assertEquals(1000, estimate.estimatedTileBytes);
+    }
+
+    @Test
+    public void estimate_samplesCoveredTilesWithoutEnumeratingThem() throws Exception {
+        final TileCoverage world = new EnvelopeCoverage(-180, -85, 180, 85);
+        final List<Long> probed = new ArrayList<>();
+        RegionEstimator estimator = new RegionEstimator(new RegionEstimator.CacheProbe() {
+            @Override
+            public long getCachedSize(String url) {
+                probed.add(TileKey.fromUrl(url));
+                return -1;
+            }
+        }, URLS, 100);
+        // about 1.5 trillion tiles; walking them would never finish
+        RegionEstimator.Estimate estimate = estimator.estimate(world, 1, 20);
+
+        assertTrue(estimate.totalTiles > 1L << 40);
+        assertTrue(probed.size() >= 100 && probed.size() <= 101);
+        TileSpans spans = new TileSpans();
+        for (long key : probed) {
+            world.getSpans(TileKey.zoom(key), TileKey.y(key), spans);
+            assertTrue(spans.contains(TileKey.x(key)));
+        }
+        // samples fall in proportion to each zoom's tiles, so the deepest zoom gets most of them
+        assertEquals(20, TileKey.zoom(probed.get(probed.size() - 1)));
+    }
+
+    @Test
+    public void estimate_samplesOverlappingCoveragesOnce() throws Exception {
+        final List<Long> probed = new ArrayList<>();
+        RegionEstimator estimator = new RegionEstimator(new RegionEstimator.CacheProbe() {
+            @Override
+            public long getCachedSize(String url) {
+                probed.add(TileKey.fromUrl(url));
+                return 1000;
+            }
+        }, URLS, Integer.MAX_VALUE);
+        List<TileCoverage> coverages = overlappingCoverages();
+        estimator.estimate(coverages, 1, 10);
+
+        // one sample per tile: exactly the tiles the download enumerates, in no particular order
+        List<Long> enumerated = new ArrayList<>();
+        TileIterator tiles = new TileIterator(coverages, 1, 10);
+        while (tiles.hasNext()) {
+            enumerated.add(tiles.next());
+        }
+        Collections.sort(probed);
+        Collections.sort(enumerated);
+        assertEquals(enumerated, probed);
+    }
+
+    @Test
+    public void maxZoomWithin_dropsDeepZooms() throws Exception {
+        RegionEstimator.Estimate estimate = new RegionEstimator.Estimate(1, new long[]{1, 4, 16}, 0, 1);
+        assertEquals(3, estimate.getMaxZoomWithin(21));
+        assertEquals(2, estimate.getMaxZoomWithin(20));
+        assertEquals(0, estimate.getMaxZoomWithin(0));
+    }
+}
@@ -0,0 +1,40 @@
+package uk.co.snodnipper.okhttp.issue1903;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import okhttp3.MediaType;
+import okhttp3.ResponseBody;
+import okio.Buffer;
+
+import static org.junit.Assert.*;
+
+public class TileBodyReaderTest {
+
+    private static final MediaType PNG = MediaType.parse("image/png");
+
+    private static byte[] tile(int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (i * 31);
+        }
+        return data;
+    }
+
+    @Test
+    public void knownLength_readExactly() throws Exception {
+        byte[] data = tile(20000);
+        assertArrayEquals(data, TileBodyReader.read(ResponseBody.create(PNG, data)));
+    }
+
+    @Test
+    public void unknownLength_growsPastScratchBuffer() throws Exception {
+        for (int length : new int[]{0, 1, 32 * 1024, 100000}) {
+            byte[] data = tile(length);
+            ResponseBody body = ResponseBody.create(PNG, -1, new Buffer().write(data));
+            byte[] read = TileBodyReader.read(body);
+            assertTrue("length " + length, Arrays.equals(data, read));
+        }
+    }
+}
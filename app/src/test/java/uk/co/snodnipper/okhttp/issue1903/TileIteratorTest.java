@@ -0,0 +1,71 @@
+package uk.co.snodnipper.okhttp.issue1903;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class TileIteratorTest {
+    private static List<TileCoverage> overlappingEnvelopes() {
+        List<TileCoverage> coverages = new ArrayList<>();
+        coverages.add(new EnvelopeCoverage(-1, 51, 0.5, 52));
+        coverages.add(new EnvelopeCoverage(0, 51.5, 1, 52.5));
+        return coverages;
+    }
+
+    private static Set<Long> drain(LongIterator iterator) {
+        Set<Long> keys = new HashSet<>();
+        while (iterator.hasNext()) {
+            assertTrue("duplicate tile", keys.add(iterator.next()));
+        }
+        return keys;
+    }
+
+    @Test
+    public void singleCoverage_matchesEstimate() throws Exception {
+        TileIterator tiles = new TileIterator(new EnvelopeCoverage(-1, 51, 0.5, 52), 1, 12);
+        long estimate = tiles.estimateSize();
+        assertEquals(estimate, drain(tiles).size());
+    }
+
+    @Test
+    public void overlappingCoverages_returnEachTileOnce() throws Exception {
+        List<TileCoverage> coverages = overlappingEnvelopes();
+        Set<Long> union = new HashSet<>();
+        for (TileCoverage coverage : coverages) {
+            union.addAll(drain(new TileIterator(coverage, 1, 12)));
+        }
+        assertEquals(union, drain(new TileIterator(coverages, 1, 12)));
+    }
+
+    @Test
+    public void split_partitionsRemainingTiles() throws Exception {
+        List<TileCoverage> coverages = overlappingEnvelopes();
+        Set<Long> expected = drain(new TileIterator(coverages, 1, 12));
+
+        TileIterator tiles = new TileIterator(coverages, 1, 12);
+        Set<Long> actual = new HashSet<>();
+        for (int i = 0; i < 100; i++) {
+            actual.add(tiles.next());
+        }
+        TileIterator split = tiles.split();
+        assertNotNull(split);
+        for (long key : drain(split)) {
+            assertTrue("duplicate tile", actual.add(key));
+        }
+        for (long key : drain(tiles)) {
+            assertTrue("duplicate tile", actual.add(key));
+        }
+        assertEquals(expected, actual);
+    }
+
+    @Test
+    public void limit_stopsEarly() throws Exception {
+        TileIterator tiles = new TileIterator(overlappingEnvelopes(), 1, 12).limit(10);
+        assertEquals(10, drain(tiles).size());
+    }
+}
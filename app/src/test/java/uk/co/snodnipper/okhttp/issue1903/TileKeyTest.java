@@ -0,0 +1,29 @@
+package uk.co.snodnipper.okhttp.issue1903;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TileKeyTest {
+    @Test
+    public void pack_roundTrips() throws Exception {
+        long key = TileKey.pack(18, 131071, 262143);
+        assertEquals(18, TileKey.zoom(key));
+        assertEquals(131071, TileKey.x(key));
+        assertEquals(262143, TileKey.y(key));
+    }
+
+    @Test
+    public void fromUrl_parsesTrailingPath() throws Exception {
+        assertEquals(TileKey.pack(5, 3, 4), TileKey.fromUrl("http://a.tile.openstreetmap.org/5/3/4.png"));
+        assertEquals(TileKey.pack(0, 0, 0), TileKey.fromUrl("http://a.tile.openstreetmap.org/0/0/0"));
+        assertEquals(TileKey.pack(2, 1, 3), TileKey.fromUrl("http://host/tiles/2/1/3.png?access_token=x"));
+    }
+
+    @Test
+    public void fromUrl_rejectsNonTileUrls() throws Exception {
+        assertEquals(TileKey.INVALID, TileKey.fromUrl("http://host/"));
+        assertEquals(TileKey.INVALID, TileKey.fromUrl("http://host/a/b.png"));
+        assertEquals(TileKey.INVALID, TileKey.fromUrl("http://host/1/2/0.png"));
+    }
+}
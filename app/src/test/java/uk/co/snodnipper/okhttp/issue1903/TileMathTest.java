@@ -0,0 +1,53 @@
+package uk.co.snodnipper.okhttp.issue1903;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TileMathTest {
+
+    @Test
+    public void tileEdges_belongToTheTileBelowAndRight() throws Exception {
+        for (int zoom = 1; zoom <= 20; zoom++) {
+            int middle = TileMath.tilesPerSide(zoom) / 2;
+            assertEquals(middle, TileMath.lonToTileX(0, zoom));
+            assertEquals(middle, TileMath.latToTileY(0, zoom));
+            assertEquals(middle - 1, TileMath.lonToTileX(-1e-9, zoom));
+        }
+    }
+
+    @Test
+    public void worldY_roundTripsThroughLatitude() throws Exception {
+        for (double lat = -85; lat <= 85; lat += 0.5) {
+            assertEquals(lat, TileMath.worldYToLat(TileMath.latToWorldY(lat)), 1e-9);
+        }
+        assertEquals(0, TileMath.latToWorldY(90), 1e-12);
+        assertEquals(1, TileMath.latToWorldY(-90), 1e-12);
+    }
+
+    @Test
+    public void batch_matchesSinglePoints() throws Exception {
+        double[] lonLats = {-0.1276, 51.5072, 2.3522, 48.8566, -180, 85.06, 179.9999, -85.06};
+        int zoom = 17;
+        double[] xs = new double[4];
+        double[] ys = new double[4];
+        int[] columns = new int[4];
+        long[] keys = new long[4];
+        TileMath.toWorld(lonLats, 4, xs, ys);
+        TileMath.toTiles(xs, 4, zoom, columns);
+        TileMath.toTileKeys(lonLats, 4, zoom, keys);
+        for (int i = 0; i < 4; i++) {
+            int x = TileMath.lonToTileX(lonLats[2 * i], zoom);
+            int y = TileMath.latToTileY(lonLats[2 * i + 1], zoom);
+            assertEquals(x, columns[i]);
+            assertEquals(TileKey.pack(zoom, x, y), keys[i]);
+        }
+    }
+
+    @Test
+    public void scale_isPowerOfTwoBetweenZooms() throws Exception {
+        assertEquals(8.0, TileMath.scale(3, 6), 0);
+        assertEquals(0.125, TileMath.scale(6, 3), 0);
+        assertEquals(1.0, TileMath.scale(TileKey.MAX_ZOOM, TileKey.MAX_ZOOM), 0);
+    }
+}
@@ -0,0 +1,55 @@
+package uk.co.snodnipper.okhttp.issue1903;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class TileMetricsTest {
+
+    @Test
+    public void latencies_fallInLog2Buckets() throws Exception {
+        assertEquals(0, TileMetrics.bucket(TimeUnit.MICROSECONDS.toNanos(500)));
+        assertEquals(1, TileMetrics.bucket(TimeUnit.MILLISECONDS.toNanos(1)));
+        assertEquals(4, TileMetrics.bucket(TimeUnit.MILLISECONDS.toNanos(12)));
+        assertEquals(TileMetrics.BUCKETS - 1, TileMetrics.bucket(TimeUnit.HOURS.toNanos(10)));
+    }
+
+    @Test
+    public void snapshot_reportsCountsPercentilesAndHitRatio() throws Exception {
+        TileMetrics metrics = new TileMetrics();
+        for (int i = 0; i < 90; i++) {
+            metrics.record(TileMetrics.Outcome.NETWORK, TimeUnit.MILLISECONDS.toNanos(100), 1000);
+        }
+        for (int i = 0; i < 10; i++) {
+            metrics.record(TileMetrics.Outcome.NETWORK, TimeUnit.MILLISECONDS.toNanos(3000), 1000);
+        }
+        metrics.record(TileMetrics.Outcome.MEMORY_HIT, 0, 1000);
+        metrics.record(TileMetrics.Outcome.CANCELLED, 0, 0);
+
+        TileMetrics.Snapshot snapshot = metrics.snapshot();
+        assertEquals(100, snapshot.getCount(TileMetrics.Outcome.NETWORK));
+        assertEquals(100000, snapshot.getBytes(TileMetrics.Outcome.NETWORK));
+        assertEquals(128, snapshot.getPercentileMillis(TileMetrics.Outcome.NETWORK, 0.5));
+        assertEquals(4096, snapshot.getPercentileMillis(TileMetrics.Outcome.NETWORK, 0.99));
+        assertEquals(1 / 101.0, snapshot.getHitRatio(), 1e-9);
+        assertTrue(snapshot.toString().contains("CANCELLED"));
+    }
+
+    @Test
+    public void tileFetchedAgain_isCountedAsRefetch() throws Exception {
+        TileMetrics metrics = new TileMetrics();
+        metrics.recordFetch(TileKey.pack(10, 1, 2), true);
+        metrics.recordFetch(TileKey.pack(10, 1, 3), false);
+        metrics.recordFetch(TileKey.INVALID, true);
+        metrics.recordFetch(TileKey.INVALID, true);
+        assertEquals(0, metrics.snapshot().refetches);
+
+        metrics.recordFetch(TileKey.pack(10, 1, 2), true);
+        // the cancelled fetch's bytes were lost, so downloading the tile is a refetch too
+        metrics.recordFetch(TileKey.pack(10, 1, 3), true);
+        assertEquals(2, metrics.snapshot().refetches);
+        assertTrue(metrics.dump().contains("2 refetched"));
+    }
+}
@@ -0,0 +1,111 @@
+package uk.co.snodnipper.okhttp.issue1903;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TilePredictorTest {
+
+    private static final TileSource SOURCE = new TileSource("test", "http://{s}.tiles.test/{z}/{x}/{y}.png",
+            new String[]{"a"}, 0, 18, RasterImageQuality.MBXRasterImageQualityJPEG80);
+
+    private static class FakeNetwork implements NetworkState {
+        boolean mMetered;
+
+        @Override
+        public boolean isOnline() {
+            return true;
+        }
+
+        @Override
+        public boolean isMetered() {
+            return mMetered;
+        }
+
+        @Override
+        public Bandwidth getBandwidth() {
+            return Bandwidth.FAST;
+        }
+    }
+
+    @Test
+    public void panningEast_predictsTilesAheadNearestFirst() throws Exception {
+        TilePredictor predictor = new TilePredictor(SOURCE, new FakeNetwork(), null);
+        // two tiles east per second, a view five tiles wide
+        for (int i = 0; i <= 5; i++) {
+            predictor.onViewport(10, 500.5 + 0.2 * i, 300.5, 2.5, 2.5, 1000 + 100 * i);
+        }
+        long[] keys = predictor.predict(1500);
+
+        assertTrue(keys.length > 0);
+        int previousX = 0;
+        for (long key : keys) {
+            if (TileKey.zoom(key) != 10) {
+                // the centre's children follow the ring
+                continue;
+            }
+            // east of the view, which now spans columns 499 to 504
+            assertTrue(TileKey.x(key) + "", TileKey.x(key) > 504);
+            assertTrue(TileKey.x(key) >= previousX);
+            previousX = TileKey.x(key);
+        }
+        assertEquals(TileKey.pack(10, 505, 300), keys[0]);
+    }
+
+    @Test
+    public void zoomingIn_predictsTheViewOneLevelIn() throws Exception {
+        TilePredictor predictor = new TilePredictor(SOURCE, new FakeNetwork(), null);
+        predictor.onViewport(10, 500.5, 300.5, 2, 2, 1000);
+        predictor.onViewport(11, 1001, 601, 2, 2, 2000);
+        long[] keys = predictor.predict(2000);
+
+        assertEquals(25, keys.length);
+        for (long key : keys) {
+            assertEquals(12, TileKey.zoom(key));
+            assertTrue(Math.abs(TileKey.x(key) - 2002) <= 2);
+        }
+    }
+
+    @Test
+    public void stillView_predictsChildrenOfCentreTile() throws Exception {
+        TilePredictor predictor = new TilePredictor(SOURCE, new FakeNetwork(), null);
+        predictor.onViewport(10, 500.5, 300.5, 2, 2, 1000);
+        long[] keys = predictor.predict(1000);
+
+        assertEquals(4, keys.length);
+        assertEquals(TileKey.pack(11, 1000, 600), keys[0]);
+        assertEquals(TileKey.pack(11, 1001, 601), keys[3]);
+    }
+
+    @Test
+    public void claimedTiles_areNotPredictedAgainAndFetchedOnesCountAsHits() throws Exception {
+        TilePredictor predictor = new TilePredictor(SOURCE, new FakeNetwork(), null);
+        predictor.onViewport(10, 500.5, 300.5, 2, 2, 1000);
+        long[] keys = predictor.predict(1000);
+        assertTrue(predictor.claim(keys[0]));
+        assertFalse(predictor.claim(keys[0]));
+        // the second is claimed but found fresh, so never fetched
+        assertTrue(predictor.claim(keys[1]));
+        predictor.onWarming(keys[0]);
+
+        assertEquals(2, predictor.predict(1000).length);
+        predictor.onRequested(keys[0]);
+        predictor.onRequested(keys[1]);
+        predictor.onRequested(keys[2]);
+        assertEquals(1, predictor.getHitCount());
+        assertEquals(1, predictor.getWarmedCount());
+    }
+
+    @Test
+    public void budget_stopsFetchesUntilRefilledAndMeteredNetworksGetNone() throws Exception {
+        FakeNetwork network = new FakeNetwork();
+        TilePredictor predictor = new TilePredictor(SOURCE, network, null, 2, 1000, 1000);
+        assertTrue(predictor.canFetch(0));
+        predictor.onFetched(3000);
+        assertFalse(predictor.canFetch(0));
+        assertTrue(predictor.canFetch(1500));
+
+        network.mMetered = true;
+        assertFalse(predictor.canFetch(5000));
+    }
+}
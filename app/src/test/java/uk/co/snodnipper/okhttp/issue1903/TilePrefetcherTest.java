@@ -0,0 +1,221 @@
+package uk.co.snodnipper.okhttp.issue1903;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class TilePrefetcherTest {
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private static final TileUrlFormatter URLS = new PrefixUrlFormatter("http://tiles/", ".png");
+
+    private final BlockingQueue<TilePrefetcher.Progress> mFinished = new LinkedBlockingQueue<>();
+    private DownloadJobStore mJobStore;
+
+    @Before
+    public void setUp() throws Exception {
+        mJobStore = new DownloadJobStore(mFolder.getRoot());
+    }
+
+    @Test
+    public void jobThatKeepsFailing_isGivenUpAfterMaxAttempts() throws Exception {
+        TilePrefetcher prefetcher = newPrefetcher(new Failing(), null);
+        assertTrue(prefetcher.start(newJob()));
+        TilePrefetcher.Progress progress = awaitFinished();
+        assertTrue(progress.failed > 0);
+        assertEquals(1, mJobStore.list().get(0).getAttempts());
+
+        for (int attempt = 2; attempt <= TilePrefetcher.MAX_ATTEMPTS; attempt++) {
+            assertTrue(prefetcher.resumePending());
+            awaitFinished();
+        }
+        assertTrue(mJobStore.list().isEmpty());
+        assertFalse(prefetcher.resumePending());
+    }
+
+    @Test
+    public void jobEnumeratedDifferently_isDiscardedNotResumed() throws Exception {
+        DownloadJob job = newJob();
+        mJobStore.save(job);
+        // as if a later build covered one more tile at the job's first zoom; the count follows the
+        // version, id, buffer, zoom range and attempts
+        RandomAccessFile file = new RandomAccessFile(new File(mFolder.getRoot(), job.getId() + ".job"), "rw");
+        file.seek(28);
+        long count = file.readLong();
+        file.seek(28);
+        file.writeLong(count + 1);
+        file.close();
+
+        TilePrefetcher prefetcher = newPrefetcher(new Failing(), null);
+        assertFalse(mJobStore.list().get(0).matchesEnumeration());
+        assertFalse(prefetcher.resumePending());
+        assertTrue(mJobStore.list().isEmpty());
+    }
+
+    @Test
+    public void freshTiles_areSkippedAndOthersFetched() throws Exception {
+        final List<String> expected = new ArrayList<>();
+        long fresh = 0;
+        TileIterator tiles = newJob().tiles();
+        long total = tiles.estimateSize();
+        while (tiles.hasNext()) {
+            long key = tiles.next();
+            if (freshness(key) == TilePrefetcher.Freshness.FRESH) {
+                fresh++;
+            } else {
+                expected.add(URLS.format(key));
+            }
+        }
+        assertTrue(fresh > 0 && !expected.isEmpty());
+
+        Succeeding downloader = new Succeeding();
+        TilePrefetcher prefetcher = newPrefetcher(downloader, new TilePrefetcher.FreshnessProbe() {
+            @Override
+            public TilePrefetcher.Freshness getFreshness(long key, String url) {
+                return freshness(key);
+            }
+        });
+        assertTrue(prefetcher.start(newJob().tiles(), total));
+        TilePrefetcher.Progress progress = awaitFinished();
+
+        assertEquals(total, progress.completed);
+        assertEquals(fresh, progress.skipped);
+        assertEquals(0, progress.failed);
+        // stale tiles are fetched as well as missing ones, so a caching downloader can refresh them
+        Collections.sort(expected);
+        Collections.sort(downloader.mRequested);
+        assertEquals(expected, downloader.mRequested);
+    }
+
+    @Test
+    public void fullStore_endsJobWithoutKeepingIt() throws Exception {
+        Filling downloader = new Filling(3);
+        TilePrefetcher prefetcher = newPrefetcher(downloader, null);
+        assertTrue(prefetcher.start(newJob()));
+        TilePrefetcher.Progress progress = awaitFinished();
+
+        assertTrue(progress.storeFull);
+        assertFalse(progress.cancelled);
+        assertEquals(3, progress.completed);
+        assertEquals(1, progress.failed);
+        assertTrue(progress.completed + progress.failed < progress.total);
+        assertEquals(4, downloader.mRequests);
+        assertTrue(mJobStore.list().isEmpty());
+        assertFalse(prefetcher.resumePending());
+    }
+
+    /** A fixed mix of the three, by key. */
+    private static TilePrefetcher.Freshness freshness(long key) {
+        return TilePrefetcher.Freshness.values()[TileKey.x(key) % 3];
+    }
+
+    private TilePrefetcher newPrefetcher(AsyncDownloader downloader, TilePrefetcher.FreshnessProbe freshness) {
+        TilePrefetcher prefetcher = new TilePrefetcher(downloader, URLS, mJobStore, freshness);
+        prefetcher.addListener(new TilePrefetcher.Listener() {
+            @Override
+            public void onProgress(TilePrefetcher.Progress progress) {
+            }
+
+            @Override
+            public void onFinished(TilePrefetcher.Progress progress) {
+                mFinished.add(progress);
+            }
+        });
+        return prefetcher;
+    }
+
+    private TilePrefetcher.Progress awaitFinished() throws InterruptedException {
+        TilePrefetcher.Progress progress = mFinished.poll(5, TimeUnit.SECONDS);
+        assertNotNull(progress);
+        return progress;
+    }
+
+    /** A small square around London, a few tiles at each of zooms 1 to 4. */
+    private static DownloadJob newJob() {
+        return new DownloadJob(42, Collections.singletonList(new double[]{-1, 51, 1, 51, 1, 52, -1, 52}),
+                0, 1, 4);
+    }
+
+    private static final class Succeeding implements AsyncDownloader {
+        final List<String> mRequested = Collections.synchronizedList(new ArrayList<String>());
+
+        @Override
+        public Cancellable enqueue(String url, Callback callback) {
+            mRequested.add(url);
+            callback.onTile(url, new byte[1]);
+            return PendingTile.DONE_ALREADY;
+        }
+
+        @Override
+        public byte[] getData(String url) throws IOException {
+            return new byte[1];
+        }
+
+        @Override
+        public byte[] getCachedData(String url) throws IOException {
+            return null;
+        }
+    }
+
+    /** Keeps a few tiles, then finds the store full. */
+    private static final class Filling implements AsyncDownloader {
+        final int mCapacity;
+        int mRequests;
+
+        Filling(int capacity) {
+            mCapacity = capacity;
+        }
+
+        @Override
+        public Cancellable enqueue(String url, Callback callback) {
+            if (mRequests++ < mCapacity) {
+                callback.onTile(url, new byte[1]);
+            } else {
+                callback.onFailure(url, new StoreFullException());
+            }
+            return PendingTile.DONE_ALREADY;
+        }
+
+        @Override
+        public byte[] getData(String url) throws IOException {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public byte[] getCachedData(String url) throws IOException {
+            return null;
+        }
+    }
+
+    private static final class Failing implements AsyncDownloader {
+        @Override
+        public Cancellable enqueue(String url, Callback callback) {
+            callback.onFailure(url, new IOException("offline"));
+            return PendingTile.DONE_ALREADY;
+        }
+
+        @Override
+        public byte[] getData(String url) throws IOException {
+            throw new IOException("offline");
+        }
+
+        @Override
+        public byte[] getCachedData(String url) throws IOException {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,254 @@
+package uk.co.snodnipper.okhttp.issue1903;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class TileSchedulerTest {
+
+    /** Holds the first fetch until released or cancelled, then records the order of the rest. */
+    private static class GatedDownloader implements AsyncDownloader {
+        final CountDownLatch mStarted = new CountDownLatch(1);
+        final CountDownLatch mRelease = new CountDownLatch(1);
+        final CountDownLatch mCancelled = new CountDownLatch(1);
+        final List<String> mFetched = Collections.synchronizedList(new ArrayList<String>());
+
+        @Override
+        public Cancellable enqueue(final String url, final Callback callback) {
+            if (mStarted.getCount() == 0) {
+                mFetched.add(url);
+                callback.onTile(url, new byte[1]);
+                return PendingTile.DONE_ALREADY;
+            }
+            mStarted.countDown();
+            final PendingTile tile = new PendingTile(url, callback);
+            tile.setUpstream(new Cancellable() {
+                @Override
+                public void cancel() {
+                    mCancelled.countDown();
+                }
+            });
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        mRelease.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    tile.deliver(new byte[1]);
+                }
+            }).start();
+            return tile;
+        }
+
+        @Override
+        public byte[] getData(String url) throws IOException {
+            return PendingTile.await(this, url);
+        }
+
+        @Override
+        public byte[] getCachedData(String url) {
+            return null;
+        }
+    }
+
+    @Test
+    public void visibleTiles_fetchedBeforeParentsAndNearestFirst() throws Exception {
+        GatedDownloader downloader = new GatedDownloader();
+        final TileScheduler scheduler = new TileScheduler(downloader, 1, 60000);
+        scheduler.setViewport(4, 8.5, 8.5, 2, 2);
+        // occupy the only slot so the rest queue up
+        Thread blocker = fetchLater(scheduler, 4, 8, 8);
+        downloader.mStarted.await();
+
+        List<Thread> callers = new ArrayList<>();
+        callers.add(fetchLater(scheduler, 3, 4, 4));
+        callers.add(fetchLater(scheduler, 4, 9, 9));
+        callers.add(fetchLater(scheduler, 4, 7, 7));
+        callers.add(fetchLater(scheduler, 4, 8, 7));
+        while (scheduler.getPendingCount() < callers.size()) {
+            Thread.sleep(5);
+        }
+        downloader.mRelease.countDown();
+        blocker.join();
+        for (Thread caller : callers) {
+            caller.join();
+        }
+
+        assertEquals(4, downloader.mFetched.size());
+        assertEquals("4/8/7", downloader.mFetched.get(0));
+        assertEquals("3/4/4", downloader.mFetched.get(3));
+    }
+
+    @Test
+    public void outOfViewTile_isParkedThenGivenUp() throws Exception {
+        GatedDownloader downloader = new GatedDownloader();
+        downloader.mStarted.countDown();
+        TileScheduler scheduler = new TileScheduler(downloader, 1, 50);
+        scheduler.setViewport(10, 100, 100, 2, 2);
+
+        assertNull(scheduler.getTile(10, 500, 500, "10/500/500"));
+        assertNotNull(scheduler.getTile(10, 101, 100, "10/101/100"));
+        assertEquals(Collections.singletonList("10/101/100"), downloader.mFetched);
+    }
+
+    @Test
+    public void tileAcrossAntimeridian_isInView() throws Exception {
+        GatedDownloader downloader = new GatedDownloader();
+        downloader.mStarted.countDown();
+        TileScheduler scheduler = new TileScheduler(downloader, 1, 50);
+        // centred on the left edge of a 16 tile wide world, so the view wraps to column 15
+        scheduler.setViewport(4, 0.5, 8.5, 2, 2);
+
+        assertNotNull(scheduler.getTile(4, 15, 8, "4/15/8"));
+        assertNull(scheduler.getTile(4, 8, 8, "4/8/8"));
+        assertEquals(Collections.singletonList("4/15/8"), downloader.mFetched);
+    }
+
+    @Test
+    public void interruptedCaller_cancelsItsFetchAndFreesTheSlot() throws Exception {
+        GatedDownloader downloader = new GatedDownloader();
+        final TileScheduler scheduler = new TileScheduler(downloader, 1, 60000);
+        Thread caller = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    scheduler.getTile(4, 8, 8, "4/8/8");
+                } catch (IOException expected) {
+                }
+            }
+        });
+        caller.start();
+        downloader.mStarted.await();
+        caller.interrupt();
+        assertTrue(downloader.mCancelled.await(5, TimeUnit.SECONDS));
+
+        assertNotNull(scheduler.getTile(4, 9, 9, "4/9/9"));
+        assertEquals(Collections.singletonList("4/9/9"), downloader.mFetched);
+    }
+
+    @Test
+    public void slowCacheRead_doesNotHoldUpOtherTiles() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        AsyncDownloader downloader = new GatedDownloader() {
+            @Override
+            public Cancellable enqueue(String url, Callback callback) {
+                if (url.equals("4/8/8")) {
+                    // a lookup stuck on the disk, before any fetch is started
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                callback.onTile(url, new byte[1]);
+                return PendingTile.DONE_ALREADY;
+            }
+        };
+        TileScheduler scheduler = new TileScheduler(downloader, 2, 60000);
+        Thread stuck = fetchLater(scheduler, 4, 8, 8);
+        while (scheduler.getPendingCount() > 0) {
+            Thread.sleep(5);
+        }
+
+        assertNotNull(scheduler.getTile(4, 9, 9, "4/9/9"));
+        release.countDown();
+        stuck.join(5000);
+    }
+
+    @Test
+    public void predictedTiles_waitForTheMapsOwnTiles() throws Exception {
+        GatedDownloader downloader = new GatedDownloader();
+        NetworkState online = new NetworkState() {
+            @Override
+            public boolean isOnline() {
+                return true;
+            }
+
+            @Override
+            public boolean isMetered() {
+                return false;
+            }
+
+            @Override
+            public Bandwidth getBandwidth() {
+                return Bandwidth.FAST;
+            }
+        };
+        TilePredictor predictor = new TilePredictor(new TileSource("test", "http://{s}.tiles.test/{z}/{x}/{y}.png",
+                new String[]{"a"}, 0, 18, RasterImageQuality.MBXRasterImageQualityJPEG80), online, null);
+        TileScheduler scheduler = new TileScheduler(downloader, 1, 60000, predictor);
+        Thread blocker = fetchLater(scheduler, 4, 8, 8);
+        downloader.mStarted.await();
+        Thread caller = fetchLater(scheduler, 4, 9, 9);
+        while (scheduler.getPendingCount() < 1) {
+            Thread.sleep(5);
+        }
+        // a still view predicts the centre tile's four children
+        scheduler.setViewport(4, 8.5, 8.5, 2, 2);
+        downloader.mRelease.countDown();
+        blocker.join();
+        caller.join();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (downloader.mFetched.size() < 5 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+
+        assertEquals(5, downloader.mFetched.size());
+        assertEquals("4/9/9", downloader.mFetched.get(0));
+        assertEquals("http://a.tiles.test/5/16/16.png", downloader.mFetched.get(1));
+        assertEquals(4, predictor.getWarmedCount());
+    }
+
+    @Test
+    public void predictedTilesAlreadyFresh_areNeitherFetchedNorHits() throws Exception {
+        GatedDownloader downloader = new GatedDownloader();
+        downloader.mStarted.countDown();
+        final AtomicInteger probed = new AtomicInteger();
+        TilePredictor predictor = new TilePredictor(new TileSource("test", "http://{s}.tiles.test/{z}/{x}/{y}.png",
+                new String[]{"a"}, 0, 18, RasterImageQuality.MBXRasterImageQualityJPEG80),
+                HttpDownloaderTest.ONLINE, new TilePrefetcher.FreshnessProbe() {
+                    @Override
+                    public TilePrefetcher.Freshness getFreshness(long key, String url) {
+                        probed.incrementAndGet();
+                        return TilePrefetcher.Freshness.FRESH;
+                    }
+                });
+        TileScheduler scheduler = new TileScheduler(downloader, 1, 60000, predictor);
+        // a still view predicts the centre tile's four children
+        scheduler.setViewport(4, 8.5, 8.5, 2, 2);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (probed.get() < 4 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+
+        assertNotNull(scheduler.getTile(5, 16, 16, "5/16/16"));
+        assertEquals(Collections.singletonList("5/16/16"), downloader.mFetched);
+        assertEquals(0, predictor.getWarmedCount());
+        assertEquals(0, predictor.getHitCount());
+    }
+
+    private static Thread fetchLater(final TileScheduler scheduler, final int zoom, final int x, final int y) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    scheduler.getTile(zoom, x, y, zoom + "/" + x + "/" + y);
+                } catch (IOException e) {
+                    throw new AssertionError(e);
+                }
+            }
+        });
+        thread.start();
+        return thread;
+    }
+}
@@ -0,0 +1,47 @@
+package uk.co.snodnipper.okhttp.issue1903;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TileSourceTest {
+
+    private static TileSource source() {
+        return new TileSource("test", "http://{s}.tiles.test/v4/map/{z}/{x}/{y}.{q}", new String[]{"a", "b", "c"},
+                0, 18, RasterImageQuality.MBXRasterImageQualityJPEG80);
+    }
+
+    @Test
+    public void format_spreadsNeighboursOverHostsStably() throws Exception {
+        TileSource source = source();
+        assertEquals("http://a.tiles.test/v4/map/5/1/2.jpg80", source.format(5, 1, 2));
+        assertEquals("http://b.tiles.test/v4/map/5/2/2.jpg80", source.format(5, 2, 2));
+        assertEquals("http://c.tiles.test/v4/map/5/2/3.jpg80", source.format(5, 2, 3));
+        assertEquals(source.format(5, 2, 3), source.format(TileKey.pack(5, 2, 3)));
+        assertEquals(TileKey.pack(5, 2, 3), TileKey.fromUrl(source.format(5, 2, 3)));
+    }
+
+    @Test
+    public void failingHost_isTakenOutOfRotation() throws Exception {
+        TileSource source = source();
+        String url = source.format(5, 1, 2);
+        for (int i = 0; i < TileSource.MAX_CONSECUTIVE_FAILURES; i++) {
+            assertTrue(source.isHealthy(url));
+            source.reportFailure(url);
+        }
+        assertFalse(source.isHealthy(url));
+        assertEquals("http://b.tiles.test/v4/map/5/1/2.jpg80", source.alternate(url));
+        // the tile keeps its URL, and so its cache entry, while its host is out
+        assertEquals(url, source.format(5, 1, 2));
+        assertEquals("http://c.tiles.test/v4/map/5/2/3.jpg80", source.format(5, 2, 3));
+    }
+
+    @Test
+    public void slowHost_isTakenOutOfRotation() throws Exception {
+        TileSource source = source();
+        source.reportSuccess(source.format(5, 2, 2), 100);
+        String slow = source.format(5, 1, 2);
+        source.reportSuccess(slow, 5000);
+        assertFalse(source.isHealthy(slow));
+    }
+}
@@ -0,0 +1,87 @@
+package uk.co.snodnipper.okhttp.issue1903;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Issue 1903: the map cancels a tile by interrupting the thread fetching it, and a body interrupted
+ * half way is never committed to the cache, so panning back fetches it again.  Each operation starts
+ * a slow tile, interrupts the caller part way through, waits as a user would before panning back, and
+ * asks for the tile again.
+ * <p>
+ * Compare {@code detached=false}, which reproduces the issue, with the default detached fetch.  The
+ * network requests per operation, printed at the end of the trial, is 2 when the tile was lost and 1
+ * when it was kept.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+public class CancellationBenchmark {
+
+    private static final int TILE_BYTES = 64 * 1024;
+    /** At 8 KB every 5 ms a tile takes about 40 ms to arrive... */
+    private static final long BYTES_PER_TICK = 8 * 1024;
+    private static final long TICK_MILLIS = 5;
+    /** ...and is cancelled a quarter of the way through... */
+    private static final long CANCEL_AFTER_MILLIS = 10;
+    /** ...and asked for again once a detached fetch would have finished. */
+    private static final long PAN_BACK_AFTER_MILLIS = 100;
+
+    @Param({"true", "false"})
+    public boolean detached;
+
+    private TileServer mTileServer;
+    private int mX;
+    private long mOperations;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        mTileServer = new TileServer(TILE_BYTES, BYTES_PER_TICK, TICK_MILLIS,
+                HttpDownloader.DEFAULT_MAX_ORPHANED_DRAINS);
+        mTileServer.downloader.setDetachedFetch(detached);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        System.out.println(String.format("detached=%b: %.2f network requests per operation%n%s", detached,
+                (double) mTileServer.server.getRequestCount() / mOperations, mTileServer.metrics.dump()));
+        mTileServer.shutdown();
+    }
+
+    @Benchmark
+    public byte[] cancelAndPanBack() throws Exception {
+        final String url = mTileServer.url(18, mX++, 2);
+        mOperations++;
+        Thread caller = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    mTileServer.downloader.getData(url);
+                } catch (IOException ignored) {
+                    // the interrupt surfaces here
+                }
+            }
+        });
+        caller.start();
+        Thread.sleep(CANCEL_AFTER_MILLIS);
+        caller.interrupt();
+        caller.join();
+        Thread.sleep(PAN_BACK_AFTER_MILLIS);
+        return mTileServer.downloader.getData(url);
+    }
+}
@@ -0,0 +1,71 @@
+package uk.co.snodnipper.okhttp.issue1903;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link Downloader#getData} end to end against a local server: every tile new (cold), every tile
+ * already in the HTTP cache (warm), or every tile in the memory cache in front of it (memory).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class DownloaderBenchmark {
+
+    private static final int TILE_BYTES = 20 * 1024;
+    private static final int WARM_TILES = 512;
+    private static final int ZOOM = 18;
+
+    @Param({"cold", "warm", "memory"})
+    public String cache;
+
+    private TileServer mTileServer;
+    private Downloader mDownloader;
+    private String[] mWarmUrls;
+    private int mIndex;
+    private int mColdX;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        mTileServer = new TileServer(TILE_BYTES, 0, 0, HttpDownloader.DEFAULT_MAX_ORPHANED_DRAINS);
+        mDownloader = "memory".equals(cache)
+                ? new MemoryTileCache(mTileServer.downloader, 2L * WARM_TILES * TILE_BYTES, mTileServer.metrics)
+                : mTileServer.downloader;
+        mWarmUrls = new String[WARM_TILES];
+        for (int i = 0; i < WARM_TILES; i++) {
+            mWarmUrls[i] = mTileServer.url(ZOOM, i, 0);
+            if (!"cold".equals(cache)) {
+                mDownloader.getData(mWarmUrls[i]);
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        System.out.println(mTileServer.metrics.dump());
+        mTileServer.shutdown();
+    }
+
+    @Benchmark
+    public byte[] getData() throws IOException {
+        String url;
+        if ("cold".equals(cache)) {
+            url = mTileServer.url(ZOOM, mColdX++, 1);
+        } else {
+            url = mWarmUrls[mIndex];
+            mIndex = (mIndex + 1) % WARM_TILES;
+        }
+        return mDownloader.getData(url);
+    }
+}
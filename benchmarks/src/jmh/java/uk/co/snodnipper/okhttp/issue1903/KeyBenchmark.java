@@ -0,0 +1,58 @@
+package uk.co.snodnipper.okhttp.issue1903;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The per-tile key work on the hot path: building the URL the layer requests, parsing it back into a
+ * {@link TileKey}, and hashing it into the HTTP cache's key.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class KeyBenchmark {
+
+    private static final int SIZE = 1024;
+
+    private final long[] mKeys = new long[SIZE];
+    private final String[] mUrls = new String[SIZE];
+    private int mIndex;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(1903);
+        for (int i = 0; i < SIZE; i++) {
+            int zoom = 10 + random.nextInt(9);
+            mKeys[i] = TileKey.pack(zoom, random.nextInt(1 << zoom), random.nextInt(1 << zoom));
+            mUrls[i] = TileSource.OPENSTREETMAP.format(mKeys[i]);
+        }
+    }
+
+    private int next() {
+        mIndex = (mIndex + 1) & (SIZE - 1);
+        return mIndex;
+    }
+
+    @Benchmark
+    public String formatUrl() {
+        return TileSource.OPENSTREETMAP.format(mKeys[next()]);
+    }
+
+    @Benchmark
+    public long parseUrl() {
+        return TileKey.fromUrl(mUrls[next()]);
+    }
+
+    @Benchmark
+    public String md5Hex() {
+        return HttpDownloader.md5Hex(mUrls[next()]);
+    }
+}
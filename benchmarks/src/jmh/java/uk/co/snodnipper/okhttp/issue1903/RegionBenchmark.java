@@ -0,0 +1,99 @@
+package uk.co.snodnipper.okhttp.issue1903;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Enumerating, counting and estimating the tiles of download regions of increasing size, as the
+ * download button does, to zoom 14 and to the deeper zooms it estimates before capping.  The regions
+ * are fixed polygons so runs are comparable.  Enumerating the larger regions to zoom 18 takes minutes
+ * per call; run those with {@code -p maxZoom=14} when only the cheap paths are of interest.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class RegionBenchmark {
+
+    /** Central London, a few hundred tiles to zoom 14. */
+    private static final double[] CITY = {-0.25, 51.45, 0.0, 51.42, 0.05, 51.55, -0.2, 51.58};
+    /** Roughly Kent, tens of thousands of tiles to zoom 14. */
+    private static final double[] COUNTY = {0.0, 51.0, 1.5, 50.9, 1.45, 51.5, 0.1, 51.6};
+    /** Roughly Great Britain, hundreds of thousands of tiles to zoom 14. */
+    private static final double[] COUNTRY = {-6.0, 50.0, 2.0, 50.8, 0.0, 55.0, -2.0, 58.7, -6.5, 58.0};
+
+    /** Regions with more tiles than this are not materialized, which would need gigabytes of heap. */
+    private static final long MAX_MATERIALIZED_TILES = 20000000;
+
+    @Param({"city", "county", "country"})
+    public String region;
+
+    @Param({"14", "16", "18"})
+    public int maxZoom;
+
+    private List<TileCoverage> mCoverages;
+    private RegionEstimator mEstimator;
+    private long mTotal;
+
+    @Setup
+    public void setUp() {
+        double[] ring = "city".equals(region) ? CITY : "county".equals(region) ? COUNTY : COUNTRY;
+        mCoverages = Collections.<TileCoverage>singletonList(
+                new PolygonCoverage(Collections.singletonList(ring), 0));
+        mEstimator = new RegionEstimator(new RegionEstimator.CacheProbe() {
+            @Override
+            public long getCachedSize(String url) {
+                return -1;
+            }
+        }, new PrefixUrlFormatter("http://tiles/", ".png"));
+        mTotal = count();
+    }
+
+    @Benchmark
+    public long enumerate() {
+        TileIterator tiles = new TileIterator(mCoverages, 0, maxZoom);
+        long sum = 0;
+        while (tiles.hasNext()) {
+            sum += tiles.next();
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public long count() {
+        long count = 0;
+        for (int zoom = 0; zoom <= maxZoom; zoom++) {
+            count += RegionEstimator.count(mCoverages, zoom);
+        }
+        return count;
+    }
+
+    /** What the download button does before choosing the deepest zoom within its limit. */
+    @Benchmark
+    public long estimate() {
+        return mEstimator.estimate(mCoverages, 0, maxZoom).estimatedTileBytes;
+    }
+
+    /** What {@code UrlProvider.getTileKeys} does after projecting the polygon. */
+    @Benchmark
+    public int materialize() {
+        if (mTotal > MAX_MATERIALIZED_TILES) {
+            throw new IllegalStateException(mTotal + " tiles are too many to hold");
+        }
+        TileIterator tiles = new TileIterator(mCoverages, 0, maxZoom);
+        LongHashSet keys = new LongHashSet();
+        while (tiles.hasNext()) {
+            keys.add(tiles.next());
+        }
+        return keys.size();
+    }
+}
@@ -0,0 +1,92 @@
+package uk.co.snodnipper.okhttp.issue1903;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okio.Buffer;
+
+/**
+ * A local tile server and a downloader with its own cache directory, for benchmarks that go through
+ * the real request path.
+ */
+final class TileServer {
+
+    static final NetworkState ONLINE = new NetworkState() {
+        @Override
+        public boolean isOnline() {
+            return true;
+        }
+
+        @Override
+        public boolean isMetered() {
+            return false;
+        }
+
+        @Override
+        public Bandwidth getBandwidth() {
+            return Bandwidth.FAST;
+        }
+    };
+
+    final MockWebServer server = new MockWebServer();
+    final File cacheDirectory;
+    final TileMetrics metrics = new TileMetrics();
+    final HttpDownloader downloader;
+
+    /**
+     * @param tileBytes     size of every tile
+     * @param bytesPerTick  if positive, the body is sent this many bytes at a time...
+     * @param tickMillis    ...every this many milliseconds
+     */
+    TileServer(int tileBytes, final long bytesPerTick, final long tickMillis, int maxOrphanedDrains)
+            throws IOException {
+        byte[] tile = new byte[tileBytes];
+        // fixed seed so every run serves identical bytes
+        new Random(1903).nextBytes(tile);
+        final Buffer body = new Buffer().write(tile);
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                MockResponse response = new MockResponse()
+                        .setHeader("Content-Type", "image/png")
+                        .setHeader("Cache-Control", "max-age=86400")
+                        .setBody(body.clone());
+                if (bytesPerTick > 0) {
+                    response.throttleBody(bytesPerTick, tickMillis, TimeUnit.MILLISECONDS);
+                }
+                return response;
+            }
+        });
+        server.start();
+        cacheDirectory = File.createTempFile("tile-cache", "");
+        if (!cacheDirectory.delete() || !cacheDirectory.mkdir()) {
+            throw new IOException("cannot create " + cacheDirectory);
+        }
+        downloader = new HttpDownloader(cacheDirectory, 512L * 1024 * 1024, ONLINE, metrics, maxOrphanedDrains);
+    }
+
+    String url(int zoom, int x, int y) {
+        return server.url("/" + zoom + "/" + x + "/" + y + ".png").toString();
+    }
+
+    void shutdown() throws IOException {
+        server.shutdown();
+        delete(cacheDirectory);
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}